@@ -0,0 +1,106 @@
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Default-package implementation of bench.AmazonTarget, see there.
+ */
+public class AmazonBenchTarget implements bench.AmazonTarget {
+
+  // calculateDistance and StoreIndex do not need a database
+  private Amazon esql = new Amazon((ConnectionPool)null);
+  private List<List<String>> storeRows = new ArrayList<List<String>>();
+  private StoreIndex storeIndex;
+
+  public double calculateDistance(double lat1, double long1, double lat2,
+                                  double long2) {
+    return esql.calculateDistance(lat1, long1, lat2, long2);
+  }
+
+  public void useStores(double[] latitudes, double[] longitudes,
+                        double cellSize) {
+    List<StoreIndex.Entry> entries = new ArrayList<StoreIndex.Entry>();
+    this.storeRows = new ArrayList<List<String>>();
+    for (int i = 0; i < latitudes.length; ++i) {
+      // rows as executeQueryAndReturnResult used to hand them to viewStores
+      this.storeRows.add(Arrays.asList(Integer.toString(i + 1),
+                                       Double.toString(latitudes[i]),
+                                       Double.toString(longitudes[i])));
+      entries.add(new StoreIndex.Entry(i + 1, latitudes[i], longitudes[i]));
+    }
+    this.storeIndex = new StoreIndex(esql, cellSize, 0);
+    this.storeIndex.loadFixed(entries);
+  }
+
+  public int scanStores(double lat, double lon, double radius) {
+    int found = 0;
+    for (List<String> store : this.storeRows) {
+      double storeLat = Double.parseDouble(store.get(1));
+      double storeLong = Double.parseDouble(store.get(2));
+      if (esql.calculateDistance(lat, lon, storeLat, storeLong) <= radius)
+        ++found;
+    }
+    return found;
+  }
+
+  public int gridStores(double lat, double lon, double radius) {
+    try {
+      return this.storeIndex.withinRadius(lat, lon, radius).size();
+    } catch (java.sql.SQLException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void connect(String dbname, String port, String user)
+      throws Exception {
+    Class.forName("org.postgresql.Driver");
+    this.esql = new Amazon(dbname, port, user, "");
+  }
+
+  public void disconnect() { this.esql.cleanup(); }
+
+  public long materialize(String query) throws Exception {
+    long checksum = 0;
+    for (List<String> row : esql.executeQueryAndReturnResult(query)) {
+      for (String value : row)
+        checksum += value == null ? 0 : value.length();
+    }
+    return checksum;
+  }
+
+  public long stream(String query) throws Exception {
+    final long[] checksum = new long[1];
+    esql.executeQueryAndStream(query, (ResultSet rs) -> {
+      int numCol = rs.getMetaData().getColumnCount();
+      for (int i = 1; i <= numCol; ++i) {
+        String value = rs.getString(i);
+        checksum[0] += value == null ? 0 : value.length();
+      }
+    });
+    return checksum[0];
+  }
+
+  public long count(String query) throws Exception {
+    return esql.executeQuery(query);
+  }
+
+  public void restock(int storeID, String productName, int units)
+      throws Exception {
+    esql.executeUpdate(
+        "UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?",
+        units, storeID, productName);
+  }
+
+  public int placeOrder(int customerID, int storeID, String productName,
+                        int units) throws Exception {
+    OrderResult order =
+        esql.submitOrder(customerID, storeID, productName, units);
+    return order.isPlaced() ? order.orderNumber : -1;
+  }
+
+  public int logIn(String name, String password) throws Exception {
+    List<String> user = esql.findUser(name, password);
+    return user == null ? -1 : Integer.parseInt(user.get(0));
+  }
+} // end AmazonBenchTarget
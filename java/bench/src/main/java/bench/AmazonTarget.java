@@ -0,0 +1,98 @@
+package bench;
+
+/**
+ * The operations the benchmarks measure.
+ *
+ * The application lives in the default package, which a named package
+ * cannot import, and JMH refuses benchmark classes in the default package.
+ * The implementation, AmazonBenchTarget, therefore sits in the default
+ * package next to the application and is loaded by name. Calls go through
+ * this interface to a single implementation, so the JIT inlines them and
+ * the indirection does not show up in the results.
+ */
+public interface AmazonTarget {
+
+  /**
+   * Loads the default-package implementation.
+   */
+  static AmazonTarget load() {
+    try {
+      return (AmazonTarget)Class.forName("AmazonBenchTarget")
+          .getDeclaredConstructor()
+          .newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("AmazonBenchTarget is not on the classpath",
+                                      e);
+    }
+  }
+
+  /** Amazon.calculateDistance. */
+  double calculateDistance(double lat1, double long1, double lat2,
+                           double long2);
+
+  /**
+   * Sets the store locations used by the viewStores benchmarks, indexed
+   * with grid cells of side {@code cellSize}.
+   */
+  void useStores(double[] latitudes, double[] longitudes, double cellSize);
+
+  /**
+   * The viewStores loop as it was before the grid index: parse every Store
+   * row from strings and compute its distance.
+   *
+   * @return the number of stores within the radius
+   */
+  int scanStores(double lat, double lon, double radius);
+
+  /**
+   * viewStores through StoreIndex.withinRadius.
+   *
+   * @return the number of stores within the radius
+   */
+  int gridStores(double lat, double lon, double radius);
+
+  /** Connects to a local Postgres for the end-to-end benchmarks. */
+  void connect(String dbname, String port, String user) throws Exception;
+
+  /** Closes the connections opened by connect. */
+  void disconnect();
+
+  /**
+   * Runs a query through executeQueryAndReturnResult.
+   *
+   * @return a checksum of the values, so nothing is optimised away
+   */
+  long materialize(String query) throws Exception;
+
+  /**
+   * Runs a query through executeQueryAndStream.
+   *
+   * @return a checksum of the values, so nothing is optimised away
+   */
+  long stream(String query) throws Exception;
+
+  /**
+   * Runs a query through executeQuery, which only counts rows.
+   *
+   * @return the number of rows
+   */
+  long count(String query) throws Exception;
+
+  /** Sets the stock of a product, so ordering can go on indefinitely. */
+  void restock(int storeID, String productName, int units) throws Exception;
+
+  /**
+   * Amazon.submitOrder.
+   *
+   * @return the new order number, or -1 if no order was placed
+   */
+  int placeOrder(int customerID, int storeID, String productName, int units)
+      throws Exception;
+
+  /**
+   * The credential lookup behind LogIn.
+   *
+   * @return the userID, or -1 if the credentials do not match
+   */
+  int logIn(String name, String password) throws Exception;
+}
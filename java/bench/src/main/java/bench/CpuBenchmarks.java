@@ -0,0 +1,91 @@
+package bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * In-memory hot paths: the distance function and the viewStores filter,
+ * both as the original scan over every Store row and through the grid
+ * index. No database is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CpuBenchmarks {
+
+  // number of stores spread over the [0, 100) x [0, 100) map
+  @Param({"20", "10000", "100000"})
+  public int stores;
+
+  // side of a grid cell; the application uses a quarter of the radius
+  @Param({"3.75", "7.5", "15", "30"})
+  public double cellSize;
+
+  // query points cycled through by every benchmark
+  private static final int POINTS = 1024;
+
+  private AmazonTarget target;
+  private double[] pointLat;
+  private double[] pointLon;
+  private int next = 0;
+
+  @Setup
+  public void setup() {
+    this.target = AmazonTarget.load();
+    SplittableRandom random = new SplittableRandom(42);
+    double[] lat = new double[this.stores];
+    double[] lon = new double[this.stores];
+    for (int i = 0; i < this.stores; ++i) {
+      lat[i] = random.nextDouble(100.0);
+      lon[i] = random.nextDouble(100.0);
+    }
+    this.target.useStores(lat, lon, this.cellSize);
+    this.pointLat = new double[POINTS];
+    this.pointLon = new double[POINTS];
+    for (int i = 0; i < POINTS; ++i) {
+      this.pointLat[i] = random.nextDouble(100.0);
+      this.pointLon[i] = random.nextDouble(100.0);
+    }
+  }
+
+  private int point() {
+    this.next = (this.next + 1) & (POINTS - 1);
+    return this.next;
+  }
+
+  @Benchmark
+  public double calculateDistance() {
+    int i = point();
+    int j = (i + 1) & (POINTS - 1);
+    return this.target.calculateDistance(this.pointLat[i], this.pointLon[i],
+                                         this.pointLat[j], this.pointLon[j]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int viewStoresScan() {
+    int i = point();
+    return this.target.scanStores(this.pointLat[i], this.pointLon[i], 30.0);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int viewStoresGrid() {
+    int i = point();
+    return this.target.gridStores(this.pointLat[i], this.pointLon[i], 30.0);
+  }
+}
@@ -0,0 +1,97 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end benchmarks against a locally started Postgres loaded with
+ * create_db.sh (or a scaled dataset). The database is chosen with
+ * -Dbench.db, -Dbench.port and -Dbench.user; they default to the names
+ * compile.sh uses. The order and login benchmarks use -Dbench.customer,
+ * -Dbench.store, -Dbench.product, -Dbench.name and -Dbench.password.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DatabaseBenchmarks {
+
+  // result materialisation is compared on these queries
+  @Param({"SELECT * FROM Product", "SELECT * FROM Orders"})
+  public String query;
+
+  private AmazonTarget target;
+  private int customerID;
+  private int storeID;
+  private String productName;
+  private String name;
+  private String password;
+
+  @Setup(Level.Trial)
+  public void connect() throws Exception {
+    String user = System.getProperty("user.name");
+    String port = System.getenv("PGPORT") == null ? "5432"
+                                                  : System.getenv("PGPORT");
+    this.target = AmazonTarget.load();
+    this.target.connect(
+        System.getProperty("bench.db", user + "_project_phase_3_DB"),
+        System.getProperty("bench.port", port),
+        System.getProperty("bench.user", user));
+    this.customerID = Integer.getInteger("bench.customer", 2);
+    this.storeID = Integer.getInteger("bench.store", 1);
+    this.productName = System.getProperty("bench.product", "Pepsi");
+    this.name = System.getProperty("bench.name", "Amy");
+    this.password = System.getProperty("bench.password", "xyz");
+  }
+
+  // every iteration starts with plenty of stock, so no order is refused
+  @Setup(Level.Iteration)
+  public void restock() throws Exception {
+    this.target.restock(this.storeID, this.productName, Integer.MAX_VALUE / 2);
+  }
+
+  @TearDown(Level.Trial)
+  public void disconnect() {
+    this.target.disconnect();
+  }
+
+  @Benchmark
+  public long materializeList() throws Exception {
+    return this.target.materialize(this.query);
+  }
+
+  @Benchmark
+  public long streamRows() throws Exception {
+    return this.target.stream(this.query);
+  }
+
+  @Benchmark
+  public long countRows() throws Exception {
+    return this.target.count(this.query);
+  }
+
+  @Benchmark
+  public int placeOrder() throws Exception {
+    return this.target.placeOrder(this.customerID, this.storeID,
+                                  this.productName, 1);
+  }
+
+  @Benchmark
+  public int logIn() throws Exception {
+    return this.target.logIn(this.name, this.password);
+  }
+}
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# build the JMH benchmark module
+(cd $DIR/../bench && mvn -B -q package) || exit 1
+
+# run the benchmarks and write the results as JSON. Extra arguments go to
+# JMH, e.g. "CpuBenchmarks" to skip the ones that need Postgres, or
+# -jvmArgs -Dbench.db=<dbname> to pick the database.
+java -jar $DIR/../bench/target/benchmarks.jar \
+    -rf json -rff $DIR/../bench/results.json "$@"
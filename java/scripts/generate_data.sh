@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# write a synthetic data set in the layout of data/, e.g.
+#   generate_data.sh /tmp/sf1000 1000
+#   generate_data.sh -Damazon.gen.seed=7 -Damazon.gen.skew=0.8 /tmp/sf1000 1000
+# and load it with DATA=/tmp/sf1000 load_data.sh
+# see DataGenerator for the other settings
+OPTS=()
+while [[ $1 == -* ]]; do OPTS+=("$1"); shift; done
+java "${OPTS[@]}" -cp $DIR/../classes DataGenerator "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# load data/*.csv, or $DATA/*.csv when set, into the tables of
+# create_tables.sql, then create the indexes and triggers and reset the
+# serial sequences
+java "$@" -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader \
+    $USER"_project_phase_3_DB" $PGPORT $USER ${DATA:-$DIR/../../data} $DIR/../../sql/src
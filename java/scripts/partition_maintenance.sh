@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# create the Orders partitions for the coming months and archive old ones,
+# e.g. from cron:
+#   partition_maintenance.sh -Damazon.orders.archiveAfterMonths=12
+#   partition_maintenance.sh -Damazon.orders.archiveAfterMonths=6 \
+#       -Damazon.orders.archiveTablespace=archive
+# see OrderPartitions for the other settings
+java "$@" -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderPartitions \
+    $USER"_project_phase_3_DB" $PGPORT $USER
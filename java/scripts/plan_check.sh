@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# EXPLAIN every query in the sources and fail on sequential scans of the
+# large tables. Load a scaled dataset first; the sample data is too small
+# for the planner to pick the indexes.
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PlanCheck \
+    $USER"_project_phase_3_DB" $PGPORT $USER $DIR/../src/*.java
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# serve the operations as an HTTP/JSON API on port 8080, e.g.
+#   curl -d '{"name":"Amy","password":"xyz"}' localhost:8080/api/login
+#   curl -H "Authorization: Bearer <token>" localhost:8080/api/stores
+java "$@" -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar AmazonServer \
+    $USER"_project_phase_3_DB" $PGPORT $USER 8080
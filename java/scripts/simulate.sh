@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# replay the sample orders with a mix of reads from concurrent users, e.g.
+#   simulate.sh -Damazon.sim.users=32 -Damazon.sim.thinkMillis=100
+#   simulate.sh -Damazon.sim.rate=500 -Damazon.sim.seconds=120
+#   simulate.sh -Damazon.sim.users=64 -Damazon.orders.groupCommit=true
+#   simulate.sh -Damazon.replica.url=jdbc:postgresql://localhost:5433/<db>
+# see LoadSimulator for the other settings
+java "$@" -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar LoadSimulator \
+    $USER"_project_phase_3_DB" $PGPORT $USER $DIR/../../data/orders.csv
@@ -10,19 +10,29 @@
  *
  */
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.Math;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,8 +41,55 @@ import java.util.Scanner;
  */
 public class Amazon {
 
-  // reference to physical database connection.
-  private Connection _connection = null;
+  // pool of physical database connections, each with its own cache of
+  // prepared statements. Sizes can be tuned with -Damazon.pool.* properties.
+  private ConnectionPool _pool = null;
+  static final int STATEMENT_CACHE_SIZE = 64;
+
+  // latency, rows and errors of every statement run through the helpers,
+  // published over JMX and dumped to -Damazon.metrics.file if given
+  private QueryMetrics _metrics = null;
+
+  // sends reports and browsing to -Damazon.replica.url when it is set and
+  // fresh enough, and everything else to _pool
+  private ReplicaRouter _router = null;
+
+  // places orders in groups sharing one commit, or null to place each
+  // order in its own transaction
+  private OrderQueue _orderQueue = null;
+
+  // rows fetched per round trip by executeQueryAndStream
+  static final int FETCH_SIZE = 500;
+  private static final String DECLARE_CURSOR =
+      "DECLARE amazon_stream NO SCROLL CURSOR FOR ";
+  private static final String FETCH_CURSOR =
+      "FETCH " + FETCH_SIZE + " FROM amazon_stream";
+
+  // rows held back by printedRows to size the table columns
+  static final int TABLE_SAMPLE_ROWS = 100;
+
+  // stores are searched within this distance of the customer
+  static final double STORE_RADIUS = 30.0;
+
+  // side of a StoreIndex cell; a radius search covers a block of 9 x 9
+  // cells, about 1.6 times the circle, rather than 3 x 3 cells of the
+  // radius, which cover most of the 100 x 100 map. CpuBenchmarks measures
+  // other sizes
+  static final double STORE_CELL_SIZE = STORE_RADIUS / 4;
+
+  // in-process grid over Store locations, re-checked against the table
+  // once a minute
+  private final StoreIndex _storeIndex =
+      new StoreIndex(this, STORE_CELL_SIZE, 60 * 1000L);
+
+  // distinct product names for autocomplete and typo suggestions,
+  // re-checked against the table once a minute
+  private final ProductSearch _productSearch =
+      new ProductSearch(this, 60 * 1000L);
+
+  // Store rows by storeID for the existence and manager checks
+  private final StoreCache _storeCache =
+      new StoreCache(this, 10000, 10 * 60 * 1000L);
 
   // handling the keyboard inputs through a BufferedReader
   // This variable can be global for convenience.
@@ -60,8 +117,20 @@ public class Amazon {
       String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
       System.out.println("Connection URL: " + url + "\n");
 
-      // obtain a physical connection
-      this._connection = DriverManager.getConnection(url, user, passwd);
+      // open the pool of physical connections
+      this._pool = new ConnectionPool(
+          url, user, passwd, Integer.getInteger("amazon.pool.min", 1),
+          Integer.getInteger("amazon.pool.max", 8),
+          Long.getLong("amazon.pool.maxWaitMillis", 30 * 1000L),
+          Long.getLong("amazon.pool.idleTimeoutMillis", 5 * 60 * 1000L),
+          Long.getLong("amazon.pool.validateAfterMillis", 5 * 1000L),
+          STATEMENT_CACHE_SIZE);
+      this._router = new ReplicaRouter(
+          this._pool, openReplica(user, passwd),
+          Long.getLong("amazon.replica.maxLagMillis", 5000L),
+          Long.getLong("amazon.replica.checkMillis", 1000L));
+      startMetrics();
+      startOrderQueue();
       System.out.println("Done");
     } catch (Exception e) {
       System.err.println("Error - Unable to Connect to Database: " +
@@ -71,6 +140,71 @@ public class Amazon {
     } // end catch
   }   // end Amazon
 
+  /**
+   * Creates a new instance of Amazon store on top of an existing
+   * connection pool, e.g. one shared by several tools in the same process.
+   *
+   * @param pool the pool the JDBC helpers borrow connections from
+   */
+  public Amazon(ConnectionPool pool) { this(pool, null); }
+
+  /**
+   * Creates a new instance of Amazon store on top of existing connection
+   * pools, sending the reports and browsing queries to a read-only replica
+   * while it is within -Damazon.replica.maxLagMillis of the primary.
+   *
+   * @param pool the pool the JDBC helpers borrow connections from
+   * @param replica the pool of a read-only replica, or null for none
+   */
+  public Amazon(ConnectionPool pool, ConnectionPool replica) {
+    this._pool = pool;
+    this._router =
+        new ReplicaRouter(pool, replica,
+                          Long.getLong("amazon.replica.maxLagMillis", 5000L),
+                          Long.getLong("amazon.replica.checkMillis", 1000L));
+    startMetrics();
+    startOrderQueue();
+  } // end Amazon
+
+  // opens the pool of -Damazon.replica.url, a JDBC URL such as
+  // jdbc:postgresql://localhost:5433/db, or returns null when it is not set
+  private static ConnectionPool openReplica(String user, String passwd)
+      throws SQLException {
+    String url = System.getProperty("amazon.replica.url");
+    if (url == null || url.isEmpty())
+      return null;
+    System.out.println("Replica URL: " + url + "\n");
+    return new ConnectionPool(
+        url, System.getProperty("amazon.replica.user", user), passwd,
+        Integer.getInteger("amazon.pool.min", 1),
+        Integer.getInteger("amazon.replica.poolMax",
+                           Integer.getInteger("amazon.pool.max", 8)),
+        Long.getLong("amazon.pool.maxWaitMillis", 30 * 1000L),
+        Long.getLong("amazon.pool.idleTimeoutMillis", 5 * 60 * 1000L),
+        Long.getLong("amazon.pool.validateAfterMillis", 5 * 1000L),
+        STATEMENT_CACHE_SIZE);
+  } // end openReplica
+
+  private void startMetrics() {
+    this._metrics = new QueryMetrics(this._pool);
+    this._metrics.register();
+    String file = System.getProperty("amazon.metrics.file");
+    if (file != null)
+      this._metrics.startDump(
+          file, Long.getLong("amazon.metrics.intervalSeconds", 60L) * 1000L);
+  } // end startMetrics
+
+  // orders go through a group-commit queue when -Damazon.orders.groupCommit
+  // is true
+  private void startOrderQueue() {
+    if (!Boolean.getBoolean("amazon.orders.groupCommit"))
+      return;
+    this._orderQueue = new OrderQueue(
+        this, Integer.getInteger("amazon.orders.queueSize", 10000),
+        Integer.getInteger("amazon.orders.maxBatch", 100),
+        Long.getLong("amazon.orders.windowMicros", 2000L));
+  } // end startOrderQueue
+
   // Method to calculate euclidean distance between two latitude, longitude
   // pairs.
   public double calculateDistance(double lat1, double long1, double lat2,
@@ -79,83 +213,215 @@ public class Amazon {
     double t2 = (long1 - long2) * (long1 - long2);
     return Math.sqrt(t1 + t2);
   }
+
+  /**
+   * Returns the spatial index over Store locations.
+   */
+  public StoreIndex storeIndex() { return this._storeIndex; }
+
+  /**
+   * Returns the search over product names.
+   */
+  public ProductSearch productSearch() { return this._productSearch; }
+
+  /**
+   * Returns the read-through cache of Store rows.
+   */
+  public StoreCache storeCache() { return this._storeCache; }
+
+  /**
+   * Returns the connection pool behind the JDBC helpers.
+   */
+  public ConnectionPool pool() { return this._pool; }
+
+  /**
+   * Returns the router that picks the primary or the replica for reads.
+   */
+  public ReplicaRouter replicaRouter() { return this._router; }
+
+  /**
+   * Returns the latency and row counts of the statements run so far.
+   */
+  public QueryMetrics metrics() { return this._metrics; }
+
   /**
    * Method to execute an update SQL statement.  Update SQL instructions
    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
    *
-   * @param sql the input SQL string
+   * @param sql the input SQL string, with {@code ?} for each parameter
+   * @param params the values bound to the placeholders, in order
+   * @return the number of rows affected
    * @throws java.sql.SQLException when update failed
    */
-  public void executeUpdate(String sql) throws SQLException {
-    // creates a statement object
-    Statement stmt = this._connection.createStatement();
-
-    // issues the update instruction
-    stmt.executeUpdate(sql);
+  public int executeUpdate(String sql, Object... params) throws SQLException {
+    PooledConnection conn = this._pool.borrow();
+    long start = System.nanoTime();
+    int rowCount = -1;
+    try {
+      // reuses the prepared statement for this SQL text
+      PreparedStatement stmt = prepare(conn, sql, params);
 
-    // close the instruction
-    stmt.close();
+      // issues the update instruction
+      rowCount = stmt.executeUpdate();
+      return rowCount;
+    } catch (SQLException e) {
+      conn.failed(e);
+      throw e;
+    } finally {
+      this._pool.release(conn);
+      this._metrics.record(QueryMetrics.UPDATE, sql, start, rowCount);
+    }
   } // end executeUpdate
 
   /**
    * Method to execute an input query SQL instruction (i.e. SELECT).  This
    * method issues the query to the DBMS and outputs the results to
-   * standard out.
+   * standard out as a table. Rows are streamed, so memory use does not grow
+   * with the size of the result beyond the rows that size the columns.
    *
-   * @param query the input query string
+   * @param query the input query string, with {@code ?} for each parameter
+   * @param params the values bound to the placeholders, in order
    * @return the number of rows returned
    * @throws java.sql.SQLException when failed to execute the query
    */
-  public int executeQueryAndPrintResult(String query) throws SQLException {
-    // creates a statement object
-    Statement stmt = this._connection.createStatement();
+  public int executeQueryAndPrintResult(String query, Object... params)
+      throws SQLException {
+    // iterates through the result set and output them to standard out.
+    ResultRenderer rows = printedRows();
+    stream(this._pool, QueryMetrics.PRINT_RESULT, query, rows, params);
+    return finish(rows);
+  } // end executeQueryAndPrintResult
 
-    // issues the query instruction
-    ResultSet rs = stmt.executeQuery(query);
+  /**
+   * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+   * each row to {@code handler} as it arrives. The query runs through a
+   * server-side cursor that fetches FETCH_SIZE rows at a time, so only one
+   * batch of rows is held in memory however large the result is.
+   *
+   * @param query the input query string, with {@code ?} for each parameter
+   * @param handler called once for every row, in result order
+   * @param params the values bound to the placeholders, in order
+   * @return the number of rows returned
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public int executeQueryAndStream(String query, RowHandler handler,
+                                   Object... params) throws SQLException {
+    return stream(this._pool, QueryMetrics.STREAM, query, handler, params);
+  } // end executeQueryAndStream
 
-    /*
-     ** obtains the metadata object for the returned result set.  The metadata
-     ** contains row and column info.
-     */
-    ResultSetMetaData rsmd = rs.getMetaData();
-    int numCol = rsmd.getColumnCount();
-    int rowCount = 0;
+  /**
+   * Like executeQueryAndStream, but for a query that may read slightly
+   * stale data: it runs on the replica when the ReplicaRouter allows it.
+   * When the replica fails before any row reached {@code handler}, the
+   * query is run again on the primary.
+   *
+   * @param userID the user the rows are shown to, or -1; users who just
+   *     wrote are served by the primary
+   * @param query the input query string, with {@code ?} for each parameter
+   * @param handler called once for every row, in result order
+   * @param params the values bound to the placeholders, in order
+   * @return the number of rows returned
+   * @throws java.sql.SQLException when failed to execute the query
+   */
+  public int executeReadOnlyQueryAndStream(int userID, String query,
+                                           final RowHandler handler,
+                                           Object... params)
+      throws SQLException {
+    ConnectionPool pool = this._router.readPool(userID);
+    if (!this._router.isReplica(pool))
+      return stream(this._pool, QueryMetrics.STREAM, query, handler, params);
+    final int[] delivered = {0};
+    try {
+      return stream(pool, QueryMetrics.REPLICA_STREAM, query, rs -> {
+        ++delivered[0];
+        handler.handle(rs);
+      }, params);
+    } catch (SQLException e) {
+      this._router.failed();
+      if (delivered[0] > 0)
+        throw e;
+      return stream(this._pool, QueryMetrics.STREAM, query, handler, params);
+    }
+  } // end executeReadOnlyQueryAndStream
 
-    // iterates through the result set and output them to standard out.
-    boolean outputHeader = true;
-    while (rs.next()) {
-      if (outputHeader) {
-        for (int i = 1; i <= numCol; i++) {
-          System.out.print(rsmd.getColumnName(i) + "\t");
+  private int stream(ConnectionPool pool, String operation, String query,
+                     RowHandler handler, Object... params)
+      throws SQLException {
+    PooledConnection conn = pool.borrow();
+    long start = System.nanoTime();
+    int rowCount = -1;
+    try {
+      // the cursor is declared explicitly because the bundled pg73 driver
+      // does not implement setFetchSize; it lives until the commit
+      conn.connection().setAutoCommit(false);
+      prepare(conn, DECLARE_CURSOR + query, params).executeUpdate();
+      PreparedStatement fetch = conn.prepare(FETCH_CURSOR);
+
+      // issues the query instruction, one batch at a time
+      int rows = 0;
+      int fetched;
+      do {
+        fetched = 0;
+        ResultSet rs = fetch.executeQuery();
+        try {
+          while (rs.next()) {
+            handler.handle(rs);
+            ++fetched;
+          } // end while
+        } finally {
+          rs.close();
         }
-        System.out.println();
-        outputHeader = false;
-      }
-      for (int i = 1; i <= numCol; ++i)
-        System.out.print(rs.getString(i) + "\t");
-      System.out.println();
-      ++rowCount;
-    } // end while
-    stmt.close();
-    return rowCount;
-  } // end executeQuery
+        rows += fetched;
+      } while (fetched == FETCH_SIZE);
+      conn.connection().commit();
+      rowCount = rows;
+      return rowCount;
+    } catch (SQLException e) {
+      conn.failed(e);
+      throw e;
+    } finally {
+      // the pool puts the connection back into autocommit mode
+      pool.release(conn);
+      this._metrics.record(operation, query, start, rowCount);
+    }
+  } // end stream
 
   /**
    * Method to execute an input query SQL instruction (i.e. SELECT).  This
    * method issues the query to the DBMS and returns the results as
-   * a list of records. Each record in turn is a list of attribute values
+   * a list of records. Each record in turn is a list of attribute values.
+   * The whole result is held in memory; use executeQueryAndStream for
+   * results that can grow with the size of a table.
    *
-   * @param query the input query string
+   * @param query the input query string, with {@code ?} for each parameter
+   * @param params the values bound to the placeholders, in order
    * @return the query result as a list of records
    * @throws java.sql.SQLException when failed to execute the query
    */
-  public List<List<String>> executeQueryAndReturnResult(String query)
+  public List<List<String>> executeQueryAndReturnResult(String query,
+                                                        Object... params)
       throws SQLException {
-    // creates a statement object
-    Statement stmt = this._connection.createStatement();
+    PooledConnection conn = this._pool.borrow();
+    long start = System.nanoTime();
+    int rowCount = -1;
+    try {
+      List<List<String>> result = returnResult(prepare(conn, query, params));
+      rowCount = result.size();
+      return result;
+    } catch (SQLException e) {
+      conn.failed(e);
+      throw e;
+    } finally {
+      this._pool.release(conn);
+      this._metrics.record(QueryMetrics.RETURN_RESULT, query, start,
+                           rowCount);
+    }
+  } // end executeQueryAndReturnResult
 
+  private List<List<String>> returnResult(PreparedStatement stmt)
+      throws SQLException {
     // issues the query instruction
-    ResultSet rs = stmt.executeQuery(query);
+    ResultSet rs = stmt.executeQuery();
 
     /*
      ** obtains the metadata object for the returned result set.  The metadata
@@ -163,10 +429,8 @@ public class Amazon {
      */
     ResultSetMetaData rsmd = rs.getMetaData();
     int numCol = rsmd.getColumnCount();
-    int rowCount = 0;
 
     // iterates through the result set and saves the data returned by the query.
-    boolean outputHeader = false;
     List<List<String>> result = new ArrayList<List<String>>();
     while (rs.next()) {
       List<String> record = new ArrayList<String>();
@@ -174,65 +438,718 @@ public class Amazon {
         record.add(rs.getString(i));
       result.add(record);
     } // end while
-    stmt.close();
+    rs.close();
     return result;
-  } // end executeQueryAndReturnResult
+  } // end returnResult
 
   /**
    * Method to execute an input query SQL instruction (i.e. SELECT).  This
    * method issues the query to the DBMS and returns the number of results
    *
-   * @param query the input query string
+   * @param query the input query string, with {@code ?} for each parameter
+   * @param params the values bound to the placeholders, in order
    * @return the number of rows returned
    * @throws java.sql.SQLException when failed to execute the query
    */
-  public int executeQuery(String query) throws SQLException {
-    // creates a statement object
-    Statement stmt = this._connection.createStatement();
-
-    // issues the query instruction
-    ResultSet rs = stmt.executeQuery(query);
+  public int executeQuery(String query, Object... params) throws SQLException {
+    PooledConnection conn = this._pool.borrow();
+    long start = System.nanoTime();
+    int rowCount = -1;
+    try {
+      // issues the query instruction
+      ResultSet rs = prepare(conn, query, params).executeQuery();
 
-    int rowCount = 0;
+      int rows = 0;
 
-    // iterates through the result set and count nuber of results.
-    while (rs.next()) {
-      rowCount++;
-    } // end while
-    stmt.close();
-    return rowCount;
+      // iterates through the result set and count nuber of results.
+      while (rs.next()) {
+        rows++;
+      } // end while
+      rs.close();
+      rowCount = rows;
+      return rowCount;
+    } catch (SQLException e) {
+      conn.failed(e);
+      throw e;
+    } finally {
+      this._pool.release(conn);
+      this._metrics.record(QueryMetrics.QUERY, query, start, rowCount);
+    }
   }
 
+  /**
+   * Looks up the user with the given credentials.
+   *
+   * @param name the user name
+   * @param password the user password
+   * @return the Users row (userID, name, password, latitude, longitude,
+   *     type), or null if the credentials do not match
+   * @throws java.sql.SQLException when the lookup fails
+   */
+  public List<String> findUser(String name, String password)
+      throws SQLException {
+    List<List<String>> userRecords = executeQueryAndReturnResult(
+        "SELECT * FROM Users WHERE name = ? AND password = ?", name, password);
+    return userRecords.isEmpty() ? null : userRecords.get(0);
+  } // end findUser
+
+  // locks the Product row, checks the stock and inserts the order
+  static final String PLACE_ORDER =
+      "SELECT order_number, units_left FROM place_order(?, ?, ?, ?)";
+
+  /**
+   * Places an order and waits until it is committed. With
+   * -Damazon.orders.groupCommit=true the order goes through the OrderQueue
+   * and shares its commit with the orders placed around the same time;
+   * otherwise it is placed on its own by submitOrderNow.
+   *
+   * @param customerID the user placing the order
+   * @param storeID the store selling the product
+   * @param productName the product ordered
+   * @param units the number of units ordered
+   * @return the order number and the units left, see OrderResult
+   * @throws java.sql.SQLException when the order cannot be placed
+   */
+  public OrderResult submitOrder(int customerID, int storeID,
+                                 String productName, int units)
+      throws SQLException {
+    OrderResult result;
+    try {
+      if (this._orderQueue == null)
+        result = submitOrderNow(customerID, storeID, productName, units);
+      else
+        result =
+            this._orderQueue.submit(customerID, storeID, productName, units)
+                .get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while placing the order");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException)
+        throw (SQLException)e.getCause();
+      throw new SQLException(e.getCause().getMessage(), e.getCause());
+    }
+    if (result.isPlaced())
+      this._router.wrote(customerID);
+    return result;
+  } // end submitOrder
+
+  /**
+   * Returns the group-commit queue, or null when orders are placed one at
+   * a time.
+   */
+  public OrderQueue orderQueue() { return this._orderQueue; }
+
+  /**
+   * Places an order with a single round trip to the database. The
+   * place_order function locks the Product row, checks the stock and inserts
+   * the order together, so concurrent buyers of the same product cannot
+   * oversell it.
+   *
+   * @param customerID the user placing the order
+   * @param storeID the store selling the product
+   * @param productName the product ordered
+   * @param units the number of units ordered
+   * @return the order number and the units left, see OrderResult
+   * @throws java.sql.SQLException when the order cannot be placed
+   */
+  public OrderResult submitOrderNow(int customerID, int storeID,
+                                    String productName, int units)
+      throws SQLException {
+    List<List<String>> result = executeQueryAndReturnResult(
+        PLACE_ORDER, customerID, storeID, productName, units);
+    List<String> row = result.get(0);
+    return new OrderResult(
+        row.get(0) == null ? null : Integer.valueOf(row.get(0)),
+        row.get(1) == null ? null : Integer.valueOf(row.get(1)));
+  } // end submitOrderNow
+
+  private static final String USER_LOCATION =
+      "SELECT latitude, longitude FROM Users WHERE userID = ?";
+
+  /**
+   * Finds the stores within STORE_RADIUS miles of a user's location.
+   *
+   * @param userID the user whose location is used
+   * @return the nearby stores, or null if there is no such user
+   * @throws java.sql.SQLException when the user cannot be read
+   */
+  public List<StoreIndex.Hit> storesNear(int userID) throws SQLException {
+    final double[] location = new double[2];
+    RowHandler read = rs -> {
+      location[0] = rs.getDouble(1);
+      location[1] = rs.getDouble(2);
+    };
+    // a user created moments ago may not have reached the replica yet
+    int found = executeReadOnlyQueryAndStream(userID, USER_LOCATION, read,
+                                              userID);
+    if (found == 0)
+      found = executeQueryAndStream(USER_LOCATION, read, userID);
+    if (found == 0)
+      return null;
+    double userLat = location[0];
+    double userLong = location[1];
+    // Only the grid cells around the user are looked at
+    return this._storeIndex.withinRadius(userLat, userLong, STORE_RADIUS);
+  } // end storesNear
+
+  /**
+   * Returns the IDs of up to {@code limit} stores that carry a product, in
+   * storeID order.
+   *
+   * @param productName the exact product name
+   * @param limit the most stores returned
+   * @throws java.sql.SQLException when the query fails
+   */
+  public List<Integer> storesCarrying(String productName, int limit)
+      throws SQLException {
+    final List<Integer> stores = new ArrayList<Integer>();
+    executeReadOnlyQueryAndStream(
+        -1,
+        "SELECT storeID FROM Product WHERE productName = ? ORDER BY storeID LIMIT ?",
+        rs -> stores.add(rs.getInt(1)), productName, limit);
+    return stores;
+  } // end storesCarrying
+
+  /**
+   * Streams the stores that have at least {@code units} of a product in
+   * stock, nearest to the user first (storeID, latitude, longitude,
+   * numberOfUnits, pricePerUnit, distance), to {@code handler}. One query
+   * answers it: product_productName_numberOfUnits_idx finds the stocked
+   * Product rows, each joins its Store by primary key, and only the
+   * {@code limit} nearest are kept while sorting.
+   *
+   * @param userID the user whose location is used
+   * @param productName the product wanted
+   * @param units the number of units wanted
+   * @param limit the most stores returned
+   * @return the number of stores, 0 also when there is no such user
+   * @throws java.sql.SQLException when the query fails
+   */
+  public int nearestStoresWithStock(int userID, String productName, int units,
+                                    int limit, RowHandler handler)
+      throws SQLException {
+    return executeReadOnlyQueryAndStream(
+        userID,
+        "SELECT s.storeID, s.latitude, s.longitude, p.numberOfUnits, p.pricePerUnit, "
+            + "sqrt((s.latitude - u.latitude) * (s.latitude - u.latitude) + (s.longitude - u.longitude) * (s.longitude - u.longitude)) AS distance "
+            + "FROM Users u CROSS JOIN Product p JOIN Store s ON s.storeID = p.storeID "
+            + "WHERE u.userID = ? AND p.productName = ? AND p.numberOfUnits >= ? "
+            + "ORDER BY distance, s.storeID LIMIT ?",
+        handler, userID, productName, units, limit);
+  } // end nearestStoresWithStock
+
+  /**
+   * Streams the products of a store (productName, numberOfUnits,
+   * pricePerUnit) to {@code handler}.
+   *
+   * @return the number of products
+   * @throws java.sql.SQLException when the query fails
+   */
+  public int listProducts(int storeID, RowHandler handler)
+      throws SQLException {
+    return executeReadOnlyQueryAndStream(
+        -1,
+        "SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = ?",
+        handler, storeID);
+  } // end listProducts
+
+  /**
+   * Streams the five most ordered products (productName, orderCount) over
+   * the stores of a manager to {@code handler}. The counts come from the
+   * ManagerProductSales totals kept by trg_update_sales_after_order, and
+   * the top five are the first five entries of its (managerID, orderCount
+   * DESC) index, however many products the stores sell. The cost is paid
+   * on the write side instead: every batch of orders updates one total per
+   * (manager, product), and a store that changes manager has both
+   * managers' totals recomputed.
+   *
+   * @return the number of rows
+   * @throws java.sql.SQLException when the query fails
+   */
+  public int popularProducts(int managerID, RowHandler handler)
+      throws SQLException {
+    return executeReadOnlyQueryAndStream(
+        managerID,
+        "SELECT productName, orderCount FROM ManagerProductSales "
+            + "WHERE managerID = ? ORDER BY orderCount DESC LIMIT 5",
+        handler, managerID);
+  } // end popularProducts
+
+  /**
+   * Streams the five customers (customerID, orderCount) with the most
+   * orders over the stores of a manager to {@code handler}, read from the
+   * front of the ManagerCustomerSales index like popularProducts.
+   *
+   * @return the number of rows
+   * @throws java.sql.SQLException when the query fails
+   */
+  public int popularCustomers(int managerID, RowHandler handler)
+      throws SQLException {
+    return executeReadOnlyQueryAndStream(
+        managerID,
+        "SELECT customerID, orderCount FROM ManagerCustomerSales "
+            + "WHERE managerID = ? ORDER BY orderCount DESC LIMIT 5",
+        handler, managerID);
+  } // end popularCustomers
+
+  /**
+   * Streams the five most recent orders to {@code handler}: all orders for a
+   * manager (orderNumber, name, storeID, productName, unitsOrdered,
+   * orderTime), otherwise the user's own orders (the Orders columns).
+   *
+   * @param userID the user asking
+   * @param userType the type of that user
+   * @return the number of rows
+   * @throws java.sql.SQLException when the query fails
+   */
+  public int recentOrders(int userID, String userType, RowHandler handler)
+      throws SQLException {
+    if ("manager".equals(userType))
+      return executeReadOnlyQueryAndStream(
+          userID,
+          "SELECT o.orderNumber, u.name, o.storeID, o.productName, o.unitsOrdered, o.orderTime FROM Orders o INNER JOIN Users u ON o.customerID = u.userID ORDER BY o.orderTime DESC LIMIT 5",
+          handler);
+    return executeReadOnlyQueryAndStream(
+        userID,
+        "SELECT * FROM Orders WHERE customerID = ? ORDER BY orderTime DESC LIMIT 5",
+        handler, userID);
+  } // end recentOrders
+
+  /**
+   * Streams the five most recent product updates of a manager
+   * (updateNumber, storeID, name, productName, updatedOn) to
+   * {@code handler}.
+   *
+   * @return the number of rows
+   * @throws java.sql.SQLException when the query fails
+   */
+  public int recentUpdates(int managerID, RowHandler handler)
+      throws SQLException {
+    return executeReadOnlyQueryAndStream(
+        managerID,
+        "SELECT updateNumber, storeID, u.name, productName, updatedOn FROM ProductUpdates INNER JOIN Users u ON managerID = u.userID WHERE managerID = ? ORDER BY updatedOn DESC LIMIT 5",
+        handler, managerID);
+  } // end recentUpdates
+
+  /**
+   * Streams the sales of every store of a manager over [from, to) to
+   * {@code handler}, one row per store and period (storeID, period,
+   * unitsSold, revenue, orderCount). Hours are summed from
+   * StoreSalesHourly, days, weeks and months from StoreSalesDaily, so the
+   * cost grows with the number of buckets in the range and not with the
+   * number of orders.
+   *
+   * @param managerID the manager whose stores are reported
+   * @param granularity hour, day, week or month
+   * @param from the first day of the range
+   * @param to the day after the range
+   * @return the number of rows
+   * @throws IllegalArgumentException when the granularity is unknown
+   * @throws java.sql.SQLException when the query fails
+   */
+  public int salesByPeriod(int managerID, String granularity, Date from,
+                           Date to, RowHandler handler) throws SQLException {
+    switch (granularity) {
+    case "hour":
+      return executeReadOnlyQueryAndStream(
+          managerID,
+          "SELECT r.storeID, r.hour AS period, SUM(r.unitsSold) AS unitsSold, SUM(r.revenue) AS revenue, SUM(r.orderCount) AS orderCount "
+              + "FROM StoreSalesHourly r JOIN Store s ON s.storeID = r.storeID "
+              + "WHERE s.managerID = ? AND r.hour >= ? AND r.hour < ? "
+              + "GROUP BY 1, 2 ORDER BY 1, 2",
+          handler, managerID, new Timestamp(from.getTime()),
+          new Timestamp(to.getTime()));
+    case "day":
+    case "week":
+    case "month":
+      return executeReadOnlyQueryAndStream(
+          managerID,
+          "SELECT r.storeID, CAST(date_trunc(?, r.day) AS date) AS period, SUM(r.unitsSold) AS unitsSold, SUM(r.revenue) AS revenue, SUM(r.orderCount) AS orderCount "
+              + "FROM StoreSalesDaily r JOIN Store s ON s.storeID = r.storeID "
+              + "WHERE s.managerID = ? AND r.day >= ? AND r.day < ? "
+              + "GROUP BY 1, 2 ORDER BY 1, 2",
+          handler, granularity, managerID, from, to);
+    default:
+      throw new IllegalArgumentException("Unknown granularity: " +
+                                         granularity);
+    }
+  } // end salesByPeriod
+
+  /**
+   * Streams the sales of every product of a manager's stores in two date
+   * ranges side by side (storeID, productName, unitsA, revenueA, unitsB,
+   * revenueB) to {@code handler}, from StoreSalesDaily. Products sold in
+   * only one of the ranges show zeros for the other.
+   *
+   * @param managerID the manager whose stores are reported
+   * @param fromA the first day of range A
+   * @param toA the day after range A
+   * @param fromB the first day of range B
+   * @param toB the day after range B
+   * @return the number of rows
+   * @throws java.sql.SQLException when the query fails
+   */
+  public int compareSales(int managerID, Date fromA, Date toA, Date fromB,
+                          Date toB, RowHandler handler) throws SQLException {
+    return executeReadOnlyQueryAndStream(
+        managerID,
+        "SELECT r.storeID, r.productName, "
+            + "COALESCE(SUM(r.unitsSold) FILTER (WHERE r.day >= ? AND r.day < ?), 0) AS unitsA, "
+            + "COALESCE(SUM(r.revenue) FILTER (WHERE r.day >= ? AND r.day < ?), 0) AS revenueA, "
+            + "COALESCE(SUM(r.unitsSold) FILTER (WHERE r.day >= ? AND r.day < ?), 0) AS unitsB, "
+            + "COALESCE(SUM(r.revenue) FILTER (WHERE r.day >= ? AND r.day < ?), 0) AS revenueB "
+            + "FROM StoreSalesDaily r JOIN Store s ON s.storeID = r.storeID "
+            + "WHERE s.managerID = ? AND ((r.day >= ? AND r.day < ?) OR (r.day >= ? AND r.day < ?)) "
+            + "GROUP BY r.storeID, r.productName ORDER BY r.storeID, r.productName",
+        handler, fromA, toA, fromA, toA, fromB, toB, fromB, toB, managerID,
+        fromA, toA, fromB, toB);
+  } // end compareSales
+
+  /**
+   * Recomputes the sales rollups from the order history with
+   * rebuild_sales_rollups, e.g. after orders were loaded without the
+   * triggers. Orders are held off while it runs.
+   *
+   * @param from the first day rebuilt, or null for the whole history
+   * @throws java.sql.SQLException when the rebuild fails
+   */
+  public void rebuildSalesRollups(Date from) throws SQLException {
+    executeQueryAndReturnResult("SELECT rebuild_sales_rollups(?)", from);
+  } // end rebuildSalesRollups
+
+  /**
+   * Sets the stock and/or price of a product. Whether the caller may change
+   * the store is checked by the caller.
+   *
+   * @param storeID the store selling the product
+   * @param productName the product to change
+   * @param units the new number of units, or null to keep it
+   * @param price the new price per unit, or null to keep it
+   * @return 1 if the product was updated, 0 if there is no such product
+   * @throws IllegalArgumentException when neither value is given
+   * @throws java.sql.SQLException when the update fails
+   */
+  public int updateProduct(int storeID, String productName, Integer units,
+                           Double price) throws SQLException {
+    List<String> updates = new ArrayList<>();
+    List<Object> values = new ArrayList<>();
+    if (units != null) {
+      updates.add("numberOfUnits = ?");
+      values.add(units);
+    }
+    if (price != null) {
+      updates.add("pricePerUnit = ?");
+      values.add(price);
+    }
+    if (updates.isEmpty())
+      throw new IllegalArgumentException("No updates to make.");
+
+    String updateString = String.join(", ", updates);
+    values.add(storeID);
+    values.add(productName);
+    int updated = executeUpdate("UPDATE Product SET " + updateString +
+                                    " WHERE storeID = ? AND productName = ?",
+                                values.toArray());
+    // the store's manager sees the change in recentUpdates right away
+    StoreCache.Store store = this._storeCache.get(storeID);
+    if (updated > 0 && store != null)
+      this._router.wrote(store.managerID);
+    return updated;
+  } // end updateProduct
+
+  /** Column names of the rows returned by usersPage. */
+  public static final String[] USER_COLUMNS = {
+      "userID", "name", "password", "latitude", "longitude", "type"};
+
+  /** Column names of the rows returned by productsPage. */
+  public static final String[] PRODUCT_COLUMNS = {
+      "storeID", "productName", "numberOfUnits", "pricePerUnit"};
+
+  /**
+   * Returns up to {@code limit} Users rows in userID order, starting after
+   * {@code fromUserID} or, going back, ending before it.
+   *
+   * @param type only users of this type, or null for all users
+   * @param fromUserID the userID the page starts after or ends before
+   * @param forward true for the rows after fromUserID
+   * @param limit the page size
+   * @throws java.sql.SQLException when the query fails
+   */
+  public List<List<String>> usersPage(String type, int fromUserID,
+                                      boolean forward, int limit)
+      throws SQLException {
+    List<List<String>> rows;
+    if (type == null)
+      rows = forward
+                 ? executeQueryAndReturnResult(
+                       "SELECT * FROM Users WHERE userID > ? ORDER BY userID LIMIT ?",
+                       fromUserID, limit)
+                 : executeQueryAndReturnResult(
+                       "SELECT * FROM Users WHERE userID < ? ORDER BY userID DESC LIMIT ?",
+                       fromUserID, limit);
+    else
+      rows = forward
+                 ? executeQueryAndReturnResult(
+                       "SELECT * FROM Users WHERE type = CAST(? AS char(10)) AND userID > ? ORDER BY userID LIMIT ?",
+                       type, fromUserID, limit)
+                 : executeQueryAndReturnResult(
+                       "SELECT * FROM Users WHERE type = CAST(? AS char(10)) AND userID < ? ORDER BY userID DESC LIMIT ?",
+                       type, fromUserID, limit);
+    if (!forward)
+      Collections.reverse(rows);
+    return rows;
+  } // end usersPage
+
+  /**
+   * Returns up to {@code limit} Product rows in (storeID, productName)
+   * order, starting after the given key or, going back, ending before it.
+   *
+   * @param storeID only the products of this store, or null for all
+   * @param fromStoreID the storeID of the key
+   * @param fromProduct the productName of the key
+   * @param forward true for the rows after the key
+   * @param limit the page size
+   * @throws java.sql.SQLException when the query fails
+   */
+  public List<List<String>> productsPage(Integer storeID, int fromStoreID,
+                                         String fromProduct, boolean forward,
+                                         int limit) throws SQLException {
+    // the casts keep the comparison on char(30), so the primary key index
+    // serves it
+    List<List<String>> rows;
+    if (storeID == null)
+      rows = forward
+                 ? executeQueryAndReturnResult(
+                       "SELECT * FROM Product WHERE (storeID, productName) > (?, CAST(? AS char(30))) ORDER BY storeID, productName LIMIT ?",
+                       fromStoreID, fromProduct, limit)
+                 : executeQueryAndReturnResult(
+                       "SELECT * FROM Product WHERE (storeID, productName) < (?, CAST(? AS char(30))) ORDER BY storeID DESC, productName DESC LIMIT ?",
+                       fromStoreID, fromProduct, limit);
+    else
+      rows = forward
+                 ? executeQueryAndReturnResult(
+                       "SELECT * FROM Product WHERE storeID = ? AND (storeID, productName) > (?, CAST(? AS char(30))) ORDER BY storeID, productName LIMIT ?",
+                       storeID, fromStoreID, fromProduct, limit)
+                 : executeQueryAndReturnResult(
+                       "SELECT * FROM Product WHERE storeID = ? AND (storeID, productName) < (?, CAST(? AS char(30))) ORDER BY storeID DESC, productName DESC LIMIT ?",
+                       storeID, fromStoreID, fromProduct, limit);
+    if (!forward)
+      Collections.reverse(rows);
+    return rows;
+  } // end productsPage
+
+  /**
+   * Returns a pager over the Users table, keyed by userID.
+   *
+   * @param type only users of this type, or null for all users
+   * @param pageSize rows per page
+   */
+  public KeysetPager userPager(final String type, int pageSize) {
+    return new KeysetPager(new KeysetPager.Source() {
+      public List<List<String>> fetch(Object[] from, boolean forward,
+                                      int limit) throws SQLException {
+        return usersPage(type, (Integer)from[0], forward, limit);
+      }
+
+      public Object[] keyOf(List<String> row) {
+        return new Object[] {Integer.valueOf(row.get(0).trim())};
+      }
+    }, new Object[] {Integer.MIN_VALUE}, new Object[] {Integer.MAX_VALUE},
+                           pageSize);
+  } // end userPager
+
+  /**
+   * Returns a pager over the Product table, keyed by (storeID,
+   * productName).
+   *
+   * @param storeID only the products of this store, or null for all
+   * @param pageSize rows per page
+   */
+  public KeysetPager productPager(final Integer storeID, int pageSize) {
+    return new KeysetPager(new KeysetPager.Source() {
+      public List<List<String>> fetch(Object[] from, boolean forward,
+                                      int limit) throws SQLException {
+        return productsPage(storeID, (Integer)from[0], (String)from[1],
+                            forward, limit);
+      }
+
+      public Object[] keyOf(List<String> row) {
+        return new Object[] {Integer.valueOf(row.get(0).trim()), row.get(1)};
+      }
+    }, new Object[] {Integer.MIN_VALUE, ""},
+                           new Object[] {Integer.MAX_VALUE, ""}, pageSize);
+  } // end productPager
+
+  /**
+   * Returns a renderer that prints rows to standard out as a table, sized
+   * by the first TABLE_SAMPLE_ROWS rows. Call finish() on it once the
+   * query has returned; nothing may be printed before that.
+   */
+  static ResultRenderer printedRows() {
+    return ResultRenderer.table(
+        new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16),
+        TABLE_SAMPLE_ROWS);
+  } // end printedRows
+
+  // flushes a renderer fed by one of the query helpers; the console and
+  // the export files only fail on real I/O errors
+  private static int finish(ResultRenderer rows) {
+    try {
+      return rows.finish();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  } // end finish
+
+  /**
+   * Writes the whole of {@code table} to {@code file} as CSV (with a header
+   * line, loadable by BulkLoader) or as a JSON array of objects. Rows are
+   * streamed from a server-side cursor straight to the file, so even Orders
+   * is exported in constant memory.
+   *
+   * @param table one of the tables created by create_tables.sql
+   * @param format "csv" or "json"
+   * @param file where the export is written; it is replaced if it exists
+   * @return the number of rows written
+   * @throws java.sql.SQLException when the query fails
+   * @throws java.io.IOException when the file cannot be written
+   */
+  public int exportTable(String table, String format, File file)
+      throws SQLException, IOException {
+    String query = exportQuery(table);
+    if (query == null)
+      throw new IllegalArgumentException("Unknown table: " + table);
+    if (!format.equalsIgnoreCase("csv") && !format.equalsIgnoreCase("json"))
+      throw new IllegalArgumentException("Unknown format: " + format);
+    try (Writer out = new BufferedWriter(
+             new OutputStreamWriter(new FileOutputStream(file),
+                                    StandardCharsets.UTF_8),
+             1 << 16)) {
+      ResultRenderer rows = format.equalsIgnoreCase("csv")
+                                ? ResultRenderer.csv(out)
+                                : ResultRenderer.json(out);
+      try {
+        stream(this._pool, QueryMetrics.EXPORT, query, rows);
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      return rows.finish();
+    }
+  } // end exportTable
+
+  // plain scans, which read the table in storage order without sorting
+  private static String exportQuery(String table) {
+    switch (table.toLowerCase()) {
+    case "users":
+      return "SELECT * FROM Users";
+    case "store":
+      return "SELECT * FROM Store";
+    case "product":
+      return "SELECT * FROM Product";
+    case "warehouse":
+      return "SELECT * FROM Warehouse";
+    case "orders":
+      return "SELECT * FROM Orders";
+    case "productsupplyrequests":
+      return "SELECT * FROM ProductSupplyRequests";
+    case "productupdates":
+      return "SELECT * FROM ProductUpdates";
+    default:
+      return null;
+    }
+  } // end exportQuery
+
+  /**
+   * Returns a renderer that prints the given columns of every row to
+   * standard out with {@code format}, after printing {@code header} with
+   * the same format before the first row. Output is buffered like
+   * printedRows(); call finish() on the renderer once the query has
+   * returned.
+   *
+   * @param format a printf format with one %s per column
+   * @param header the column titles
+   * @param columns the 1-based result columns to print, in order
+   */
+  static ResultRenderer formattedRows(final String format,
+                                      final String[] header,
+                                      final int... columns) {
+    Writer out =
+        new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+    return new ResultRenderer(out) {
+      protected void begin(ResultSetMetaData rsmd) throws IOException {
+        this.out.write(String.format(format, (Object[])header));
+      }
+
+      protected void row(ResultSet rs) throws SQLException, IOException {
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; ++i)
+          values[i] = rs.getString(columns[i]);
+        this.out.write(String.format(format, values));
+      }
+    };
+  } // end formattedRows
+
   /**
    * Method to fetch the last value from sequence. This
    * method issues the query to the DBMS and returns the current
-   * value of sequence used for autogenerated keys
+   * value of sequence used for autogenerated keys. currval is local to a
+   * database session, so this only sees values drawn on the same pooled
+   * connection; prefer INSERT ... RETURNING for new keys.
    *
    * @param sequence name of the DB sequence
    * @return current value of a sequence
    * @throws java.sql.SQLException when failed to execute the query
    */
   public int getCurrSeqVal(String sequence) throws SQLException {
-    Statement stmt = this._connection.createStatement();
-
-    ResultSet rs =
-        stmt.executeQuery(String.format("Select currval('%s')", sequence));
-    if (rs.next())
-      return rs.getInt(1);
+    List<List<String>> rs =
+        executeQueryAndReturnResult("SELECT currval(?)", sequence);
+    if (!rs.isEmpty())
+      return Integer.parseInt(rs.get(0).get(0));
     return -1;
   }
 
   /**
-   * Method to close the physical connection if it is open.
+   * Looks up the cached prepared statement for {@code sql} and binds the
+   * parameters to it. A null parameter is bound as an SQL NULL.
+   */
+  static PreparedStatement prepare(PooledConnection conn, String sql,
+                                   Object... params) throws SQLException {
+    // the server may keep the plan unless the driver would declare a
+    // parameter as text; see StatementCache
+    boolean serverPrepare = true;
+    for (Object param : params) {
+      if (param == null || param instanceof String)
+        serverPrepare = false;
+    }
+    PreparedStatement stmt = conn.prepare(sql, serverPrepare);
+    stmt.clearParameters();
+    for (int i = 0; i < params.length; ++i) {
+      if (params[i] == null)
+        stmt.setNull(i + 1, Types.NULL);
+      else
+        stmt.setObject(i + 1, params[i]);
+    }
+    return stmt;
+  } // end prepare
+
+  /**
+   * Method to close the physical connections if they are open.
    */
   public void cleanup() {
-    try {
-      if (this._connection != null) {
-        this._connection.close();
-      } // end if
-    } catch (SQLException e) {
-      // ignored.
-    } // end try
+    if (this._orderQueue != null) {
+      // places the queued orders before the pool goes away
+      this._orderQueue.close();
+    } // end if
+    if (this._metrics != null) {
+      this._metrics.close();
+    } // end if
+    if (this._router != null && this._router.replica() != null) {
+      this._router.replica().close();
+    } // end if
+    if (this._pool != null) {
+      this._pool.close();
+    } // end if
   }   // end cleanup
 
   /**
@@ -260,6 +1177,13 @@ public class Amazon {
       String dbport = args[1];
       String user = args[2];
       esql = new Amazon(dbname, dbport, user, "");
+      try {
+        // orders fail once the current month has no partition
+        new OrderPartitions(esql).ensureAhead(
+            Integer.getInteger("amazon.orders.partitionsAhead", 3));
+      } catch (SQLException e) {
+        System.err.println(e.getMessage());
+      }
 
       boolean keepon = true;
       while (keepon) {
@@ -295,6 +1219,9 @@ public class Amazon {
               System.out.println("2. Update User Information");
               System.out.println("3. View All Products");
               System.out.println("4. Update Product Information");
+              System.out.println("5. Import Orders from CSV");
+              System.out.println("6. Export a Table to CSV or JSON");
+              System.out.println("7. Rebuild Sales Rollups");
 
               System.out.println(".........................");
               System.out.println("20. Log out");
@@ -311,6 +1238,15 @@ public class Amazon {
               case 4:
                 updateProductInfo(esql);
                 break;
+              case 5:
+                importOrders(esql);
+                break;
+              case 6:
+                exportTable(esql);
+                break;
+              case 7:
+                rebuildSalesRollups(esql);
+                break;
 
               case 20:
                 usermenu = false;
@@ -335,6 +1271,8 @@ public class Amazon {
               System.out.println("6. View 5 Popular Customers");
               System.out.println(
                   "7. Place Product Supply Request to Warehouse");
+              System.out.println("8. View Sales by Period");
+              System.out.println("9. Compare Sales Between Periods");
 
               System.out.println(".........................");
               System.out.println("20. Log out");
@@ -360,6 +1298,12 @@ public class Amazon {
               case 7:
                 placeProductSupplyRequests(esql);
                 break;
+              case 8:
+                viewSalesByPeriod(esql);
+                break;
+              case 9:
+                compareSalesPeriods(esql);
+                break;
 
               case 20:
                 usermenu = false;
@@ -378,6 +1322,7 @@ public class Amazon {
               System.out.println("2. View Product List");
               System.out.println("3. Place a Order");
               System.out.println("4. View 5 recent orders");
+              System.out.println("5. Find Nearest Stores with a Product");
 
               System.out.println(".........................");
               System.out.println("20. Log out");
@@ -394,6 +1339,9 @@ public class Amazon {
               case 4:
                 viewRecentOrders(esql);
                 break;
+              case 5:
+                findProduct(esql);
+                break;
 
               case 20:
                 usermenu = false;
@@ -467,9 +1415,9 @@ public class Amazon {
       String longitude = in.readLine();
 
       // Check for duplicate names
-      String query = String.format(
-          "SELECT name, password FROM Users WHERE name = '%s'", name);
-      List<List<String>> userData = esql.executeQueryAndReturnResult(query);
+      String query = "SELECT name, password FROM Users WHERE name = ?";
+      List<List<String>> userData =
+          esql.executeQueryAndReturnResult(query, name);
       if (!userData.isEmpty() && userData.get(0).get(1).equals(password)) {
         System.err.println("Error: This user already exists.");
         return;
@@ -509,11 +1457,10 @@ public class Amazon {
 
       String type = "Customer";
 
-      query = String.format(
-          "INSERT INTO Users (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')",
-          name, password, latitude, longitude, type);
+      query =
+          "INSERT INTO Users (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)";
 
-      esql.executeUpdate(query);
+      esql.executeUpdate(query, name, password, lat, lon, type);
       System.out.println("User successfully created!");
     } catch (Exception e) {
       System.err.println(e.getMessage());
@@ -531,13 +1478,10 @@ public class Amazon {
       System.out.print("\tEnter password: ");
       String password = in.readLine();
 
-      String query = String.format(
-          "SELECT * FROM Users WHERE name = '%s' AND password = '%s'", name,
-          password);
-      List<List<String>> userRecords = esql.executeQueryAndReturnResult(query);
-      if (!userRecords.isEmpty()) {
-        loggedInUserID = Integer.parseInt(userRecords.get(0).get(0));
-        loggedInUserType = userRecords.get(0).get(5).trim();
+      List<String> user = esql.findUser(name, password);
+      if (user != null) {
+        loggedInUserID = Integer.parseInt(user.get(0));
+        loggedInUserType = user.get(5).trim();
         return name;
       }
       System.err.println("Error: Login failed.");
@@ -556,39 +1500,19 @@ public class Amazon {
    * */
   public static void viewStores(Amazon esql) {
     try {
-      // Get current user's location
-      String query = String.format(
-          "SELECT latitude, longitude FROM Users WHERE userID = '%s'",
-          loggedInUserID);
-      List<List<String>> userData = esql.executeQueryAndReturnResult(query);
-      if (userData.isEmpty()) {
+      List<StoreIndex.Hit> stores = esql.storesNear(loggedInUserID);
+      if (stores == null) {
         System.err.println("Error: User not found");
         return;
       }
-      double userLat = Double.parseDouble(userData.get(0).get(0));
-      double userLong = Double.parseDouble(userData.get(0).get(1));
-
-      // Retrieve all stores
-      query = "SELECT storeID, latitude, longitude FROM Store";
-      List<List<String>> storeData = esql.executeQueryAndReturnResult(query);
 
       System.out.println("Stores within 30 miles:");
-      boolean found = false;
+      boolean found = !stores.isEmpty();
       System.out.printf("%-10s %-10s %-10s\n", "Store ID", "Latitude",
                         "Longitude");
-      for (List<String> store : storeData) {
-        int storeID = Integer.parseInt(store.get(0));
-        double storeLat = Double.parseDouble(store.get(1));
-        double storeLong = Double.parseDouble(store.get(2));
-
-        // Calculate distance
-        double distance =
-            esql.calculateDistance(userLat, userLong, storeLat, storeLong);
-        if (distance <= 30.0) {
-          found = true;
-          System.out.printf("%-10d %-10.6f %10.6f \n", storeID, storeLat,
-                            storeLong);
-        }
+      for (StoreIndex.Hit hit : stores) {
+        System.out.printf("%-10d %-10.6f %10.6f \n", hit.store.storeID,
+                          hit.store.latitude, hit.store.longitude);
       }
       if (!found) {
         System.out.println("No stores found within 30 miles.");
@@ -598,6 +1522,76 @@ public class Amazon {
     }
   }
 
+  /*
+   * Returns the catalog spelling of a product name typed by the user, or
+   * prints the closest names and returns null when there is no such
+   * product. ProductSearch.resolve confirms a miss in Product before it
+   * is reported, so only names that really do not exist are refused.
+   */
+  static String checkProductName(Amazon esql, String input)
+      throws SQLException {
+    String name = esql.productSearch().resolve(input);
+    if (name != null)
+      return name;
+    System.err.println("Error: Product not found.");
+    List<String> suggestions = esql.productSearch().suggest(input, 5);
+    if (!suggestions.isEmpty())
+      System.err.println("Did you mean: " + String.join(", ", suggestions) +
+                         "?");
+    return null;
+  } // end checkProductName
+
+  // tells the user where a product missing from one store can be found
+  private static void printStoresCarrying(Amazon esql, String productName)
+      throws SQLException {
+    List<Integer> stores = esql.storesCarrying(productName, 10);
+    if (!stores.isEmpty())
+      System.err.println("Stores carrying " + productName + ": " +
+                         stores.toString().replaceAll("[\\[\\]]", ""));
+  } // end printStoresCarrying
+
+  /*
+   * Lists the ten stores nearest to the customer that have enough units of
+   * a product, so the customer does not have to browse store by store.
+   */
+  public static void findProduct(Amazon esql) {
+    try {
+      System.out.print("\tEnter Product Name: ");
+      String productName = in.readLine().trim();
+      if (productName.isEmpty()) {
+        System.err.println("Error: Invalid Product Name.");
+        return;
+      }
+      productName = checkProductName(esql, productName);
+      if (productName == null)
+        return;
+
+      System.out.print("\tEnter Number of Units: ");
+      String unitsInput = in.readLine().trim();
+      if (unitsInput.isEmpty() || !unitsInput.matches("\\d+") ||
+          Integer.parseInt(unitsInput) < 1) {
+        System.err.println("Error: Invalid Number of Units.");
+        return;
+      }
+      int units = Integer.parseInt(unitsInput);
+
+      ResultRenderer rows =
+          formattedRows("%-10s %-12s %-12s %-10s %-10s %-10s\n",
+                        new String[] {"Store ID", "Latitude", "Longitude",
+                                      "Units", "Price", "Distance"},
+                        1, 2, 3, 4, 5, 6);
+      esql.nearestStoresWithStock(loggedInUserID, productName, units, 10,
+                                  rows);
+      int storeCount = rows.finish();
+      if (storeCount == 0) {
+        System.out.println("No store has " + units + " units of " +
+                           productName + " in stock.");
+      }
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
   /*
    * View products available in a specific store. Validate the store ID input
    */
@@ -615,18 +1609,14 @@ public class Amazon {
         int storeID = Integer.parseInt(storeIdInput);
 
         // Check if the store exists
-        String query =
-            String.format("SELECT * FROM Store WHERE storeID = %d", storeID);
-        int storeExists = esql.executeQuery(query);
-        if (storeExists < 1) {
+        if (!esql.storeCache().exists(storeID)) {
           System.err.println("Error: Store does not exist.");
           return;
         }
 
-        query = String.format(
-            "SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = %d",
-            storeID);
-        int productCount = esql.executeQueryAndPrintResult(query);
+        ResultRenderer rows = printedRows();
+        esql.listProducts(storeID, rows);
+        int productCount = rows.finish();
         if (productCount == 0) {
           System.out.println("No products found for this store.");
         }
@@ -646,29 +1636,20 @@ public class Amazon {
         int storeID = Integer.parseInt(storeIdInput);
 
         // Check if the store exists
-        String query =
-            String.format("SELECT * FROM Store WHERE storeID = %d", storeID);
-        int storeExists = esql.executeQuery(query);
-        if (storeExists < 1) {
+        if (!esql.storeCache().exists(storeID)) {
           System.err.println("Error: Store does not exist.");
           return;
         }
 
         // Check if the user is the manager of the store
-        query = String.format("SELECT managerID FROM Store WHERE storeID = %d",
-                              storeID);
-        List<List<String>> managerResults =
-            esql.executeQueryAndReturnResult(query);
-        if (managerResults.isEmpty() ||
-            Integer.parseInt(managerResults.get(0).get(0)) != loggedInUserID) {
+        if (!esql.storeCache().isManagedBy(storeID, loggedInUserID)) {
           System.err.println("Error: You are not the manager of this store.");
           return;
         }
 
-        query = String.format(
-            "SELECT productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = %d",
-            storeID);
-        int productCount = esql.executeQueryAndPrintResult(query);
+        ResultRenderer rows = printedRows();
+        esql.listProducts(storeID, rows);
+        int productCount = rows.finish();
         if (productCount == 0) {
           System.out.println("No products found for this store.");
         }
@@ -700,6 +1681,9 @@ public class Amazon {
         System.err.println("Error: Invalid Product Name.");
         return;
       }
+      productName = checkProductName(esql, productName);
+      if (productName == null)
+        return;
 
       System.out.print("\tEnter Number of Units: ");
       String unitsInput = in.readLine().trim();
@@ -710,37 +1694,26 @@ public class Amazon {
       }
       int units = Integer.parseInt(unitsInput);
 
-      String query =
-          String.format("SELECT * FROM Store WHERE storeID = %d", storeID);
-      int storeExists = esql.executeQuery(query);
-      if (storeExists < 1) {
+      if (!esql.storeCache().exists(storeID)) {
         System.err.println("Error: Store does not exist.");
         return;
       }
 
-      // Check if the store has the product
-      query = String.format(
-          "SELECT numberOfUnits FROM Product WHERE storeID = %d AND productName = '%s'",
-          storeID, productName);
-      List<List<String>> productData = esql.executeQueryAndReturnResult(query);
-      if (productData.isEmpty()) {
+      // Check the stock and place the order in one atomic step
+      OrderResult order =
+          esql.submitOrder(loggedInUserID, storeID, productName, units);
+      if (order.isProductMissing()) {
         System.err.println("Error: Product not found in the specified store.");
+        printStoresCarrying(esql, productName);
         return;
       }
-
-      // Check if the store has enough stock for the order
-      int availableUnits = Integer.parseInt(productData.get(0).get(0));
-      if (units > availableUnits) {
+      if (order.isInsufficientStock()) {
         System.err.println("Error: Insufficient stock for the product.");
         return;
       }
-
-      // Place the order
-      query = String.format(
-          "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (%d, %d, '%s', %d, NOW())",
-          loggedInUserID, storeID, productName, units);
-      esql.executeUpdate(query);
-      System.out.println("Order successfully created!");
+      System.out.println("Order successfully created! Order number: " +
+                         order.orderNumber + ", units left: " +
+                         order.unitsLeft);
     } catch (Exception e) {
       System.err.println(e.getMessage());
     }
@@ -750,21 +1723,16 @@ public class Amazon {
     switch (loggedInUserType) {
     case "manager":
       try {
-        String query =
-            "SELECT o.orderNumber, u.name, o.storeID, o.productName, o.unitsOrdered, o.orderTime FROM Orders o INNER JOIN Users u ON o.customerID = u.userID ORDER BY o.orderTime DESC LIMIT 5";
-        List<List<String>> orderLog = esql.executeQueryAndReturnResult(query);
-        if (orderLog.isEmpty()) {
+        ResultRenderer rows =
+            formattedRows("%-20s %-20s %-20s %-20s %-20s %-20s\n",
+                          new String[] {"Order Number", "Customer Name",
+                                        "Store ID", "Product Name",
+                                        "Units Ordered", "Order Time"},
+                          1, 2, 3, 4, 5, 6);
+        esql.recentOrders(loggedInUserID, loggedInUserType, rows);
+        int orderCount = rows.finish();
+        if (orderCount == 0) {
           System.out.println("No recent orders found.");
-          return;
-        }
-
-        System.out.printf("%-20s %-20s %-20s %-20s %-20s %-20s\n",
-                          "Order Number", "Customer Name", "Store ID",
-                          "Product Name", "Units Ordered", "Order Time");
-        for (List<String> order : orderLog) {
-          System.out.printf("%-20s %-20s %-20s %-20s %-20s %-20s\n",
-                            order.get(0), order.get(1), order.get(2),
-                            order.get(3), order.get(4), order.get(5));
         }
       } catch (Exception e) {
         System.err.println(e.getMessage());
@@ -772,19 +1740,15 @@ public class Amazon {
       break;
     case "customer":
       try {
-        String query = String.format(
-            "SELECT * FROM Orders WHERE customerID = %d ORDER BY orderTime DESC LIMIT 5",
-            loggedInUserID);
-        List<List<String>> orderLog = esql.executeQueryAndReturnResult(query);
-        if (orderLog.isEmpty()) {
+        ResultRenderer rows =
+            formattedRows("%-20s %-20s %-20s %-20s\n",
+                          new String[] {"Store ID", "Product Name",
+                                        "Units Ordered", "Order Time"},
+                          3, 4, 5, 6);
+        esql.recentOrders(loggedInUserID, loggedInUserType, rows);
+        int orderCount = rows.finish();
+        if (orderCount == 0) {
           System.out.println("No recent orders found.");
-          return;
-        }
-        System.out.printf("%-20s %-20s %-20s %-20s\n", "Store ID",
-                          "Product Name", "Units Ordered", "Order Time");
-        for (List<String> order : orderLog) {
-          System.out.printf("%-20s %-20s %-20s %-20s\n", order.get(2),
-                            order.get(3), order.get(4), order.get(5));
         }
       } catch (Exception e) {
         System.err.println(e.getMessage());
@@ -813,6 +1777,9 @@ public class Amazon {
         System.err.println("Error: Invalid Product Name.");
         return;
       }
+      productName = checkProductName(esql, productName);
+      if (productName == null)
+        return;
 
       System.out.print(
           "\tEnter New Number of Units (leave empty if no change): ");
@@ -830,61 +1797,40 @@ public class Amazon {
       System.out.print(
           "\tEnter New Price Per Unit (leave empty if no change): ");
       String newPriceInput = in.readLine().trim();
-      Float newPrice = null;
+      Double newPrice = null;
       if (!newPriceInput.isEmpty()) {
         if (!newPriceInput.matches("[0-9]+(\\.[0-9]{1,2})?")) {
           System.err.println("Error: Invalid Price Per Unit.");
           return;
         }
-        newPrice = Float.parseFloat(newPriceInput);
+        newPrice = Double.parseDouble(newPriceInput);
       }
 
-      String query =
-          String.format("SELECT * FROM Store WHERE storeID = %d", storeID);
-      int storeExists = esql.executeQuery(query);
-      if (storeExists < 1) {
+      if (!esql.storeCache().exists(storeID)) {
         System.err.println("Error: Store does not exist.");
         return;
       }
 
       // Check if the user is the manager of the store
-      query = String.format("SELECT managerID FROM Store WHERE storeID = %d",
-                            storeID);
-      List<List<String>> managerResults =
-          esql.executeQueryAndReturnResult(query);
-      if (managerResults.isEmpty() ||
-          Integer.parseInt(managerResults.get(0).get(0)) != loggedInUserID) {
+      if (!esql.storeCache().isManagedBy(storeID, loggedInUserID)) {
         System.err.println("Error: You are not the manager of this store.");
         return;
       }
 
-      // Check if the product exists in the store
-      query = String.format(
-          "SELECT * FROM Product WHERE storeID = %d AND productName = '%s'",
-          storeID, productName);
-      int productExists = esql.executeQuery(query);
-      if (productExists < 1) {
-        System.err.println("Error: Product not found in the specified store.");
-        return;
-      }
-
       // Check if there is something to update
-      List<String> updates = new ArrayList<>();
-      if (newUnits != null)
-        updates.add("numberOfUnits = " + newUnits);
-      if (newPrice != null)
-        updates.add("pricePerUnit = " + newPrice);
-
-      if (updates.isEmpty()) {
+      if (newUnits == null && newPrice == null) {
         System.out.println("No updates to make.");
         return;
       }
 
-      String updateString = String.join(", ", updates);
-      query = String.format(
-          "UPDATE Product SET %s WHERE storeID = %d AND productName = '%s'",
-          updateString, storeID, productName);
-      esql.executeUpdate(query);
+      // the update finds no row when the product is not in the store
+      int updated =
+          esql.updateProduct(storeID, productName, newUnits, newPrice);
+      if (updated < 1) {
+        System.err.println("Error: Product not found in the specified store.");
+        printStoresCarrying(esql, productName);
+        return;
+      }
       System.out.println("Product information updated successfully!");
     } catch (Exception e) {
       System.err.println(e.getMessage());
@@ -896,22 +1842,16 @@ public class Amazon {
    */
   public static void viewRecentUpdates(Amazon esql) {
     try {
-      String query = String.format(
-          "SELECT updateNumber, storeID, u.name, productName, updatedOn FROM ProductUpdates INNER JOIN Users u ON managerID = u.userID WHERE managerID = %d ORDER BY updatedOn DESC LIMIT 5",
-          loggedInUserID);
-      List<List<String>> updateLog = esql.executeQueryAndReturnResult(query);
-      if (updateLog.isEmpty()) {
+      ResultRenderer rows =
+          formattedRows("%-20s %-20s %-20s %-20s %-20s\n",
+                        new String[] {"Update Number", "Store ID",
+                                      "Manager Name", "Product Name",
+                                      "Updated On"},
+                        1, 2, 3, 4, 5);
+      esql.recentUpdates(loggedInUserID, rows);
+      int updateCount = rows.finish();
+      if (updateCount == 0) {
         System.out.println("No recent updates found.");
-        return;
-      }
-
-      System.out.printf("%-20s %-20s %-20s %-20s %-20s\n", "Update Number",
-                        "Store ID", "Manager Name", "Product Name",
-                        "Updated On");
-      for (List<String> update : updateLog) {
-        System.out.printf("%-20s %-20s %-20s %-20s %-20s\n", update.get(0),
-                          update.get(1), update.get(2), update.get(3),
-                          update.get(4));
       }
     } catch (Exception e) {
       System.err.println(e.getMessage());
@@ -924,10 +1864,11 @@ public class Amazon {
       // Check if the managerID exists and is associated with any stores
 
       String checkManagerQuery =
-          "SELECT COUNT(*) FROM Store WHERE managerID = " + loggedInUserID;
+          "SELECT COUNT(*) FROM Store WHERE managerID = ?";
 
-      int managerCount = esql.executeQueryAndReturnResult(checkManagerQuery)
-                             .size(); // Execute query and get the result size
+      int managerCount =
+          esql.executeQueryAndReturnResult(checkManagerQuery, loggedInUserID)
+              .size(); // Execute query and get the result size
 
       if (managerCount <= 0) {
 
@@ -938,26 +1879,11 @@ public class Amazon {
       }
 
       // If the managerID is valid, proceed with fetching the popular products
+      // from the per-store order counts kept by trg_update_sales_after_order
 
-      String query =
-          "SELECT P.productName, COUNT(*) AS orderCount "
-          +
-
-          "FROM Orders O JOIN Product P ON O.storeID = P.storeID AND O.productName = P.productName "
-          +
-
-          "JOIN Store S ON P.storeID = S.storeID "
-          +
-
-          "WHERE S.managerID = " + loggedInUserID + " "
-          +
-
-          "GROUP BY P.productName "
-          +
-
-          "ORDER BY orderCount DESC LIMIT 5";
-
-      esql.executeQueryAndPrintResult(query);
+      ResultRenderer rows = printedRows();
+      esql.popularProducts(loggedInUserID, rows);
+      rows.finish();
 
       System.out.println("Top 5 popular products for manager " + loggedInUserID +
                          " retrieved successfully.");
@@ -981,23 +1907,12 @@ public class Amazon {
 
     try {
 
-      // Corrected query
-
-      String query = "SELECT O.customerID, COUNT(*) AS orderCount "
-                     +
-
-                     "FROM Orders O JOIN Store S ON O.storeID = S.storeID "
-                     +
-
-                     "WHERE S.managerID = " + loggedInUserID + " "
-                     +
+      // Read from the per-store order counts kept by
+      // trg_update_sales_after_order instead of grouping Orders
 
-                     "GROUP BY O.customerID "
-                     +
-
-                     "ORDER BY orderCount DESC LIMIT 5";
-
-      esql.executeQueryAndPrintResult(query);
+      ResultRenderer rows = printedRows();
+      esql.popularCustomers(loggedInUserID, rows);
+      rows.finish();
 
       System.out.println("Top 5 customers for manager " + loggedInUserID +
                          " retrieved successfully.");
@@ -1021,10 +1936,10 @@ public class Amazon {
       // Verify the user is a manager and get the associated storeID
 
       String checkManagerAndStoreQuery =
-          "SELECT s.storeID FROM Store s WHERE s.managerID = " + loggedInUserID;
+          "SELECT s.storeID FROM Store s WHERE s.managerID = ?";
 
-      List<List<String>> storeIDs =
-          esql.executeQueryAndReturnResult(checkManagerAndStoreQuery);
+      List<List<String>> storeIDs = esql.executeQueryAndReturnResult(
+          checkManagerAndStoreQuery, loggedInUserID);
 
       if (storeIDs.isEmpty()) {
 
@@ -1048,35 +1963,106 @@ public class Amazon {
 
       int storeID = Integer.parseInt(in.readLine());
 
-      System.out.print("Enter productName: ");
+      if (!esql.storeCache().isManagedBy(storeID, loggedInUserID)) {
+
+        System.err.println("Error: You are not the manager of this store.");
+
+        return;
+      }
+
+      // Several products can be requested together; they are then
+      // allocated over the warehouses as one batch
+
+      List<SupplyAllocator.Request> requests = new ArrayList<>();
+
+      while (true) {
 
-      String productName = in.readLine();
+        System.out.print("Enter productName (leave empty when done): ");
 
-      System.out.print("Enter number of units needed: ");
+        String productName = in.readLine().trim();
 
-      int unitsNeeded = Integer.parseInt(in.readLine());
+        if (productName.isEmpty())
+          break;
+
+        productName = checkProductName(esql, productName);
+
+        if (productName == null)
+          continue;
+
+        System.out.print("Enter number of units needed: ");
+
+        int unitsNeeded = Integer.parseInt(in.readLine().trim());
+
+        if (unitsNeeded < 1) {
+
+          System.err.println("Error: Invalid number of units.");
 
-      System.out.print("Enter warehouseID: ");
+          return;
+        }
 
-      int warehouseID = Integer.parseInt(in.readLine());
+        requests.add(new SupplyAllocator.Request(loggedInUserID, storeID,
+                                                 productName, unitsNeeded));
+      }
 
-      // Insert Supply Request
+      if (requests.isEmpty()) {
 
-      String insertRequestQuery = String.format(
-          "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (%d, %d, %d, '%s', %d)",
-          loggedInUserID, warehouseID, storeID, productName, unitsNeeded);
+        System.out.println("No supply requests to place.");
 
-      esql.executeUpdate(insertRequestQuery);
+        return;
+      }
+
+      System.out.print(
+          "Enter warehouseID (leave empty to choose automatically): ");
 
-      // Update Product Units
+      String warehouseInput = in.readLine().trim();
 
-      String updateProductQuery = String.format(
-          "UPDATE Product SET numberOfUnits = numberOfUnits + %d WHERE storeID = %d AND productName = '%s'",
-          unitsNeeded, storeID, productName);
+      SupplyAllocator allocator = new SupplyAllocator(esql);
 
-      esql.executeUpdate(updateProductQuery);
+      SupplyAllocator.Plan plan;
 
-      System.out.println("Product supply request placed successfully.");
+      if (!warehouseInput.isEmpty()) {
+
+        // Ship everything from the chosen warehouse
+
+        plan = SupplyAllocator.fromWarehouse(
+            requests, Integer.parseInt(warehouseInput));
+      } else {
+
+        // Pick the nearest warehouses with room, splitting when needed
+
+        plan = allocator.allocate(requests, allocator.loadWarehouses());
+      }
+
+      // All the requests are placed in one transaction, or none are
+
+      if (!plan.allocations.isEmpty())
+        allocator.place(plan);
+
+      int placedUnits = 0;
+
+      for (SupplyAllocator.Allocation a : plan.allocations) {
+
+        if (!plan.rejected.contains(a.request)) {
+          System.out.printf("%-30s %6d units from warehouse %d\n",
+                            a.request.productName, a.units, a.warehouseID);
+          placedUnits += a.units;
+        }
+      }
+
+      for (SupplyAllocator.Request r : plan.shortfalls)
+        System.out.printf("%-30s %6d units could not be placed\n",
+                          r.productName, r.units);
+
+      for (SupplyAllocator.Request r : plan.rejected)
+        System.out.printf("%-30s not sold by this store\n", r.productName);
+
+      if (placedUnits == 0)
+        System.out.println("No supply requests were placed.");
+      else if (plan.shortfalls.isEmpty() && plan.rejected.isEmpty())
+        System.out.println("Product supply request placed successfully.");
+      else
+        System.out.println("Supply requests placed for " + placedUnits +
+                           " units; the rest could not be placed.");
 
     } catch (Exception e) {
 
@@ -1089,13 +2075,85 @@ public class Amazon {
    */
   public static void viewAllUsers(Amazon esql) {
     try {
-      String query = "SELECT * FROM Users ORDER BY userID ASC";
-      esql.executeQueryAndPrintResult(query);
+      System.out.print(
+          "\tFilter by type (customer, manager, admin; leave empty for all): ");
+      String type = in.readLine().trim();
+      int pageSize = readPageSize();
+      browse(esql.userPager(type.isEmpty() ? null : type, pageSize),
+             USER_COLUMNS);
     } catch (Exception e) {
       System.err.println(e.getMessage());
     }
   }
 
+  // page size for the listings, 20 unless the admin asks for another
+  private static int readPageSize() throws java.io.IOException {
+    System.out.print("\tRows per page (leave empty for 20): ");
+    String input = in.readLine().trim();
+    if (input.matches("\\d+") && Integer.parseInt(input) > 0)
+      return Integer.parseInt(input);
+    return 20;
+  } // end readPageSize
+
+  /*
+   * Shows one page of a listing at a time and moves between pages on
+   * request until the user quits.
+   */
+  private static void browse(KeysetPager pager, String[] header)
+      throws Exception {
+    List<List<String>> rows = pager.first();
+    while (true) {
+      if (pager.page().isEmpty()) {
+        System.out.println("No rows found.");
+        return;
+      }
+      if (rows.isEmpty())
+        System.out.println("No more rows.");
+      else
+        printPage(header, pager.page());
+      System.out.print("[n]ext, [p]revious, [f]irst, [l]ast, [q]uit: ");
+      String choice = in.readLine();
+      if (choice == null)
+        return;
+      switch (choice.trim().toLowerCase()) {
+      case "n":
+      case "":
+        rows = pager.next();
+        break;
+      case "p":
+        rows = pager.previous();
+        break;
+      case "f":
+        rows = pager.first();
+        break;
+      case "l":
+        rows = pager.last();
+        break;
+      case "q":
+        return;
+      default:
+        System.out.println("Unrecognized choice!");
+        rows = pager.page();
+      }
+    }
+  } // end browse
+
+  // builds the page in one buffer and writes it to standard out at once
+  private static void printPage(String[] header, List<List<String>> rows) {
+    StringBuilder page = new StringBuilder();
+    for (String column : header)
+      page.append(column).append('\t');
+    page.append('\n');
+    for (List<String> row : rows) {
+      for (String value : row)
+        page.append(value).append('\t');
+      page.append('\n');
+    }
+    System.out.print(page);
+    System.out.flush();
+  } // end printPage
+
+
   /*
    * Allows admin to update user information
    */
@@ -1122,20 +2180,20 @@ public class Amazon {
       String newType = in.readLine().trim();
 
       // Check if user exists
-      String query =
-          String.format("SELECT * FROM Users WHERE userID = %d", userID);
-      int userExists = esql.executeQuery(query);
+      String query = "SELECT * FROM Users WHERE userID = ?";
+      int userExists = esql.executeQuery(query, userID);
       if (userExists < 1) {
         System.err.println("Error: User does not exist.");
         return;
       }
 
       List<String> updates = new ArrayList<>();
+      List<Object> values = new ArrayList<>();
       String currName = null;
       if (!newName.isEmpty()) {
-        query = String.format(
-            "SELECT name, password FROM Users WHERE name = '%s'", newName);
-        List<List<String>> userData = esql.executeQueryAndReturnResult(query);
+        query = "SELECT name, password FROM Users WHERE name = ?";
+        List<List<String>> userData =
+            esql.executeQueryAndReturnResult(query, newName);
         if (!userData.isEmpty()) {
           currName = userData.get(0).get(0);
           if (userData.get(0).get(1).equals(newPassword)) {
@@ -1143,7 +2201,8 @@ public class Amazon {
             return;
           }
         }
-        updates.add("name = '" + newName + "'");
+        updates.add("name = ?");
+        values.add(newName);
       }
       if (!newPassword.isEmpty()) {
         if ((!newName.isEmpty() && newPassword.equals(newName)) ||
@@ -1162,7 +2221,8 @@ public class Amazon {
               "Error: Password must be between 5-11 characters and must have one capital letter, one number, and one special character.");
           return;
         }
-        updates.add("password = '" + newPassword + "'");
+        updates.add("password = ?");
+        values.add(newPassword);
       }
       if (!newLatitude.isEmpty()) {
         double lat = Double.parseDouble(newLatitude);
@@ -1170,7 +2230,8 @@ public class Amazon {
           System.err.println("Error: Latitude must be between 0.0 and 100.0.");
           return;
         }
-        updates.add("latitude = " + newLatitude);
+        updates.add("latitude = ?");
+        values.add(lat);
       }
       if (!newLongitude.isEmpty()) {
         double lon = Double.parseDouble(newLongitude);
@@ -1178,7 +2239,8 @@ public class Amazon {
           System.err.println("Error: Longitude must be between 0.0 and 100.0.");
           return;
         }
-        updates.add("longitude = " + newLongitude);
+        updates.add("longitude = ?");
+        values.add(lon);
       }
 
       if (updates.isEmpty()) {
@@ -1187,9 +2249,9 @@ public class Amazon {
       }
 
       String updateString = String.join(", ", updates);
-      query = String.format("UPDATE USERS SET %s WHERE userID = %d",
-                            updateString, userID);
-      esql.executeUpdate(query);
+      query = "UPDATE USERS SET " + updateString + " WHERE userID = ?";
+      values.add(userID);
+      esql.executeUpdate(query, values.toArray());
       System.out.println("User information updated successfully!");
     } catch (Exception e) {
       System.err.println(e.getMessage());
@@ -1201,13 +2263,25 @@ public class Amazon {
    */
   public static void viewAllProducts(Amazon esql) {
     try {
-      String query = "SELECT * FROM Product ORDER BY storeID ASC";
-      esql.executeQueryAndPrintResult(query);
+      System.out.print("\tFilter by Store ID (leave empty for all stores): ");
+      String storeInput = in.readLine().trim();
+      Integer storeID = null;
+      if (!storeInput.isEmpty()) {
+        if (!storeInput.matches("\\d+")) {
+          System.err.println("Error: Invalid Store ID.");
+          return;
+        }
+        storeID = Integer.parseInt(storeInput);
+      }
+      int pageSize = readPageSize();
+      browse(esql.productPager(storeID, pageSize),
+             PRODUCT_COLUMNS);
     } catch (Exception e) {
       System.err.println(e.getMessage());
     }
   }
 
+
   /*
    * Allows admin to update product information.
    */
@@ -1227,6 +2301,9 @@ public class Amazon {
         System.err.println("Error: Invalid Product Name.");
         return;
       }
+      productName = checkProductName(esql, productName);
+      if (productName == null)
+        return;
 
       System.out.print(
           "\tEnter New Number of Units (leave empty if no change): ");
@@ -1244,39 +2321,40 @@ public class Amazon {
       System.out.print(
           "\tEnter New Price Per Unit (leave empty if no change): ");
       String newPriceInput = in.readLine().trim();
-      Float newPrice = null;
+      Double newPrice = null;
       if (!newPriceInput.isEmpty()) {
         if (!newPriceInput.matches("[0-9]+(\\.[0-9]{1,2})?")) {
           System.err.println("Error: Invalid Price Per Unit.");
           return;
         }
-        newPrice = Float.parseFloat(newPriceInput);
+        newPrice = Double.parseDouble(newPriceInput);
       }
 
-      String query =
-          String.format("SELECT * FROM Store WHERE storeID = %d", storeID);
-      int storeExists = esql.executeQuery(query);
-      if (storeExists < 1) {
+      if (!esql.storeCache().exists(storeID)) {
         System.err.println("Error: Store does not exist.");
         return;
       }
 
       // Check if the current product exists in the current store
-      query = String.format(
-          "SELECT * FROM Product WHERE storeID = %d AND productName = '%s'",
-          storeID, productName);
-      int productExists = esql.executeQuery(query);
+      String query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
+      int productExists = esql.executeQuery(query, storeID, productName);
       if (productExists < 1) {
         System.err.println("Error: Product not found in the specified store.");
+        printStoresCarrying(esql, productName);
         return;
       }
 
       // Check if there is something to update
       List<String> updates = new ArrayList<>();
-      if (newUnits != null)
-        updates.add("numberOfUnits = " + newUnits);
-      if (newPrice != null)
-        updates.add("pricePerUnit = " + newPrice);
+      List<Object> values = new ArrayList<>();
+      if (newUnits != null) {
+        updates.add("numberOfUnits = ?");
+        values.add(newUnits);
+      }
+      if (newPrice != null) {
+        updates.add("pricePerUnit = ?");
+        values.add(newPrice);
+      }
 
       if (updates.isEmpty()) {
         System.out.println("No updates to make.");
@@ -1284,13 +2362,179 @@ public class Amazon {
       }
 
       String updateString = String.join(", ", updates);
-      query = String.format(
-          "UPDATE Product SET %s WHERE storeID = %d AND productName = '%s'",
-          updateString, storeID, productName);
-      esql.executeUpdate(query);
+      query = "UPDATE Product SET " + updateString +
+              " WHERE storeID = ? AND productName = ?";
+      values.add(storeID);
+      values.add(productName);
+      esql.executeUpdate(query, values.toArray());
       System.out.println("Product information updated successfully!");
     } catch (Exception e) {
       System.err.println(e.getMessage());
     }
   }
+
+  /*
+   * Allows admin to bulk import orders from a CSV file in the orders.csv
+   * layout.
+   */
+  public static void importOrders(Amazon esql) {
+    try {
+      System.out.print("\tEnter path of the orders CSV file: ");
+      String path = in.readLine().trim();
+      if (path.isEmpty() || !new File(path).isFile()) {
+        System.err.println("Error: File not found.");
+        return;
+      }
+      OrderImporter.Report report =
+          new OrderImporter(esql, 10000).importFile(path);
+      System.out.println(report);
+      if (report.rejected > 0) {
+        System.out.println("Rejected rows written to " + path + ".rejected");
+      }
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /*
+   * Allows admin to dump a whole table to a CSV or JSON file.
+   */
+  public static void exportTable(Amazon esql) {
+    try {
+      System.out.print("\tEnter table name (Users, Store, Product, Warehouse, "
+                       + "Orders, ProductSupplyRequests, ProductUpdates): ");
+      String table = in.readLine().trim();
+      if (exportQuery(table) == null) {
+        System.err.println("Error: Unknown table.");
+        return;
+      }
+      System.out.print("\tEnter format (csv or json): ");
+      String format = in.readLine().trim().toLowerCase();
+      if (!format.equals("csv") && !format.equals("json")) {
+        System.err.println("Error: Format must be csv or json.");
+        return;
+      }
+      System.out.print("\tEnter path of the output file: ");
+      String path = in.readLine().trim();
+      if (path.isEmpty()) {
+        System.err.println("Error: No path given.");
+        return;
+      }
+      int rows = esql.exportTable(table, format, new File(path));
+      System.out.println(rows + " rows written to " + path);
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  // reads a YYYY-MM-DD date, or returns null after reporting bad input
+  private static Date readDate(String prompt) throws java.io.IOException {
+    System.out.print(prompt);
+    String input = in.readLine().trim();
+    try {
+      return Date.valueOf(input);
+    } catch (IllegalArgumentException e) {
+      System.err.println("Error: Dates are written YYYY-MM-DD.");
+      return null;
+    }
+  } // end readDate
+
+  // the day after an inclusive end date, as the range queries expect
+  private static Date dayAfter(Date day) {
+    return Date.valueOf(day.toLocalDate().plusDays(1));
+  }
+
+  /*
+   * Shows the units sold and revenue of the manager's stores per hour, day,
+   * week or month over a date range.
+   */
+  public static void viewSalesByPeriod(Amazon esql) {
+    try {
+      System.out.print("\tEnter period (hour, day, week, month): ");
+      String granularity = in.readLine().trim().toLowerCase();
+      if (!granularity.matches("hour|day|week|month")) {
+        System.err.println("Error: Invalid period.");
+        return;
+      }
+      Date from = readDate("\tEnter first day (YYYY-MM-DD): ");
+      if (from == null)
+        return;
+      Date to = readDate("\tEnter last day (YYYY-MM-DD): ");
+      if (to == null)
+        return;
+
+      ResultRenderer rows =
+          formattedRows("%-10s %-22s %-12s %-14s %-10s\n",
+                        new String[] {"Store ID", "Period", "Units Sold",
+                                      "Revenue", "Orders"},
+                        1, 2, 3, 4, 5);
+      esql.salesByPeriod(loggedInUserID, granularity, from, dayAfter(to),
+                         rows);
+      int rowCount = rows.finish();
+      if (rowCount == 0) {
+        System.out.println("No sales in your stores in that range.");
+      }
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /*
+   * Shows the units sold and revenue of every product of the manager's
+   * stores in two date ranges side by side.
+   */
+  public static void compareSalesPeriods(Amazon esql) {
+    try {
+      Date fromA = readDate("\tEnter first day of period A (YYYY-MM-DD): ");
+      if (fromA == null)
+        return;
+      Date toA = readDate("\tEnter last day of period A (YYYY-MM-DD): ");
+      if (toA == null)
+        return;
+      Date fromB = readDate("\tEnter first day of period B (YYYY-MM-DD): ");
+      if (fromB == null)
+        return;
+      Date toB = readDate("\tEnter last day of period B (YYYY-MM-DD): ");
+      if (toB == null)
+        return;
+
+      ResultRenderer rows =
+          formattedRows("%-10s %-30s %-10s %-14s %-10s %-14s\n",
+                        new String[] {"Store ID", "Product Name", "Units A",
+                                      "Revenue A", "Units B", "Revenue B"},
+                        1, 2, 3, 4, 5, 6);
+      esql.compareSales(loggedInUserID, fromA, dayAfter(toA), fromB,
+                        dayAfter(toB), rows);
+      int rowCount = rows.finish();
+      if (rowCount == 0) {
+        System.out.println("No sales in your stores in either range.");
+      }
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+  /*
+   * Allows admin to recompute the sales rollups from the order history.
+   */
+  public static void rebuildSalesRollups(Amazon esql) {
+    try {
+      System.out.print(
+          "\tRebuild from day (YYYY-MM-DD; leave empty for all history): ");
+      String input = in.readLine().trim();
+      Date from = null;
+      if (!input.isEmpty()) {
+        try {
+          from = Date.valueOf(input);
+        } catch (IllegalArgumentException e) {
+          System.err.println("Error: Dates are written YYYY-MM-DD.");
+          return;
+        }
+      }
+      esql.rebuildSalesRollups(from);
+      System.out.println("Sales rollups rebuilt.");
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    }
+  }
 }
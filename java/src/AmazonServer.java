@@ -0,0 +1,701 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP/JSON front end to the Amazon operations, for many users at once.
+ *
+ * The terminal client keeps the logged in user in static fields and so
+ * serves one user per process. Here each login creates a Session, and every
+ * request names its session with an "Authorization: Bearer &lt;token&gt;"
+ * header, so the operations run with the caller's own user ID and type.
+ * Requests are handled on virtual threads when the JVM has them (Java 21
+ * and later) and on a fixed pool of amazon.http.threads platform threads
+ * otherwise; the connection pool bounds how many reach the database at once.
+ *
+ * <pre>
+ *   POST /api/login                     {name, password}
+ *   POST /api/logout
+ *   GET  /api/stores                    stores within 30 miles
+ *   GET  /api/stores/{id}/products
+ *   GET  /api/stores/nearest            ?productName=&amp;units=, stores
+ *                                        with the stock, nearest first
+ *   POST /api/orders                    {storeID, productName, units}
+ *   GET  /api/orders/recent
+ *   POST /api/products                  {storeID, productName,
+ *                                        numberOfUnits?, pricePerUnit?}
+ *   GET  /api/products/search           ?q=&amp;limit=&amp;stores, name
+ *                                        autocomplete and suggestions
+ *   GET  /api/updates/recent            manager
+ *   GET  /api/reports/popular-products  manager
+ *   GET  /api/reports/popular-customers manager
+ *   GET  /api/reports/sales             manager ?granularity=&amp;from=&amp;to=
+ *   GET  /api/reports/sales-comparison  manager ?from=&amp;to=&amp;compareFrom=
+ *                                        &amp;compareTo=
+ *   POST /api/supply-requests           manager {storeID, productName,
+ *                                        units, warehouseID?}
+ *   GET  /api/admin/users?after=&amp;limit=  admin
+ * </pre>
+ * Errors are answered with {"error": message} and a 4xx or 5xx status.
+ */
+public class AmazonServer {
+
+  /**
+   * A logged in user.
+   */
+  public static class Session {
+    public final String token;
+    public final int userID;
+    public final String name;
+    public final String type; // customer, manager or admin
+    volatile long lastSeen;
+
+    Session(String token, int userID, String name, String type) {
+      this.token = token;
+      this.userID = userID;
+      this.name = name;
+      this.type = type;
+      this.lastSeen = System.currentTimeMillis();
+    }
+  } // end Session
+
+  // an error answered with the given HTTP status
+  static class ApiException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    ApiException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  } // end ApiException
+
+  // the parts of a request an endpoint needs
+  static class Request {
+    final HttpExchange exchange;
+    final Matcher path;
+    final Session session;
+    final Map<String, String> query;
+    Map<String, Object> body;
+
+    Request(HttpExchange exchange, Matcher path, Session session) {
+      this.exchange = exchange;
+      this.path = path;
+      this.session = session;
+      this.query = parseQuery(exchange.getRequestURI().getRawQuery());
+    }
+
+    int pathInt(int group) { return Integer.parseInt(this.path.group(group)); }
+
+    String string(String name) {
+      Object value = this.body.get(name);
+      if (!(value instanceof String) || ((String)value).trim().isEmpty())
+        throw new ApiException(400, "Missing " + name);
+      return ((String)value).trim();
+    }
+
+    Number optionalNumber(String name) {
+      Object value = this.body.get(name);
+      if (value == null)
+        return null;
+      if (!(value instanceof Number))
+        throw new ApiException(400, "Invalid " + name);
+      return (Number)value;
+    }
+
+    int integer(String name) {
+      Number n = optionalNumber(name);
+      if (n == null)
+        throw new ApiException(400, "Missing " + name);
+      return n.intValue();
+    }
+
+    String queryString(String name, String defaultValue) {
+      String value = this.query.get(name);
+      return value == null ? defaultValue : value;
+    }
+
+    java.sql.Date queryDate(String name) {
+      String value = this.query.get(name);
+      if (value == null)
+        throw new ApiException(400, "Missing " + name);
+      try {
+        return java.sql.Date.valueOf(value);
+      } catch (IllegalArgumentException e) {
+        throw new ApiException(400,
+                               "Invalid " + name + ", expected YYYY-MM-DD");
+      }
+    }
+
+    int queryInt(String name, int defaultValue) {
+      String value = this.query.get(name);
+      try {
+        return value == null ? defaultValue : Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        throw new ApiException(400, "Invalid " + name);
+      }
+    }
+  } // end Request
+
+  interface Endpoint {
+    Object handle(Request req) throws Exception;
+  }
+
+  // a method and path served by an endpoint; roles null means no login
+  private static class Route {
+    final String method;
+    final Pattern path;
+    final String[] roles;
+    final Endpoint endpoint;
+
+    Route(String method, String path, String[] roles, Endpoint endpoint) {
+      this.method = method;
+      this.path = Pattern.compile(path);
+      this.roles = roles;
+      this.endpoint = endpoint;
+    }
+  } // end Route
+
+  private static final String[] ANYONE = {"customer", "manager", "admin"};
+  private static final String[] CUSTOMER = {"customer"};
+  private static final String[] MANAGER = {"manager"};
+  private static final String[] MANAGER_OR_ADMIN = {"manager", "admin"};
+  private static final String[] ADMIN = {"admin"};
+  private static final int MAX_BODY = 64 * 1024;
+  private static final int MAX_PAGE = 1000;
+
+  private final Amazon esql;
+  private final long sessionIdleMillis;
+  private final Map<String, Session> sessions =
+      new ConcurrentHashMap<String, Session>();
+  private final List<Route> routes = new ArrayList<Route>();
+  private final SecureRandom random = new SecureRandom();
+  private HttpServer server;
+  private ExecutorService executor;
+  private ScheduledExecutorService sweeper;
+
+  /**
+   * @param esql the database the operations run against
+   * @param sessionIdleMillis idle time after which a session is dropped
+   */
+  public AmazonServer(Amazon esql, long sessionIdleMillis) {
+    this.esql = esql;
+    this.sessionIdleMillis = sessionIdleMillis;
+    defineRoutes();
+  }
+
+  private void defineRoutes() {
+    route("POST", "/api/login", null, this::logIn);
+    route("POST", "/api/logout", ANYONE, req -> {
+      this.sessions.remove(req.session.token);
+      return result("loggedOut", true);
+    });
+    route("GET", "/api/stores", ANYONE, this::viewStores);
+    route("GET", "/api/stores/(\\d+)/products", ANYONE, this::viewProducts);
+    route("GET", "/api/stores/nearest", ANYONE, req -> {
+      String productName = req.query.get("productName");
+      if (productName == null || productName.trim().isEmpty())
+        throw new ApiException(400, "Missing productName");
+      int units = req.queryInt("units", 1);
+      if (units < 1)
+        throw new ApiException(400, "units must be positive");
+      int limit = Math.max(1, Math.min(req.queryInt("limit", 10), MAX_PAGE));
+      List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+      this.esql.nearestStoresWithStock(req.session.userID, productName.trim(),
+                                       units, limit, collect(rows));
+      return result("stores", rows);
+    });
+    route("POST", "/api/orders", CUSTOMER, this::placeOrder);
+    route("GET", "/api/orders/recent", ANYONE, req -> {
+      List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+      this.esql.recentOrders(req.session.userID, req.session.type,
+                             collect(rows));
+      return result("orders", rows);
+    });
+    route("POST", "/api/products", MANAGER_OR_ADMIN, this::updateProduct);
+    route("GET", "/api/products/search", ANYONE, req -> {
+      String q = req.query.get("q");
+      if (q == null || q.trim().isEmpty())
+        throw new ApiException(400, "Missing q");
+      int limit = Math.max(1, Math.min(req.queryInt("limit", 10), MAX_PAGE));
+      ProductSearch search = this.esql.productSearch();
+      Map<String, Object> out =
+          result("completions", search.complete(q, limit));
+      out.put("suggestions", search.suggest(q, limit));
+      String name = search.resolve(q);
+      out.put("match", name);
+      if (name != null && req.query.containsKey("stores"))
+        out.put("stores", this.esql.storesCarrying(name, limit));
+      return out;
+    });
+    route("GET", "/api/updates/recent", MANAGER, req -> {
+      List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+      this.esql.recentUpdates(req.session.userID, collect(rows));
+      return result("updates", rows);
+    });
+    route("GET", "/api/reports/popular-products", MANAGER, req -> {
+      List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+      this.esql.popularProducts(req.session.userID, collect(rows));
+      return result("products", rows);
+    });
+    route("GET", "/api/reports/popular-customers", MANAGER, req -> {
+      List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+      this.esql.popularCustomers(req.session.userID, collect(rows));
+      return result("customers", rows);
+    });
+    route("GET", "/api/reports/sales", MANAGER, req -> {
+      // from and to are days, to exclusive
+      List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+      this.esql.salesByPeriod(
+          req.session.userID, req.queryString("granularity", "day"),
+          req.queryDate("from"), req.queryDate("to"), collect(rows));
+      return result("sales", rows);
+    });
+    route("GET", "/api/reports/sales-comparison", MANAGER, req -> {
+      List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+      this.esql.compareSales(req.session.userID, req.queryDate("from"),
+                             req.queryDate("to"), req.queryDate("compareFrom"),
+                             req.queryDate("compareTo"), collect(rows));
+      return result("products", rows);
+    });
+    route("POST", "/api/supply-requests", MANAGER, this::placeSupplyRequest);
+    route("GET", "/api/admin/users", ADMIN, req -> {
+      // ?after=<userID> pages forward, ?before=<userID> pages back
+      int limit = Math.max(1, Math.min(req.queryInt("limit", 100), MAX_PAGE));
+      boolean forward = !req.query.containsKey("before");
+      int from = forward ? req.queryInt("after", Integer.MIN_VALUE)
+                         : req.queryInt("before", Integer.MAX_VALUE);
+      List<List<String>> page =
+          this.esql.usersPage(req.query.get("type"), from, forward, limit);
+      return result("users", rows(Amazon.USER_COLUMNS, page));
+    });
+  } // end defineRoutes
+
+  private void route(String method, String path, String[] roles,
+                     Endpoint endpoint) {
+    this.routes.add(new Route(method, path, roles, endpoint));
+  }
+
+  private Object logIn(Request req) throws SQLException {
+    List<String> user =
+        this.esql.findUser(req.string("name"), req.string("password"));
+    if (user == null)
+      throw new ApiException(401, "Invalid name or password");
+    byte[] bytes = new byte[24];
+    this.random.nextBytes(bytes);
+    String token =
+        Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    Session session = new Session(token, Integer.parseInt(user.get(0)),
+                                  user.get(1).trim(),
+                                  user.get(5).trim().toLowerCase());
+    this.sessions.put(token, session);
+    Map<String, Object> out = result("token", token);
+    out.put("userID", session.userID);
+    out.put("type", session.type);
+    return out;
+  } // end logIn
+
+  private Object viewStores(Request req) throws SQLException {
+    List<StoreIndex.Hit> hits = this.esql.storesNear(req.session.userID);
+    if (hits == null)
+      throw new ApiException(404, "User not found");
+    List<Map<String, Object>> stores = new ArrayList<Map<String, Object>>();
+    for (StoreIndex.Hit hit : hits) {
+      Map<String, Object> store = new LinkedHashMap<String, Object>();
+      store.put("storeID", hit.store.storeID);
+      store.put("latitude", hit.store.latitude);
+      store.put("longitude", hit.store.longitude);
+      stores.add(store);
+    }
+    return result("stores", stores);
+  } // end viewStores
+
+  private Object viewProducts(Request req) throws SQLException {
+    int storeID = req.pathInt(1);
+    checkStore(req.session, storeID, "manager".equals(req.session.type));
+    List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+    this.esql.listProducts(storeID, collect(rows));
+    return result("products", rows);
+  } // end viewProducts
+
+  private Object placeOrder(Request req) throws SQLException {
+    int units = req.integer("units");
+    if (units < 1)
+      throw new ApiException(400, "units must be positive");
+    OrderResult order =
+        this.esql.submitOrder(req.session.userID, req.integer("storeID"),
+                              productName(req), units);
+    if (order.isProductMissing())
+      throw new ApiException(404, "Product not found in the specified store");
+    if (order.isInsufficientStock())
+      throw new ApiException(409, "Insufficient stock, " + order.unitsLeft +
+                                      " units left");
+    Map<String, Object> out = result("orderNumber", order.orderNumber);
+    out.put("unitsLeft", order.unitsLeft);
+    return out;
+  } // end placeOrder
+
+  private Object updateProduct(Request req) throws SQLException {
+    int storeID = req.integer("storeID");
+    String productName = productName(req);
+    Number units = req.optionalNumber("numberOfUnits");
+    Number price = req.optionalNumber("pricePerUnit");
+    if (units == null && price == null)
+      throw new ApiException(400, "No updates to make");
+    if ((units != null && units.intValue() < 0) ||
+        (price != null && price.doubleValue() < 0))
+      throw new ApiException(400, "Values must not be negative");
+    checkStore(req.session, storeID, "manager".equals(req.session.type));
+    int updated = this.esql.updateProduct(
+        storeID, productName, units == null ? null : units.intValue(),
+        price == null ? null : price.doubleValue());
+    if (updated < 1)
+      throw new ApiException(404, "Product not found in the specified store");
+    return result("updated", true);
+  } // end updateProduct
+
+  private Object placeSupplyRequest(Request req) throws SQLException {
+    int storeID = req.integer("storeID");
+    int units = req.integer("units");
+    String productName = productName(req);
+    if (units < 1)
+      throw new ApiException(400, "units must be positive");
+    checkStore(req.session, storeID, true);
+    Number warehouseID = req.optionalNumber("warehouseID");
+    SupplyAllocator allocator = new SupplyAllocator(this.esql);
+    List<SupplyAllocator.Request> batch =
+        new ArrayList<SupplyAllocator.Request>();
+    batch.add(new SupplyAllocator.Request(req.session.userID, storeID,
+                                          productName, units));
+    // ship from the given warehouse, or else from the nearest ones with
+    // room; either way the request is written in one transaction
+    SupplyAllocator.Plan plan =
+        warehouseID != null
+            ? SupplyAllocator.fromWarehouse(batch, warehouseID.intValue())
+            : allocator.allocate(batch, allocator.loadWarehouses());
+    if (!plan.allocations.isEmpty())
+      allocator.place(plan);
+    if (!plan.rejected.isEmpty())
+      throw new ApiException(404, "Product not found in the specified store");
+    List<Map<String, Object>> shipments = new ArrayList<Map<String, Object>>();
+    for (SupplyAllocator.Allocation a : plan.allocations) {
+      Map<String, Object> shipment = result("warehouseID", a.warehouseID);
+      shipment.put("units", a.units);
+      shipments.add(shipment);
+    }
+    Map<String, Object> out = result("shipments", shipments);
+    out.put("unitsShort", units - plan.allocatedUnits());
+    return out;
+  } // end placeSupplyRequest
+
+  // the catalog spelling of the productName member; unknown names are
+  // answered with the closest known ones
+  private String productName(Request req) throws SQLException {
+    String input = req.string("productName");
+    String name = this.esql.productSearch().resolve(input);
+    if (name != null)
+      return name;
+    List<String> suggestions = this.esql.productSearch().suggest(input, 5);
+    throw new ApiException(
+        404, suggestions.isEmpty()
+                 ? "Product not found"
+                 : "Product not found, did you mean: " +
+                       String.join(", ", suggestions) + "?");
+  } // end productName
+
+  // the store must exist and, if asked, be managed by the session's user
+  private void checkStore(Session session, int storeID, boolean mustManage)
+      throws SQLException {
+    if (!this.esql.storeCache().exists(storeID))
+      throw new ApiException(404, "Store does not exist");
+    if (mustManage && !this.esql.storeCache().isManagedBy(storeID,
+                                                          session.userID))
+      throw new ApiException(403, "You are not the manager of this store");
+  } // end checkStore
+
+  private static Map<String, Object> result(String key, Object value) {
+    Map<String, Object> out = new LinkedHashMap<String, Object>();
+    out.put(key, value);
+    return out;
+  }
+
+  /**
+   * Returns a handler that adds every row to {@code rows} as a map from
+   * column label to value. Fixed-width strings are trimmed.
+   */
+  static RowHandler collect(final List<Map<String, Object>> rows) {
+    return new RowHandler() {
+      public void handle(ResultSet rs) throws SQLException {
+        ResultSetMetaData rsmd = rs.getMetaData();
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        for (int i = 1; i <= rsmd.getColumnCount(); ++i) {
+          Object value = rs.getObject(i);
+          if (value instanceof String)
+            value = ((String)value).trim();
+          else if (value instanceof java.util.Date)
+            value = value.toString();
+          row.put(rsmd.getColumnName(i), value);
+        }
+        rows.add(row);
+      }
+    };
+  } // end collect
+
+  // names the columns of rows returned as strings; values are trimmed
+  private static List<Map<String, Object>> rows(String[] header,
+                                                List<List<String>> page) {
+    List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+    for (List<String> values : page) {
+      Map<String, Object> row = new LinkedHashMap<String, Object>();
+      for (int i = 0; i < header.length && i < values.size(); ++i)
+        row.put(header[i], values.get(i) == null ? null : values.get(i).trim());
+      rows.add(row);
+    }
+    return rows;
+  } // end rows
+
+  private final HttpHandler dispatcher = new HttpHandler() {
+    public void handle(HttpExchange exchange) throws IOException {
+      int status = 200;
+      Object response;
+      try {
+        response = dispatch(exchange);
+      } catch (ApiException e) {
+        status = e.status;
+        response = result("error", e.getMessage());
+      } catch (IllegalArgumentException e) {
+        status = 400;
+        response = result("error", e.getMessage());
+      } catch (Exception e) {
+        // the message may carry SQL or schema details, so it stays here
+        System.err.println(e.getMessage());
+        status = 500;
+        response = result("error", "Internal server error");
+      }
+      byte[] bytes = Json.write(response).getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type",
+                                        "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    }
+  };
+
+  private Object dispatch(HttpExchange exchange) throws Exception {
+    String path = exchange.getRequestURI().getPath();
+    boolean pathFound = false;
+    for (Route route : this.routes) {
+      Matcher m = route.path.matcher(path);
+      if (!m.matches())
+        continue;
+      pathFound = true;
+      if (!route.method.equals(exchange.getRequestMethod()))
+        continue;
+
+      Session session = null;
+      if (route.roles != null) {
+        session = authenticate(exchange);
+        if (!hasRole(route.roles, session.type))
+          throw new ApiException(403, "Not allowed for a " + session.type);
+      }
+      Request req = new Request(exchange, m, session);
+      req.body = "POST".equals(route.method)
+                     ? readBody(exchange)
+                     : new LinkedHashMap<String, Object>();
+      return route.endpoint.handle(req);
+    }
+    throw pathFound ? new ApiException(405, "Method not allowed")
+                    : new ApiException(404, "No such resource: " + path);
+  } // end dispatch
+
+  private Session authenticate(HttpExchange exchange) {
+    String header = exchange.getRequestHeaders().getFirst("Authorization");
+    if (header == null || !header.startsWith("Bearer "))
+      throw new ApiException(401, "Log in first");
+    Session session = this.sessions.get(header.substring(7).trim());
+    long now = System.currentTimeMillis();
+    if (session == null || now - session.lastSeen > this.sessionIdleMillis)
+      throw new ApiException(401, "Session expired, log in again");
+    session.lastSeen = now;
+    return session;
+  } // end authenticate
+
+  private static boolean hasRole(String[] roles, String type) {
+    for (String role : roles) {
+      if (role.equals(type))
+        return true;
+    }
+    return false;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> readBody(HttpExchange exchange)
+      throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    try (InputStream in = exchange.getRequestBody()) {
+      byte[] chunk = new byte[4096];
+      int n;
+      while ((n = in.read(chunk)) > 0) {
+        buf.write(chunk, 0, n);
+        if (buf.size() > MAX_BODY)
+          throw new ApiException(413, "Request body too large");
+      }
+    }
+    String text = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+    if (text.trim().isEmpty())
+      return new LinkedHashMap<String, Object>();
+    Object body = Json.parse(text);
+    if (!(body instanceof Map))
+      throw new ApiException(400, "Expected a JSON object");
+    return (Map<String, Object>)body;
+  } // end readBody
+
+  private static Map<String, String> parseQuery(String raw) {
+    Map<String, String> query = new LinkedHashMap<String, String>();
+    if (raw == null)
+      return query;
+    for (String pair : raw.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0)
+        query.put(
+            URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+    }
+    return query;
+  } // end parseQuery
+
+  /**
+   * Returns an executor that runs each request on its own virtual thread
+   * when the JVM supports it, otherwise a fixed pool of platform threads.
+   */
+  static ExecutorService newRequestExecutor(int threads) {
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService)m.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(threads);
+    }
+  } // end newRequestExecutor
+
+  /**
+   * Starts serving on {@code port}.
+   *
+   * @throws java.io.IOException when the port cannot be bound
+   */
+  public synchronized void start(int port, int threads) throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    this.server.createContext("/api/", this.dispatcher);
+    this.executor = newRequestExecutor(threads);
+    this.server.setExecutor(this.executor);
+    this.server.start();
+
+    // two threads, so archiving a partition does not hold up the sessions
+    this.sweeper = Executors.newScheduledThreadPool(2, r -> {
+      Thread t = new Thread(r, "server-maintenance");
+      t.setDaemon(true);
+      return t;
+    });
+    this.sweeper.scheduleAtFixedRate(this::dropIdleSessions, 1, 1,
+                                     TimeUnit.MINUTES);
+    this.sweeper.scheduleAtFixedRate(this::maintainOrderPartitions, 0, 1,
+                                     TimeUnit.DAYS);
+  } // end start
+
+  // keeps partitions ready for the coming months' orders and archives old
+  // ones, see OrderPartitions.maintain()
+  private void maintainOrderPartitions() {
+    try {
+      new OrderPartitions(this.esql).maintain();
+    } catch (Exception e) {
+      // a failure must not cancel the schedule; tomorrow's run retries
+      System.err.println(e.getMessage());
+    }
+  } // end maintainOrderPartitions
+
+  private void dropIdleSessions() {
+    long cutoff = System.currentTimeMillis() - this.sessionIdleMillis;
+    Iterator<Session> it = this.sessions.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().lastSeen < cutoff)
+        it.remove();
+    }
+  } // end dropIdleSessions
+
+  /**
+   * Returns the number of live sessions.
+   */
+  public int sessionCount() { return this.sessions.size(); }
+
+  /**
+   * Stops accepting requests, letting running ones finish for up to
+   * {@code graceSeconds}.
+   */
+  public synchronized void stop(int graceSeconds) {
+    if (this.server == null)
+      return;
+    this.server.stop(graceSeconds);
+    this.sweeper.shutdownNow();
+    this.executor.shutdown();
+    this.server = null;
+  } // end stop
+
+  /**
+   * Runs the service from the command line until the process is stopped.
+   *
+   * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [http port]
+   */
+  public static void main(String[] args) {
+    if (args.length < 3 || args.length > 4) {
+      System.err.println("Usage: "
+                         + "java [-classpath <classpath>] " +
+                         AmazonServer.class.getName() +
+                         " <dbname> <port> <user> [http port]");
+      return;
+    } // end if
+
+    try {
+      Class.forName("org.postgresql.Driver");
+      final Amazon esql = new Amazon(args[0], args[1], args[2], "");
+      long idleMinutes = Long.getLong("amazon.http.sessionIdleMinutes", 30L);
+      final AmazonServer server =
+          new AmazonServer(esql, idleMinutes * 60 * 1000L);
+      int httpPort = args.length == 4 ? Integer.parseInt(args[3]) : 8080;
+      server.start(httpPort, Integer.getInteger("amazon.http.threads", 64));
+      System.out.println("Serving on http://localhost:" + httpPort + "/api/");
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        server.stop(5);
+        esql.cleanup();
+      }));
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  } // end main
+} // end AmazonServer
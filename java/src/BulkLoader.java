@@ -0,0 +1,528 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads the CSV files under data/ into freshly created tables.
+ *
+ * Tables are loaded level by level in foreign key order; the tables of one
+ * level do not reference each other and are loaded in parallel, each on
+ * its own connection. Each file is streamed to the server with COPY FROM
+ * STDIN when the JDBC driver offers the COPY API, and otherwise, as with
+ * the bundled pg73 driver, with INSERTs of ROWS_PER_INSERT rows each.
+ *
+ * The secondary indexes of create_indexes.sql and the triggers of
+ * triggers.sql are dropped before the load and created once the data is
+ * in, so rows are not indexed one at a time and the order triggers do not
+ * fire for historical orders. The Orders partitions for the months in
+ * orders.csv are created before it is loaded. Finally every serial
+ * sequence is moved past the largest loaded ID.
+ */
+public class BulkLoader {
+
+  // loaded in this order; the tables of one level are independent
+  private static final String[][] LEVELS = {
+      {"Users", "users.csv", "Warehouse", "warehouse.csv"},
+      {"Store", "stores.csv"},
+      {"Product", "products.csv"},
+      {"Orders", "orders.csv", "ProductSupplyRequests",
+       "productSupplyRequests.csv", "ProductUpdates", "productUpdates.csv"}};
+
+  private static final Pattern DROP_STATEMENT = Pattern.compile(
+      "^DROP (INDEX|TRIGGER) IF EXISTS [^;]+;",
+      Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
+  private static final String COLUMN_TYPES =
+      "SELECT a.attname, format_type(a.atttypid, a.atttypmod) FROM pg_attribute a WHERE a.attrelid = CAST(? AS regclass) AND a.attnum > 0 AND NOT a.attisdropped";
+  private static final String SERIAL_SEQUENCE =
+      "SELECT pg_get_serial_sequence(?, ?)";
+  // rows per INSERT when COPY is not available, within the protocol's
+  // limit on parameters per statement
+  private static final int ROWS_PER_INSERT = 1000;
+  private static final int MAX_PARAMETERS = 32767;
+
+  /**
+   * Rows and timing of one table.
+   */
+  public static class Result {
+    public final String table;
+    public final long rows;
+    public final long elapsedNanos;
+    public final String method;
+
+    Result(String table, long rows, long elapsedNanos, String method) {
+      this.table = table;
+      this.rows = rows;
+      this.elapsedNanos = elapsedNanos;
+      this.method = method;
+    }
+
+    public String toString() {
+      double seconds = this.elapsedNanos / 1e9;
+      return String.format("%-22s %10d rows %8.2f s %10.0f rows/sec  (%s)",
+                           this.table, this.rows, seconds,
+                           seconds == 0 ? 0.0 : this.rows / seconds,
+                           this.method);
+    }
+  } // end Result
+
+  private final Amazon esql;
+  private final File dataDir;
+  private final File sqlDir;
+
+  /**
+   * @param esql the database, with the tables of create_tables.sql
+   * @param dataDir the directory holding the CSV files
+   * @param sqlDir the directory holding create_indexes.sql and triggers.sql
+   */
+  public BulkLoader(Amazon esql, File dataDir, File sqlDir) {
+    this.esql = esql;
+    this.dataDir = dataDir;
+    this.sqlDir = sqlDir;
+  }
+
+  /**
+   * Runs the whole load: drops indexes and triggers, loads every table,
+   * recreates indexes and triggers and resets the sequences.
+   *
+   * @return the result of every table, in load order
+   * @throws java.lang.Exception when a step fails; tables loaded before the
+   *     failure stay loaded
+   */
+  public List<Result> load() throws Exception {
+    String indexes = read("create_indexes.sql");
+    String triggers = read("triggers.sql");
+    runDrops(indexes);
+    runDrops(triggers);
+
+    List<Result> results = new ArrayList<Result>();
+    int threads = 0;
+    for (String[] level : LEVELS)
+      threads = Math.max(threads, level.length / 2);
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    try {
+      for (String[] level : LEVELS) {
+        List<Future<Result>> running = new ArrayList<Future<Result>>();
+        for (int i = 0; i < level.length; i += 2) {
+          final String table = level[i];
+          final File file = new File(this.dataDir, level[i + 1]);
+          if (table.equals("Orders"))
+            createOrderPartitions(file);
+          running.add(workers.submit(() -> loadTable(table, file)));
+        }
+        // the next level references this one, so wait for all of it
+        for (Future<Result> f : running) {
+          try {
+            Result r = f.get();
+            System.out.println("  " + r);
+            results.add(r);
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+              throw (Exception)e.getCause();
+            throw e;
+          }
+        }
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+
+    long start = System.nanoTime();
+    runScript(indexes);
+    System.out.printf("  indexes created in %.2f s\n",
+                      (System.nanoTime() - start) / 1e9);
+    start = System.nanoTime();
+    runScript(triggers);
+    System.out.printf("  triggers created and aggregates built in %.2f s\n",
+                      (System.nanoTime() - start) / 1e9);
+    for (Result r : results)
+      resetSequences(r.table);
+    return results;
+  } // end load
+
+  /**
+   * Loads one CSV file, with a header line naming the columns, into
+   * {@code table} in a single transaction.
+   */
+  Result loadTable(String table, File file) throws SQLException, IOException {
+    long start = System.nanoTime();
+    String[] header;
+    try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+      String line = in.readLine();
+      if (line == null)
+        throw new IOException("Empty file: " + file);
+      header = CsvReader.split(line);
+    }
+    String columns = String.join(", ", header);
+
+    PooledConnection conn = this.esql.pool().borrow();
+    try {
+      Connection c = conn.connection();
+      c.setAutoCommit(false);
+      Object copyApi = copyApi(c);
+      long rows;
+      String method;
+      if (copyApi != null) {
+        rows = copy(copyApi, table, columns, file);
+        method = "COPY";
+      } else {
+        rows = insert(conn, table, header, file);
+        method = "multi-row INSERT";
+      }
+      c.commit();
+      return new Result(table, rows, System.nanoTime() - start, method);
+    } catch (SQLException e) {
+      conn.failed(e);
+      throw new SQLException(table + ": " + e.getMessage(), e);
+    } finally {
+      this.esql.pool().release(conn);
+    }
+  } // end loadTable
+
+  /**
+   * Creates the Orders partitions for every orderTime in {@code file}, so
+   * no loaded order is left without a partition.
+   */
+  void createOrderPartitions(File file) throws SQLException, IOException {
+    String first = null;
+    String last = null;
+    try (CsvReader csv =
+             new CsvReader(new BufferedReader(new FileReader(file), 1 << 16))) {
+      String[] header = csv.next();
+      int column = -1;
+      for (int i = 0; header != null && i < header.length; ++i)
+        if (header[i].trim().equalsIgnoreCase("orderTime"))
+          column = i;
+      if (column < 0)
+        throw new IOException("No orderTime column in " + file);
+      String[] fields;
+      while ((fields = csv.next()) != null) {
+        if (fields.length <= column)
+          continue;
+        // timestamps in the ISO form sort as strings
+        String time = fields[column].trim();
+        if (first == null || time.compareTo(first) < 0)
+          first = time;
+        if (last == null || time.compareTo(last) > 0)
+          last = time;
+      }
+    }
+    if (first != null)
+      new OrderPartitions(this.esql).ensureRange(Timestamp.valueOf(first),
+                                                 Timestamp.valueOf(last));
+  } // end createOrderPartitions
+
+  // the driver's CopyManager, or null for drivers without the COPY API
+  private static Object copyApi(Connection c) {
+    try {
+      Method m = c.getClass().getMethod("getCopyAPI");
+      return m.invoke(c);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  } // end copyApi
+
+  private static long copy(Object copyApi, String table, String columns,
+                           File file) throws SQLException, IOException {
+    try (Reader in = new BufferedReader(new FileReader(file), 1 << 16)) {
+      return copy(copyApi, "COPY " + table + " (" + columns +
+                               ") FROM STDIN WITH DELIMITER ',' CSV HEADER",
+                  in);
+    }
+  } // end copy
+
+  private static long copy(Object copyApi, String sql, Reader in)
+      throws SQLException, IOException {
+    try {
+      Method copyIn =
+          copyApi.getClass().getMethod("copyIn", String.class, Reader.class);
+      return ((Number)copyIn.invoke(copyApi, sql, in)).longValue();
+    } catch (java.lang.reflect.InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException)
+        throw (SQLException)cause;
+      if (cause instanceof IOException)
+        throw (IOException)cause;
+      throw new SQLException("COPY failed: " + cause);
+    } catch (ReflectiveOperationException e) {
+      throw new SQLException("COPY API not usable: " + e);
+    }
+  } // end copy
+
+  /**
+   * Sends rows held in memory to {@code table} inside the open transaction
+   * of {@code conn}, the same way a CSV file is loaded: with COPY FROM
+   * STDIN when the driver offers the COPY API, otherwise with INSERTs of
+   * ROWS_PER_INSERT rows each. Null fields are loaded as NULL.
+   *
+   * @param conn a connection with autocommit off
+   * @param table the table the rows go to
+   * @param header the columns of the rows, in order
+   * @param rows the values of each row, as text the columns accept
+   * @return the number of rows sent
+   * @throws java.sql.SQLException when the rows cannot be stored
+   */
+  static long stage(PooledConnection conn, String table, String[] header,
+                    List<String[]> rows) throws SQLException {
+    Object copyApi = copyApi(conn.connection());
+    if (copyApi == null) {
+      final Iterator<String[]> it = rows.iterator();
+      try {
+        return insert(conn, table, header, () -> it.hasNext() ? it.next()
+                                                               : null);
+      } catch (IOException e) {
+        throw new SQLException(table + ": " + e.getMessage(), e);
+      }
+    }
+    StringBuilder csv = new StringBuilder();
+    for (String[] row : rows) {
+      for (int i = 0; i < row.length; ++i) {
+        if (i > 0)
+          csv.append(',');
+        // COPY reads an unquoted empty field as NULL and a quoted one as
+        // the empty string
+        if (row[i] != null)
+          csv.append('"').append(row[i].replace("\"", "\"\"")).append('"');
+      }
+      csv.append('\n');
+    }
+    try {
+      return copy(copyApi, "COPY " + table + " (" + String.join(", ", header) +
+                               ") FROM STDIN WITH DELIMITER ',' CSV",
+                  new StringReader(csv.toString()));
+    } catch (IOException e) {
+      throw new SQLException(table + ": " + e.getMessage(), e);
+    }
+  } // end stage
+
+  // the rows of a file or of a list, one at a time, null after the last
+  private interface RowSource {
+    String[] next() throws IOException;
+  }
+
+  private static long insert(PooledConnection conn, String table,
+                             final String[] header, final File file)
+      throws SQLException, IOException {
+    try (CsvReader csv =
+             new CsvReader(new BufferedReader(new FileReader(file), 1 << 16))) {
+      csv.next(); // header
+      return insert(conn, table, header, () -> {
+        String[] fields = csv.next();
+        if (fields != null && fields.length != header.length)
+          throw new IOException(file + " line " + csv.lineNumber() +
+                                ": expected " + header.length + " fields");
+        return fields;
+      });
+    }
+  } // end insert
+
+  // fallback for drivers without COPY, such as the bundled pg73 driver.
+  // Its executeBatch sends one statement per row, so rows are sent
+  // ROWS_PER_INSERT at a time as multi-row INSERTs instead, one round trip
+  // each. Empty fields are loaded as NULL, as COPY does
+  private static long insert(PooledConnection conn, String table,
+                             String[] header, RowSource source)
+      throws SQLException, IOException {
+    List<String> types = columnTypes(conn, table, header);
+    int perInsert = Math.max(1, Math.min(ROWS_PER_INSERT,
+                                         MAX_PARAMETERS / header.length));
+    PreparedStatement full = conn.connection().prepareStatement(
+        insertSql(table, header, types, perInsert));
+    String[][] pending = new String[perInsert][];
+    int held = 0;
+    long rows = 0;
+    try {
+      String[] fields;
+      while ((fields = source.next()) != null) {
+        pending[held++] = fields;
+        if (held == perInsert) {
+          bind(full, pending, held);
+          full.executeUpdate();
+          rows += held;
+          held = 0;
+        }
+      }
+      if (held > 0) {
+        PreparedStatement rest = conn.connection().prepareStatement(
+            insertSql(table, header, types, held));
+        try {
+          bind(rest, pending, held);
+          rest.executeUpdate();
+        } finally {
+          rest.close();
+        }
+        rows += held;
+      }
+    } finally {
+      full.close();
+    }
+    return rows;
+  } // end insert
+
+  // INSERT INTO table (columns) VALUES (CAST(? AS type), ...), ... with
+  // {@code count} rows
+  private static String insertSql(String table, String[] header,
+                                  List<String> types, int count) {
+    StringBuilder row = new StringBuilder("(");
+    for (int i = 0; i < header.length; ++i) {
+      if (i > 0)
+        row.append(", ");
+      row.append("CAST(? AS ").append(types.get(i)).append(')');
+    }
+    row.append(')');
+    StringBuilder sql = new StringBuilder("INSERT INTO " + table + " (" +
+                                          String.join(", ", header) +
+                                          ") VALUES ");
+    for (int r = 0; r < count; ++r) {
+      if (r > 0)
+        sql.append(", ");
+      sql.append(row);
+    }
+    return sql.toString();
+  } // end insertSql
+
+  private static void bind(PreparedStatement stmt, String[][] rows, int count)
+      throws SQLException {
+    int p = 0;
+    for (int r = 0; r < count; ++r)
+      for (String field : rows[r])
+        stmt.setString(++p, field == null || field.isEmpty() ? null : field);
+  } // end bind
+
+  private static List<String> columnTypes(PooledConnection conn, String table,
+                                          String[] header)
+      throws SQLException {
+    List<String> names = new ArrayList<String>();
+    List<String> types = new ArrayList<String>();
+    PreparedStatement stmt = Amazon.prepare(conn, COLUMN_TYPES,
+                                            table.toLowerCase());
+    ResultSet rs = stmt.executeQuery();
+    while (rs.next()) {
+      names.add(rs.getString(1));
+      types.add(rs.getString(2));
+    }
+    rs.close();
+
+    List<String> ordered = new ArrayList<String>();
+    for (String column : header) {
+      int i = names.indexOf(column.trim().toLowerCase());
+      if (i < 0)
+        throw new SQLException("No column " + column + " in " + table);
+      ordered.add(types.get(i));
+    }
+    return ordered;
+  } // end columnTypes
+
+  /**
+   * Moves every serial sequence of {@code table} past the largest value in
+   * its column, so new rows do not collide with loaded ones.
+   */
+  void resetSequences(String table) throws SQLException {
+    List<List<String>> columns = this.esql.executeQueryAndReturnResult(
+        "SELECT a.attname FROM pg_attribute a WHERE a.attrelid = CAST(? AS regclass) AND a.attnum > 0 AND NOT a.attisdropped",
+        table.toLowerCase());
+    for (List<String> column : columns) {
+      List<List<String>> seq = this.esql.executeQueryAndReturnResult(
+          SERIAL_SEQUENCE, table.toLowerCase(), column.get(0));
+      String sequence = seq.get(0).get(0);
+      if (sequence == null)
+        continue;
+      // table and column names come from the catalog, not from input
+      List<List<String>> next = this.esql.executeQueryAndReturnResult(
+          "SELECT setval(CAST(? AS regclass), COALESCE(MAX(" + column.get(0) +
+              "), 0) + 1, false) FROM " + table,
+          sequence);
+      System.out.println("  " + sequence + " restarts at " +
+                         next.get(0).get(0));
+    }
+  } // end resetSequences
+
+  private String read(String name) throws IOException {
+    return new String(Files.readAllBytes(new File(this.sqlDir, name).toPath()),
+                      StandardCharsets.UTF_8);
+  }
+
+  // runs the DROP INDEX / DROP TRIGGER statements of a script
+  private void runDrops(String script) throws SQLException {
+    Matcher m = DROP_STATEMENT.matcher(script);
+    StringBuilder drops = new StringBuilder();
+    while (m.find())
+      drops.append(m.group()).append('\n');
+    if (drops.length() > 0)
+      runScript(drops.toString());
+  } // end runDrops
+
+  // sends a whole script in one simple query; the server splits the
+  // statements, including $$-quoted function bodies
+  private void runScript(String script) throws SQLException {
+    PooledConnection conn = this.esql.pool().borrow();
+    try {
+      Statement stmt = conn.connection().createStatement();
+      stmt.execute(script);
+      stmt.close();
+    } catch (SQLException e) {
+      conn.failed(e);
+      throw e;
+    } finally {
+      this.esql.pool().release(conn);
+    }
+  } // end runScript
+
+  /**
+   * Loads the sample data from the command line.
+   *
+   * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;data dir&gt;
+   *     &lt;sql dir&gt;
+   */
+  public static void main(String[] args) {
+    if (args.length != 5) {
+      System.err.println("Usage: "
+                         + "java [-classpath <classpath>] " +
+                         BulkLoader.class.getName() +
+                         " <dbname> <port> <user> <data dir> <sql dir>");
+      System.exit(2);
+    } // end if
+
+    // one connection per table loaded in parallel
+    if (System.getProperty("amazon.pool.max") == null)
+      System.setProperty("amazon.pool.max", "4");
+
+    Amazon esql = null;
+    int status = 0;
+    try {
+      Class.forName("org.postgresql.Driver");
+      esql = new Amazon(args[0], args[1], args[2], "");
+      long start = System.nanoTime();
+      new BulkLoader(esql, new File(args[3]), new File(args[4])).load();
+      System.out.printf("Loaded in %.2f s\n",
+                        (System.nanoTime() - start) / 1e9);
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+      status = 1;
+    } finally {
+      if (esql != null)
+        esql.cleanup();
+    }
+    System.exit(status);
+  } // end main
+} // end BulkLoader
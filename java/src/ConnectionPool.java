@@ -0,0 +1,315 @@
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of Postgres connections.
+ *
+ * At most {@code maxSize} connections exist at once; a borrower waits up to
+ * {@code maxWaitMillis} for one to be released before failing. Connections
+ * that sat idle for longer than {@code validateAfterMillis} are checked with
+ * a trivial query before they are handed out, and idle connections above
+ * {@code minSize} are closed by a background evictor once they have been
+ * unused for {@code idleTimeoutMillis}.
+ */
+public class ConnectionPool {
+
+  private static final String VALIDATION_QUERY = "SELECT 1";
+
+  private final String url;
+  private final String user;
+  private final String passwd;
+  private final int minSize;
+  private final int maxSize;
+  private final long maxWaitMillis;
+  private final long idleTimeoutMillis;
+  private final long validateAfterMillis;
+  private final int statementCacheSize;
+
+  // one permit per connection that may still be lent out
+  private final Semaphore permits;
+  // most recently released first, so busy periods reuse warm connections
+  private final ArrayDeque<PooledConnection> idle =
+      new ArrayDeque<PooledConnection>();
+  private int open = 0;
+  private boolean closed = false;
+  private final ScheduledExecutorService evictor;
+
+  // metrics
+  private final AtomicLong borrows = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+  private final LatencyHistogram waits = new LatencyHistogram();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong destroyed = new AtomicLong();
+  private final AtomicLong validationFailures = new AtomicLong();
+
+  /**
+   * Creates the pool and opens {@code minSize} connections up front.
+   *
+   * @param url the JDBC URL of the database
+   * @param user the user name used to login to the database
+   * @param passwd the user login password
+   * @param minSize connections kept open even when idle
+   * @param maxSize upper bound on open connections
+   * @param maxWaitMillis how long a borrower waits for a free connection
+   * @param idleTimeoutMillis idle time after which surplus connections close
+   * @param validateAfterMillis idle time after which a connection is
+   *     validated before it is lent out
+   * @param statementCacheSize prepared statements cached per connection
+   * @throws java.sql.SQLException when the initial connections fail
+   */
+  public ConnectionPool(String url, String user, String passwd, int minSize,
+                        int maxSize, long maxWaitMillis,
+                        long idleTimeoutMillis, long validateAfterMillis,
+                        int statementCacheSize) throws SQLException {
+    if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+      throw new IllegalArgumentException("Invalid pool size: min " + minSize +
+                                         ", max " + maxSize);
+    this.url = url;
+    this.user = user;
+    this.passwd = passwd;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.maxWaitMillis = maxWaitMillis;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.validateAfterMillis = validateAfterMillis;
+    this.statementCacheSize = statementCacheSize;
+    this.permits = new Semaphore(maxSize, true);
+
+    List<PooledConnection> initial = new ArrayList<PooledConnection>();
+    try {
+      for (int i = 0; i < minSize; ++i)
+        initial.add(open());
+    } catch (SQLException e) {
+      for (PooledConnection conn : initial)
+        destroy(conn);
+      throw e;
+    }
+    synchronized (this) {
+      this.idle.addAll(initial);
+    }
+
+    this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "connection-pool-evictor");
+      t.setDaemon(true);
+      return t;
+    });
+    long period = Math.max(1000L, idleTimeoutMillis / 2);
+    this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period,
+                                        TimeUnit.MILLISECONDS);
+  } // end ConnectionPool
+
+  /**
+   * Borrows a connection, waiting up to {@code maxWaitMillis} for one to be
+   * released when the pool is exhausted. Every borrowed connection must be
+   * given back with {@link #release}.
+   *
+   * @return a validated connection
+   * @throws java.sql.SQLException when no connection became available in
+   *     time or a new one could not be opened
+   */
+  public PooledConnection borrow() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      if (!this.permits.tryAcquire(this.maxWaitMillis,
+                                   TimeUnit.MILLISECONDS)) {
+        this.timeouts.incrementAndGet();
+        throw new SQLException("Timed out after " + this.maxWaitMillis +
+                               " ms waiting for a database connection");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a database connection");
+    }
+    recordWait(System.nanoTime() - start);
+
+    try {
+      while (true) {
+        PooledConnection conn;
+        synchronized (this) {
+          if (this.closed)
+            throw new SQLException("Connection pool is closed");
+          conn = this.idle.pollFirst();
+          if (conn == null) {
+            // a permit guarantees room for one more connection
+            ++this.open;
+            break;
+          }
+        }
+        if (validate(conn))
+          return conn;
+        this.validationFailures.incrementAndGet();
+        discard(conn);
+      }
+      try {
+        return open();
+      } catch (SQLException e) {
+        synchronized (this) {
+          --this.open;
+        }
+        throw e;
+      }
+    } catch (SQLException | RuntimeException e) {
+      this.permits.release();
+      throw e;
+    }
+  } // end borrow
+
+  /**
+   * Gives a borrowed connection back to the pool. Connections marked broken
+   * through {@link PooledConnection#failed} are closed instead of reused.
+   *
+   * @param conn the connection obtained from {@link #borrow}
+   */
+  public void release(PooledConnection conn) {
+    boolean keep = false;
+    if (!conn.isBroken()) {
+      try {
+        // leave no half-finished transaction for the next borrower
+        if (!conn.connection().getAutoCommit()) {
+          conn.connection().rollback();
+          conn.connection().setAutoCommit(true);
+        }
+        keep = true;
+      } catch (SQLException e) {
+        keep = false;
+      }
+    }
+    if (keep) {
+      conn.lastUsedAt = System.currentTimeMillis();
+      synchronized (this) {
+        if (!this.closed) {
+          this.idle.addFirst(conn);
+          conn = null;
+        }
+      }
+    }
+    if (conn != null)
+      discard(conn);
+    this.permits.release();
+  } // end release
+
+  /**
+   * Closes every idle connection and refuses further borrows. Connections
+   * still lent out are closed when they are released.
+   */
+  public void close() {
+    this.evictor.shutdownNow();
+    List<PooledConnection> toClose;
+    synchronized (this) {
+      this.closed = true;
+      toClose = new ArrayList<PooledConnection>(this.idle);
+      this.idle.clear();
+    }
+    for (PooledConnection conn : toClose)
+      discard(conn);
+  } // end close
+
+  /**
+   * Returns a one-line summary of the pool state and wait-time metrics.
+   */
+  public String stats() {
+    long n = this.borrows.get();
+    return String.format(
+        "open=%d idle=%d borrows=%d avgWait=%.3fms maxWait=%.3fms " +
+            "timeouts=%d created=%d destroyed=%d validationFailures=%d",
+        openCount(), idleCount(), n,
+        n == 0 ? 0.0 : this.waitNanos.get() / 1e6 / n,
+        this.maxWaitNanos.get() / 1e6, this.timeouts.get(),
+        this.created.get(), this.destroyed.get(),
+        this.validationFailures.get());
+  } // end stats
+
+  public synchronized int openCount() { return this.open; }
+
+  public synchronized int idleCount() { return this.idle.size(); }
+
+  public int maxSize() { return this.maxSize; }
+
+  public long borrowCount() { return this.borrows.get(); }
+
+  public long totalWaitNanos() { return this.waitNanos.get(); }
+
+  public long maxWaitNanos() { return this.maxWaitNanos.get(); }
+
+  public long timeoutCount() { return this.timeouts.get(); }
+
+  /**
+   * Returns the distribution of the time borrowers waited for a connection.
+   */
+  public LatencyHistogram waitHistogram() { return this.waits; }
+
+  private PooledConnection open() throws SQLException {
+    PooledConnection conn = new PooledConnection(
+        DriverManager.getConnection(this.url, this.user, this.passwd),
+        this.statementCacheSize);
+    this.created.incrementAndGet();
+    return conn;
+  } // end open
+
+  private boolean validate(PooledConnection conn) {
+    if (System.currentTimeMillis() - conn.lastUsedAt < this.validateAfterMillis)
+      return true;
+    try {
+      ResultSet rs = conn.prepare(VALIDATION_QUERY).executeQuery();
+      rs.close();
+      conn.lastUsedAt = System.currentTimeMillis();
+      return true;
+    } catch (SQLException e) {
+      return false;
+    }
+  } // end validate
+
+  // closes a connection that was counted in open
+  private void discard(PooledConnection conn) {
+    synchronized (this) {
+      --this.open;
+    }
+    destroy(conn);
+  } // end discard
+
+  private void destroy(PooledConnection conn) {
+    conn.close();
+    this.destroyed.incrementAndGet();
+  }
+
+  private void recordWait(long nanos) {
+    this.borrows.incrementAndGet();
+    this.waitNanos.addAndGet(nanos);
+    this.maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    this.waits.record(nanos);
+  } // end recordWait
+
+  /**
+   * Closes idle connections above minSize that have not been used for
+   * idleTimeoutMillis.
+   */
+  private void evictIdle() {
+    long cutoff = System.currentTimeMillis() - this.idleTimeoutMillis;
+    List<PooledConnection> expired = new ArrayList<PooledConnection>();
+    synchronized (this) {
+      // the least recently used connections sit at the tail
+      Iterator<PooledConnection> it = this.idle.descendingIterator();
+      while (it.hasNext() && this.open - expired.size() > this.minSize) {
+        PooledConnection conn = it.next();
+        if (conn.lastUsedAt > cutoff)
+          break;
+        it.remove();
+        expired.add(conn);
+      }
+    }
+    for (PooledConnection conn : expired)
+      discard(conn);
+  } // end evictIdle
+} // end ConnectionPool
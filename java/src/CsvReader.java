@@ -0,0 +1,73 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal streaming reader for the comma separated files under data/.
+ * Fields may be wrapped in double quotes, with "" standing for a literal
+ * quote; quoted fields may not span lines. Only one line is held at a time.
+ */
+public class CsvReader implements Closeable {
+
+  private final BufferedReader in;
+  private int lineNumber = 0;
+
+  public CsvReader(BufferedReader in) { this.in = in; }
+
+  /**
+   * Reads and splits the next non-empty line.
+   *
+   * @return the fields of the line, or null at the end of the input
+   * @throws java.io.IOException when the input cannot be read
+   */
+  public String[] next() throws IOException {
+    String line;
+    do {
+      line = this.in.readLine();
+      if (line == null)
+        return null;
+      ++this.lineNumber;
+    } while (line.trim().isEmpty());
+    return split(line);
+  } // end next
+
+  /**
+   * Returns the 1-based number of the line last returned by next().
+   */
+  public int lineNumber() { return this.lineNumber; }
+
+  public void close() throws IOException { this.in.close(); }
+
+  /**
+   * Splits one CSV line into its fields.
+   */
+  public static String[] split(String line) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); ++i) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          ++i;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields.toArray(new String[fields.size()]);
+  } // end split
+} // end CsvReader
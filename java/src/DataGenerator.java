@@ -0,0 +1,635 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.SplittableRandom;
+
+/**
+ * Writes a synthetic data set in the CSV layouts of data/, at any scale,
+ * for loading with BulkLoader.
+ *
+ * The output depends only on the seed and the sizes, so a data set can be
+ * regenerated instead of kept. Each file is written row by row from its
+ * own random stream, and everything a row needs from another table is
+ * computed from the row's IDs rather than looked up, so memory does not
+ * grow with the number of rows.
+ *
+ * The data is skewed the way real orders are:
+ * <ul>
+ * <li>users, stores and warehouses sit around a few city centers, and the
+ * cities differ in size;</li>
+ * <li>a few heavy customers place many orders, drawn from a Zipf
+ * distribution over all customers;</li>
+ * <li>every store carries the same popular staples plus a slice of the
+ * long tail, and orders pick a store's products from a Zipf distribution,
+ * so the staples are hot everywhere;</li>
+ * <li>most orders go to a store in the customer's own city.</li>
+ * </ul>
+ * Order times rise through the period, so orders.csv is sorted by
+ * orderTime and fills the Orders partitions one after the other.
+ *
+ * Sizes follow the scale factor: 1 gives about the size of data/, 100
+ * users, 20 stores, 200 products and 500 orders, and 1000000 gives 500
+ * million orders. They can be set one by one with system properties:
+ * <pre>
+ *   amazon.gen.seed             random seed, default 1
+ *   amazon.gen.users            users, including managers and the admin,
+ *                               default 100 * scale
+ *   amazon.gen.stores           stores, default 20 * scale
+ *   amazon.gen.orders           orders, default 500 * scale
+ *   amazon.gen.catalog          distinct product names, default
+ *                               10 * sqrt(scale), at least 10
+ *   amazon.gen.productsPerStore products each store carries, default 10
+ *   amazon.gen.cities           city centers, default 4 * sqrt(scale) + 1
+ *   amazon.gen.skew             Zipf exponent of customers, products and
+ *                               city sizes, default 1.0
+ *   amazon.gen.days             days of order history, default 730
+ *   amazon.gen.end              time of the last order, default
+ *                               2016-09-10T13:00:00
+ * </pre>
+ */
+public class DataGenerator {
+
+  // the products of data/ open the catalog, as its most popular names
+  private static final String[] STAPLES = {
+      "Pepsi", "7up", "Lemonade", "Brisk", "Orange Juice", "Donuts",
+      "Pudding", "Ice Cream", "Egg", "Hot and Sour Soup"};
+  private static final String[] ADJECTIVES = {
+      "Fresh", "Organic", "Classic", "Spicy", "Sweet", "Smoked", "Frozen",
+      "Roasted", "Crispy", "Creamy", "Golden", "Wild", "Salted", "Dark",
+      "Green", "Honey", "Lemon", "Garlic", "Vanilla", "Mini"};
+  private static final String[] NOUNS = {
+      "Apples", "Bagels", "Beans", "Bread", "Butter", "Cereal", "Cheese",
+      "Chicken", "Chips", "Coffee", "Cookies", "Crackers", "Granola",
+      "Hummus", "Juice", "Milk", "Muffins", "Noodles", "Oats", "Pasta",
+      "Peanuts", "Pickles", "Pizza", "Rice", "Salsa", "Soda", "Soup",
+      "Tea", "Tortillas", "Yogurt"};
+  private static final String[] FIRST_NAMES = {
+      "Amy", "Bob", "Ruthie", "Paige", "Kobe", "Ellis", "Twila", "Laverna",
+      "Amina", "Mckenna", "Natalie", "Sid", "Ebba", "Reilly", "Katherine",
+      "Glenna", "Marshall", "Abdullah", "Willis", "Stanton", "Omar", "Lena",
+      "Hugo", "Priya", "Tomas", "Yuki", "Zara", "Felix", "Ines", "Jonah"};
+  private static final String[] LAST_NAMES = {
+      "Johns", "Braun", "Stamm", "Erdman", "Parisian", "Klocko", "Franecki",
+      "Langworth", "Pacocha", "Reilly", "Schmidt", "Nguyen", "Okafor",
+      "Silva", "Kowalski", "Haddad", "Lindqvist", "Moreau", "Tanaka",
+      "Varga"};
+  private static final char[] SEPARATORS = {'.', '_'};
+
+  // users and stores lie within this distance of their city center
+  private static final double CITY_SPREAD = 3.0;
+  // share of orders placed at a store outside the customer's city
+  private static final double TRAVEL = 0.15;
+
+  private final long seed;
+  private final int users;
+  private final int managers;
+  private final int stores;
+  private final long orders;
+  private final int catalog;
+  private final int productsPerStore;
+  private final int staples;
+  private final int warehouses;
+  private final long supplyRequests;
+  private final long productUpdates;
+  private final double skew;
+  private final long endSecond;
+  private final long spanSeconds;
+
+  // first user and store ID of each city, plus one past the last
+  private final int[] cityUsers;
+  private final int[] cityStores;
+  // spreads the Zipf ranks of the customers over their IDs
+  private final long customerStride;
+
+  /**
+   * Sizes the data set from {@code scale} and the amazon.gen properties.
+   *
+   * @param scale the scale factor, 1 for the size of data/
+   * @throws IllegalArgumentException when a size is out of range
+   */
+  public DataGenerator(double scale) {
+    if (!(scale > 0))
+      throw new IllegalArgumentException("The scale factor must be positive");
+    this.seed = Long.getLong("amazon.gen.seed", 1L);
+    this.stores = Integer.getInteger("amazon.gen.stores",
+                                     atLeast(1, 20 * scale));
+    // a manager runs three stores
+    this.managers = (this.stores + 2) / 3;
+    this.users = Integer.getInteger("amazon.gen.users",
+                                    atLeast(1, 100 * scale));
+    if (this.users < this.managers + 2)
+      throw new IllegalArgumentException(
+          "Need at least " + (this.managers + 2) + " users for " +
+          this.stores + " stores");
+    this.orders = Long.getLong("amazon.gen.orders",
+                               (long)Math.ceil(500 * scale));
+    this.catalog = Integer.getInteger("amazon.gen.catalog",
+                                      atLeast(10, 10 * Math.sqrt(scale)));
+    this.productsPerStore = Math.min(
+        this.catalog, Integer.getInteger("amazon.gen.productsPerStore", 10));
+    this.staples = this.productsPerStore / 2;
+    this.warehouses = Math.max(5, this.stores / 4);
+    this.supplyRequests = (long)Math.ceil(10 * scale);
+    this.productUpdates = (long)Math.ceil(50 * scale);
+    this.skew = Double.parseDouble(
+        System.getProperty("amazon.gen.skew", "1.0"));
+    if (this.catalog < 1 || this.productsPerStore < 1 || this.orders < 0 ||
+        this.skew < 0)
+      throw new IllegalArgumentException("Invalid data set size or skew");
+    this.endSecond = LocalDateTime.parse(
+        System.getProperty("amazon.gen.end", "2016-09-10T13:00:00"))
+        .toEpochSecond(ZoneOffset.UTC);
+    this.spanSeconds =
+        Long.getLong("amazon.gen.days", 730L) * 24 * 60 * 60;
+
+    int cities = Math.min(this.stores, Integer.getInteger(
+        "amazon.gen.cities", atLeast(1, 4 * Math.sqrt(scale) + 1)));
+    // user 1 is the admin and the managers come next; cities hold the
+    // customers
+    this.cityUsers = split(2 + this.managers, this.users + 1, cities);
+    this.cityStores = split(1, this.stores + 1, cities);
+    this.customerStride = stride(this.users - this.cityUsers[0] + 1);
+  } // end DataGenerator
+
+  private static int atLeast(int min, double value) {
+    return (int)Math.max(min, Math.min(Integer.MAX_VALUE, Math.round(value)));
+  }
+
+  // splits the IDs from..to-1 into Zipf sized runs, one per city
+  private int[] split(int from, int to, int cities) {
+    double[] weights = new double[cities];
+    double total = 0;
+    for (int c = 0; c < cities; ++c)
+      total += weights[c] = Math.pow(c + 1, -this.skew);
+    int[] starts = new int[cities + 1];
+    double sum = 0;
+    for (int c = 0; c < cities; ++c) {
+      starts[c] = from + (int)Math.round((to - from) * sum / total);
+      sum += weights[c];
+    }
+    starts[cities] = to;
+    return starts;
+  } // end split
+
+  /**
+   * Writes every CSV file of data/ into {@code dir}.
+   *
+   * @throws java.io.IOException when a file cannot be written
+   */
+  public void generate(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Cannot create " + dir);
+    writeUsers(new File(dir, "users.csv"));
+    writeWarehouses(new File(dir, "warehouse.csv"));
+    writeStores(new File(dir, "stores.csv"));
+    writeProducts(new File(dir, "products.csv"));
+    writeOrders(new File(dir, "orders.csv"));
+    writeSupplyRequests(new File(dir, "productSupplyRequests.csv"));
+    writeProductUpdates(new File(dir, "productUpdates.csv"));
+  } // end generate
+
+  private void writeUsers(File file) throws IOException {
+    SplittableRandom random = random(1);
+    StringBuilder row = new StringBuilder(128);
+    try (Writer out = open(file)) {
+      out.write("userID,name,password,latitude,longitude,type\n");
+      int city = 0;
+      for (int id = 1; id <= this.users; ++id) {
+        while (id >= this.cityUsers[city + 1])
+          ++city;
+        String type = id == 1 ? "admin"
+                    : id < this.cityUsers[0] ? "manager" : "customer";
+        row.setLength(0);
+        row.append(id).append(',');
+        if (id == 1)
+          row.append("Admin");
+        else
+          appendName(row, id - 2);
+        row.append(",xyz,");
+        // managers live in the city of their first store
+        appendLocation(row, random, id < this.cityUsers[0]
+                                    ? cityOfStore(3 * (id - 2) + 1) : city);
+        row.append(',').append(type).append('\n');
+        out.append(row);
+      }
+    }
+    System.out.println("  " + file.getName() + ": " + this.users + " rows");
+  } // end writeUsers
+
+  private void writeWarehouses(File file) throws IOException {
+    SplittableRandom random = random(2);
+    StringBuilder row = new StringBuilder(64);
+    int cities = this.cityStores.length - 1;
+    try (Writer out = open(file)) {
+      out.write("wareHouseID,area,latitude,longitude\n");
+      for (int id = 1; id <= this.warehouses; ++id) {
+        row.setLength(0);
+        row.append(id).append(',').append(10000 + random.nextInt(70000))
+           .append(',');
+        appendLocation(row, random, (id - 1) % cities);
+        row.append('\n');
+        out.append(row);
+      }
+    }
+    System.out.println("  " + file.getName() + ": " + this.warehouses +
+                       " rows");
+  } // end writeWarehouses
+
+  private void writeStores(File file) throws IOException {
+    SplittableRandom random = random(3);
+    StringBuilder row = new StringBuilder(64);
+    try (Writer out = open(file)) {
+      out.write("storeID,latitude,longitude,managerID,dateEstablished\n");
+      int city = 0;
+      for (int id = 1; id <= this.stores; ++id) {
+        while (id >= this.cityStores[city + 1])
+          ++city;
+        row.setLength(0);
+        row.append(id).append(',');
+        appendLocation(row, random, city);
+        LocalDate established =
+            LocalDate.of(1950, 1, 1).plusDays(random.nextInt(65 * 365));
+        row.append(',').append(managerOf(id)).append(',')
+           .append(established.getMonthValue()).append('/')
+           .append(established.getDayOfMonth()).append('/')
+           .append(established.getYear()).append('\n');
+        out.append(row);
+      }
+    }
+    System.out.println("  " + file.getName() + ": " + this.stores + " rows");
+  } // end writeStores
+
+  private void writeProducts(File file) throws IOException {
+    SplittableRandom random = random(4);
+    StringBuilder row = new StringBuilder(64);
+    try (Writer out = open(file)) {
+      out.write("storeID,productName,numberOfUnits,pricePerUnit\n");
+      for (int id = 1; id <= this.stores; ++id) {
+        for (int k = 0; k < this.productsPerStore; ++k) {
+          int product = productOf(id, k);
+          row.setLength(0);
+          row.append(id).append(',');
+          appendProductName(row, product);
+          // stores charge within a dollar of the product's list price
+          row.append(',').append(10 + random.nextInt(991)).append(',')
+             .append(Math.max(1, listPrice(product) - 1 + random.nextInt(3)))
+             .append('\n');
+          out.append(row);
+        }
+      }
+    }
+    System.out.println("  " + file.getName() + ": " +
+                       (long)this.stores * this.productsPerStore + " rows");
+  } // end writeProducts
+
+  private void writeOrders(File file) throws IOException {
+    SplittableRandom random = random(5);
+    Zipf customers = new Zipf(this.users - this.cityUsers[0] + 1, this.skew);
+    Zipf products = new Zipf(this.productsPerStore, this.skew);
+    Clock clock = new Clock();
+    StringBuilder row = new StringBuilder(96);
+    long start = System.nanoTime();
+    try (Writer out = open(file)) {
+      out.write("orderNumber,customerID,storeID,productName,unitsOrdered,"
+                + "orderTime\n");
+      for (long n = 1; n <= this.orders; ++n) {
+        int customer = customerOf(customers.sample(random));
+        int city = cityOfUser(customer);
+        int store;
+        if (random.nextDouble() < TRAVEL ||
+            this.cityStores[city] == this.cityStores[city + 1])
+          store = 1 + random.nextInt(this.stores);
+        else
+          store = this.cityStores[city] + random.nextInt(
+              this.cityStores[city + 1] - this.cityStores[city]);
+        int product = productOf(store, products.sample(random) - 1);
+        // mostly single units, sometimes a handful
+        int units = random.nextDouble() < 0.7 ? 1 : 2 + random.nextInt(9);
+        row.setLength(0);
+        row.append(n).append(',').append(customer).append(',')
+           .append(store).append(',');
+        appendProductName(row, product);
+        row.append(',').append(units).append(',');
+        clock.append(row, timeOf(n - 1, this.orders, random));
+        row.append('\n');
+        out.append(row);
+        if (n % 10000000 == 0)
+          System.out.printf("  orders.csv: %d rows, %.0f rows/s\n", n,
+                            n / ((System.nanoTime() - start) / 1e9));
+      }
+    }
+    System.out.println("  " + file.getName() + ": " + this.orders + " rows");
+  } // end writeOrders
+
+  private void writeSupplyRequests(File file) throws IOException {
+    SplittableRandom random = random(6);
+    StringBuilder row = new StringBuilder(96);
+    try (Writer out = open(file)) {
+      out.write("requestNumber,managerID,warehouseID,storeID,productName,"
+                + "unitsRequested\n");
+      for (long n = 1; n <= this.supplyRequests; ++n) {
+        int store = 1 + random.nextInt(this.stores);
+        row.setLength(0);
+        row.append(n).append(',').append(managerOf(store)).append(',')
+           .append(1 + random.nextInt(this.warehouses)).append(',')
+           .append(store).append(',');
+        appendProductName(row,
+                          productOf(store,
+                                    random.nextInt(this.productsPerStore)));
+        row.append(',').append(1 + random.nextInt(100)).append('\n');
+        out.append(row);
+      }
+    }
+    System.out.println("  " + file.getName() + ": " + this.supplyRequests +
+                       " rows");
+  } // end writeSupplyRequests
+
+  private void writeProductUpdates(File file) throws IOException {
+    SplittableRandom random = random(7);
+    Clock clock = new Clock();
+    StringBuilder row = new StringBuilder(96);
+    try (Writer out = open(file)) {
+      out.write("updateNumber,managerID,storeID,productName,updatedOn\n");
+      for (long n = 1; n <= this.productUpdates; ++n) {
+        int store = 1 + random.nextInt(this.stores);
+        row.setLength(0);
+        row.append(n).append(',').append(managerOf(store)).append(',')
+           .append(store).append(',');
+        appendProductName(row,
+                          productOf(store,
+                                    random.nextInt(this.productsPerStore)));
+        row.append(',');
+        clock.append(row, timeOf(n - 1, this.productUpdates, random));
+        row.append('\n');
+        out.append(row);
+      }
+    }
+    System.out.println("  " + file.getName() + ": " + this.productUpdates +
+                       " rows");
+  } // end writeProductUpdates
+
+  private static Writer open(File file) throws IOException {
+    return new BufferedWriter(new FileWriter(file), 1 << 16);
+  }
+
+  // each file draws from its own stream, so the files do not depend on
+  // which of them are generated
+  private SplittableRandom random(int stream) {
+    return new SplittableRandom(mix(this.seed * 31 + stream));
+  }
+
+  // SplitMix64's finalizer, for values derived from IDs
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  private int managerOf(int storeID) { return 2 + (storeID - 1) / 3; }
+
+  private int cityOfStore(int storeID) {
+    return find(this.cityStores, Math.min(storeID, this.stores));
+  }
+
+  private int cityOfUser(int userID) { return find(this.cityUsers, userID); }
+
+  // the run of starts holding id
+  private static int find(int[] starts, int id) {
+    int lo = 0;
+    int hi = starts.length - 2;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (starts[mid] <= id)
+        lo = mid;
+      else
+        hi = mid - 1;
+    }
+    return lo;
+  } // end find
+
+  /**
+   * Returns the customer of Zipf rank {@code rank} (1 is the heaviest).
+   * The ranks are scattered over the customer IDs, so heavy customers are
+   * found in every city.
+   */
+  private int customerOf(int rank) {
+    int first = this.cityUsers[0];
+    int count = this.users - first + 1;
+    return first + (int)(((rank - 1) * this.customerStride) % count);
+  }
+
+  // a multiplier coprime to n, which makes i * m mod n a permutation
+  private static long stride(int n) {
+    if (n == 1)
+      return 1;
+    long m = 0x9E3779B1L % n;
+    while (m == 0 || gcd(m, n) != 1)
+      m = (m + 1) % n;
+    return m;
+  }
+
+  private static long gcd(long a, long b) {
+    while (b != 0) {
+      long t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  }
+
+  /**
+   * Returns the catalog index of the {@code k}-th product of a store. The
+   * first half are the staples every store carries, the rest a run of the
+   * long tail starting at a place picked by the store ID, so a store's
+   * products are distinct.
+   */
+  private int productOf(int storeID, int k) {
+    if (k < this.staples)
+      return k;
+    int tail = this.catalog - this.staples;
+    int offset = (int)Math.floorMod(mix(this.seed ^ storeID), (long)tail);
+    return this.staples + (offset + k - this.staples) % tail;
+  } // end productOf
+
+  private int listPrice(int product) {
+    return 1 + (int)Math.floorMod(mix(this.seed + product), 20L);
+  }
+
+  // distinct for every index, and at most 30 characters
+  private static void appendProductName(StringBuilder row, int product) {
+    if (product < STAPLES.length) {
+      row.append(STAPLES[product]);
+      return;
+    }
+    int i = product - STAPLES.length;
+    int kinds = ADJECTIVES.length * NOUNS.length;
+    row.append(ADJECTIVES[i % ADJECTIVES.length]).append(' ')
+       .append(NOUNS[(i / ADJECTIVES.length) % NOUNS.length]);
+    if (i >= kinds)
+      row.append(' ').append(i / kinds + 1);
+  } // end appendProductName
+
+  private static void appendName(StringBuilder row, int i) {
+    int names = FIRST_NAMES.length * LAST_NAMES.length;
+    row.append(FIRST_NAMES[i % FIRST_NAMES.length])
+       .append(SEPARATORS[(i / names) % SEPARATORS.length])
+       .append(LAST_NAMES[(i / FIRST_NAMES.length) % LAST_NAMES.length]);
+    if (i >= names * SEPARATORS.length)
+      row.append(i / (names * SEPARATORS.length) + 1);
+  } // end appendName
+
+  /**
+   * Appends "latitude,longitude" of a point near the center of
+   * {@code city}. Centers are derived from the seed and the city, and every
+   * coordinate stays within [0, 100), as in data/.
+   */
+  private void appendLocation(StringBuilder row, SplittableRandom random,
+                              int city) {
+    double lat = 5 + 90 * unit(mix(this.seed ^ (2L * city + 1)));
+    double lon = 5 + 90 * unit(mix(this.seed ^ (2L * city + 2)));
+    appendFixed(row, clamp(lat + random.nextGaussian() * CITY_SPREAD));
+    row.append(',');
+    appendFixed(row, clamp(lon + random.nextGaussian() * CITY_SPREAD));
+  } // end appendLocation
+
+  private static double unit(long bits) {
+    return (bits >>> 11) * 0x1.0p-53;
+  }
+
+  private static double clamp(double x) {
+    return Math.max(0, Math.min(99.99999, x));
+  }
+
+  // five decimals, without String.format, which is too slow per row
+  private static void appendFixed(StringBuilder row, double x) {
+    long v = Math.round(x * 100000);
+    row.append(v / 100000).append('.');
+    long frac = v % 100000;
+    for (long p = 10000; p > frac && p > 1; p /= 10)
+      row.append('0');
+    row.append(frac);
+  } // end appendFixed
+
+  // the time of event i of n, spread evenly over the period and rising
+  private long timeOf(long i, long n, SplittableRandom random) {
+    long start = this.endSecond - this.spanSeconds;
+    return start + (long)((i + random.nextDouble()) * this.spanSeconds / n);
+  }
+
+  /**
+   * Formats epoch seconds as "yyyy-MM-dd HH:mm:ss", converting the date
+   * only when the day changes.
+   */
+  private static class Clock {
+    long day = Long.MIN_VALUE;
+    String date;
+
+    void append(StringBuilder row, long second) {
+      long d = Math.floorDiv(second, 86400L);
+      if (d != this.day) {
+        this.day = d;
+        this.date = LocalDate.ofEpochDay(d).toString();
+      }
+      int s = (int)(second - d * 86400L);
+      row.append(this.date).append(' ');
+      two(row, s / 3600);
+      row.append(':');
+      two(row, s / 60 % 60);
+      row.append(':');
+      two(row, s % 60);
+    } // end append
+
+    static void two(StringBuilder row, int v) {
+      if (v < 10)
+        row.append('0');
+      row.append(v);
+    }
+  } // end Clock
+
+  /**
+   * Draws 1..n with probability proportional to 1 / k^s, in constant time
+   * and memory, by rejection-inversion (Hormann and Derflinger, 1996).
+   */
+  static class Zipf {
+    final int n;
+    final double s;
+    final double hX1;
+    final double hN;
+    final double squeeze;
+
+    Zipf(int n, double s) {
+      this.n = n;
+      this.s = s;
+      this.hX1 = hIntegral(1.5) - 1;
+      this.hN = hIntegral(n + 0.5);
+      this.squeeze = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    int sample(SplittableRandom random) {
+      while (true) {
+        double u = this.hN + random.nextDouble() * (this.hX1 - this.hN);
+        double x = hIntegralInverse(u);
+        int k = (int)(x + 0.5);
+        if (k < 1)
+          k = 1;
+        else if (k > this.n)
+          k = this.n;
+        if (k - x <= this.squeeze || u >= hIntegral(k + 0.5) - h(k))
+          return k;
+      }
+    } // end sample
+
+    // the integral of h from 1 to x, shifted as in the paper
+    double hIntegral(double x) {
+      double logX = Math.log(x);
+      return expm1OverX((1 - this.s) * logX) * logX;
+    }
+
+    double h(double x) { return Math.exp(-this.s * Math.log(x)); }
+
+    double hIntegralInverse(double x) {
+      double t = Math.max(-1, x * (1 - this.s));
+      return Math.exp(log1pOverX(t) * x);
+    }
+
+    static double log1pOverX(double x) {
+      return Math.abs(x) > 1e-8 ? Math.log1p(x) / x
+                                : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    static double expm1OverX(double x) {
+      return Math.abs(x) > 1e-8 ? Math.expm1(x) / x
+                                : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+    }
+  } // end Zipf
+
+  /**
+   * Generates a data set from the command line.
+   *
+   * @param args &lt;output dir&gt; [scale factor]
+   */
+  public static void main(String[] args) {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: "
+                         + "java [-classpath <classpath>] " +
+                         DataGenerator.class.getName() +
+                         " <output dir> [scale factor]");
+      return;
+    }
+    try {
+      double scale = args.length == 2 ? Double.parseDouble(args[1]) : 1;
+      long start = System.nanoTime();
+      new DataGenerator(scale).generate(new File(args[0]));
+      System.out.printf("Generated in %.2f s\n",
+                        (System.nanoTime() - start) / 1e9);
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  } // end main
+} // end DataGenerator
@@ -0,0 +1,282 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON encoding and decoding for the HTTP service.
+ *
+ * Maps, Iterables, arrays, Strings, Numbers, Booleans and null are
+ * written; anything else is written as its toString(). Parsing yields
+ * LinkedHashMap, ArrayList, String, Double or Long, Boolean and null.
+ */
+public class Json {
+
+  private Json() {}
+
+  /**
+   * Encodes a value as JSON text.
+   */
+  public static String write(Object value) {
+    StringBuilder out = new StringBuilder();
+    write(value, out);
+    return out.toString();
+  }
+
+  /**
+   * Appends the JSON encoding of a value to {@code out}.
+   */
+  public static void write(Object value, StringBuilder out) {
+    if (value == null) {
+      out.append("null");
+    } else if (value instanceof String) {
+      quote((String)value, out);
+    } else if (value instanceof Number) {
+      double d = ((Number)value).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d))
+        out.append("null");
+      else
+        out.append(value);
+    } else if (value instanceof Boolean) {
+      out.append(value);
+    } else if (value instanceof Map) {
+      out.append('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> e : ((Map<?, ?>)value).entrySet()) {
+        if (!first)
+          out.append(',');
+        first = false;
+        quote(String.valueOf(e.getKey()), out);
+        out.append(':');
+        write(e.getValue(), out);
+      }
+      out.append('}');
+    } else if (value instanceof Iterable) {
+      out.append('[');
+      boolean first = true;
+      for (Object item : (Iterable<?>)value) {
+        if (!first)
+          out.append(',');
+        first = false;
+        write(item, out);
+      }
+      out.append(']');
+    } else if (value instanceof Object[]) {
+      List<Object> items = new ArrayList<Object>();
+      for (Object item : (Object[])value)
+        items.add(item);
+      write(items, out);
+    } else {
+      quote(value.toString(), out);
+    }
+  } // end write
+
+  private static void quote(String s, StringBuilder out) {
+    out.append('"');
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"':
+        out.append("\\\"");
+        break;
+      case '\\':
+        out.append("\\\\");
+        break;
+      case '\n':
+        out.append("\\n");
+        break;
+      case '\r':
+        out.append("\\r");
+        break;
+      case '\t':
+        out.append("\\t");
+        break;
+      default:
+        if (c < 0x20)
+          out.append(String.format("\\u%04x", (int)c));
+        else
+          out.append(c);
+      }
+    }
+    out.append('"');
+  } // end quote
+
+  /**
+   * Decodes JSON text.
+   *
+   * @throws IllegalArgumentException when the text is not valid JSON
+   */
+  public static Object parse(String text) {
+    Parser p = new Parser(text);
+    p.skipSpace();
+    Object value = p.value();
+    p.skipSpace();
+    if (p.pos != text.length())
+      throw p.error("unexpected text after the value");
+    return value;
+  } // end parse
+
+  private static class Parser {
+    final String text;
+    int pos = 0;
+
+    Parser(String text) { this.text = text; }
+
+    Object value() {
+      if (this.pos >= this.text.length())
+        throw error("unexpected end of input");
+      char c = this.text.charAt(this.pos);
+      switch (c) {
+      case '{':
+        return object();
+      case '[':
+        return array();
+      case '"':
+        return string();
+      case 't':
+        return literal("true", Boolean.TRUE);
+      case 'f':
+        return literal("false", Boolean.FALSE);
+      case 'n':
+        return literal("null", null);
+      default:
+        return number();
+      }
+    } // end value
+
+    Map<String, Object> object() {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      ++this.pos;
+      skipSpace();
+      if (peek() == '}') {
+        ++this.pos;
+        return map;
+      }
+      while (true) {
+        skipSpace();
+        if (peek() != '"')
+          throw error("expected a member name");
+        String key = string();
+        skipSpace();
+        expect(':');
+        skipSpace();
+        map.put(key, value());
+        skipSpace();
+        if (peek() == ',') {
+          ++this.pos;
+        } else {
+          expect('}');
+          return map;
+        }
+      }
+    } // end object
+
+    List<Object> array() {
+      List<Object> list = new ArrayList<Object>();
+      ++this.pos;
+      skipSpace();
+      if (peek() == ']') {
+        ++this.pos;
+        return list;
+      }
+      while (true) {
+        skipSpace();
+        list.add(value());
+        skipSpace();
+        if (peek() == ',') {
+          ++this.pos;
+        } else {
+          expect(']');
+          return list;
+        }
+      }
+    } // end array
+
+    String string() {
+      StringBuilder out = new StringBuilder();
+      ++this.pos;
+      while (this.pos < this.text.length()) {
+        char c = this.text.charAt(this.pos++);
+        if (c == '"')
+          return out.toString();
+        if (c != '\\') {
+          out.append(c);
+          continue;
+        }
+        if (this.pos >= this.text.length())
+          break;
+        char e = this.text.charAt(this.pos++);
+        switch (e) {
+        case 'n':
+          out.append('\n');
+          break;
+        case 't':
+          out.append('\t');
+          break;
+        case 'r':
+          out.append('\r');
+          break;
+        case 'b':
+          out.append('\b');
+          break;
+        case 'f':
+          out.append('\f');
+          break;
+        case 'u':
+          if (this.pos + 4 > this.text.length())
+            throw error("bad unicode escape");
+          String hex = this.text.substring(this.pos, this.pos + 4);
+          out.append((char)Integer.parseInt(hex, 16));
+          this.pos += 4;
+          break;
+        default:
+          out.append(e);
+        }
+      }
+      throw error("unterminated string");
+    } // end string
+
+    Object number() {
+      int start = this.pos;
+      while (this.pos < this.text.length() &&
+             "+-0123456789.eE".indexOf(this.text.charAt(this.pos)) >= 0)
+        ++this.pos;
+      String n = this.text.substring(start, this.pos);
+      try {
+        if (n.indexOf('.') < 0 && n.indexOf('e') < 0 && n.indexOf('E') < 0)
+          return Long.valueOf(n);
+        return Double.valueOf(n);
+      } catch (NumberFormatException e) {
+        throw error("invalid value");
+      }
+    } // end number
+
+    Object literal(String word, Object value) {
+      if (!this.text.startsWith(word, this.pos))
+        throw error("invalid value");
+      this.pos += word.length();
+      return value;
+    }
+
+    void skipSpace() {
+      while (this.pos < this.text.length() &&
+             Character.isWhitespace(this.text.charAt(this.pos)))
+        ++this.pos;
+    }
+
+    char peek() {
+      return this.pos < this.text.length() ? this.text.charAt(this.pos) : 0;
+    }
+
+    void expect(char c) {
+      if (peek() != c)
+        throw error("expected '" + c + "'");
+      ++this.pos;
+    }
+
+    IllegalArgumentException error(String message) {
+      return new IllegalArgumentException("Invalid JSON at offset " +
+                                          this.pos + ": " + message);
+    }
+  } // end Parser
+} // end Json
@@ -0,0 +1,103 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pages through an ordered listing by key instead of by offset.
+ *
+ * Each page is read as "the next pageSize rows after the last key shown"
+ * (or before the first key shown, going back), which an index on the key
+ * answers by seeking straight to the key. A page deep into a large table
+ * therefore costs the same as the first one, and rows inserted or deleted
+ * meanwhile do not shift the pages.
+ */
+public class KeysetPager {
+
+  /**
+   * The listing being paged.
+   */
+  public interface Source {
+    /**
+     * Returns up to {@code limit} rows in key order, either the rows after
+     * {@code from} or, when {@code forward} is false, the rows just before
+     * it.
+     */
+    List<List<String>> fetch(Object[] from, boolean forward, int limit)
+        throws SQLException;
+
+    /**
+     * Returns the key of a row returned by fetch.
+     */
+    Object[] keyOf(List<String> row);
+  } // end Source
+
+  private final Source source;
+  private final Object[] start;
+  private final Object[] end;
+  private final int pageSize;
+  private List<List<String>> page = new ArrayList<List<String>>();
+
+  /**
+   * @param source the listing
+   * @param start a key below every row
+   * @param end a key above every row
+   * @param pageSize rows per page
+   */
+  public KeysetPager(Source source, Object[] start, Object[] end,
+                     int pageSize) {
+    this.source = source;
+    this.start = start;
+    this.end = end;
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Moves to the first page and returns it.
+   */
+  public List<List<String>> first() throws SQLException {
+    this.page = this.source.fetch(this.start, true, this.pageSize);
+    return this.page;
+  }
+
+  /**
+   * Moves to the last page and returns it.
+   */
+  public List<List<String>> last() throws SQLException {
+    this.page = this.source.fetch(this.end, false, this.pageSize);
+    return this.page;
+  }
+
+  /**
+   * Moves to the page after the current one and returns it. At the end of
+   * the listing the current page is kept and an empty list is returned.
+   */
+  public List<List<String>> next() throws SQLException {
+    if (this.page.isEmpty())
+      return first();
+    List<List<String>> rows = this.source.fetch(
+        this.source.keyOf(this.page.get(this.page.size() - 1)), true,
+        this.pageSize);
+    if (!rows.isEmpty())
+      this.page = rows;
+    return rows;
+  } // end next
+
+  /**
+   * Moves to the page before the current one and returns it. At the start
+   * of the listing the current page is kept and an empty list is returned.
+   */
+  public List<List<String>> previous() throws SQLException {
+    if (this.page.isEmpty())
+      return last();
+    List<List<String>> rows = this.source.fetch(
+        this.source.keyOf(this.page.get(0)), false, this.pageSize);
+    if (!rows.isEmpty())
+      this.page = rows;
+    return rows;
+  } // end previous
+
+  /**
+   * Returns the current page.
+   */
+  public List<List<String>> page() { return this.page; }
+} // end KeysetPager
@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, thread-safe histogram of durations in nanoseconds.
+ *
+ * Values below 32 ns get a bucket each; above that every power of two is
+ * split into 32 buckets, so a recorded value is known to within about 3%.
+ * Durations up to 2^40 ns (about 18 minutes) are kept apart, longer ones
+ * share the last bucket. Recording is a couple of atomic increments and
+ * never allocates.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKETS =
+      (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records one duration.
+   *
+   * @param nanos the duration; negative values count as zero
+   */
+  public void record(long nanos) {
+    if (nanos < 0)
+      nanos = 0;
+    this.counts.incrementAndGet(bucketOf(nanos));
+    this.count.incrementAndGet();
+    this.sum.addAndGet(nanos);
+    long m;
+    while (nanos > (m = this.max.get()) &&
+           !this.max.compareAndSet(m, nanos))
+      ;
+  } // end record
+
+  /**
+   * Returns the number of recorded durations.
+   */
+  public long count() { return this.count.get(); }
+
+  /**
+   * Returns the longest recorded duration in nanoseconds.
+   */
+  public long max() { return this.max.get(); }
+
+  /**
+   * Returns the mean recorded duration in nanoseconds.
+   */
+  public double mean() {
+    long n = this.count.get();
+    return n == 0 ? 0.0 : (double)this.sum.get() / n;
+  }
+
+  /**
+   * Returns the duration below which the given fraction of the recorded
+   * durations fall, e.g. 0.99 for the 99th percentile.
+   *
+   * @param fraction a value between 0 and 1
+   * @return the upper bound of the bucket holding the percentile, in
+   *     nanoseconds, or 0 when nothing was recorded
+   */
+  public long percentile(double fraction) {
+    long n = this.count.get();
+    if (n == 0)
+      return 0;
+    long rank = (long)Math.ceil(fraction * n);
+    if (rank < 1)
+      rank = 1;
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += this.counts.get(i);
+      if (seen >= rank)
+        return Math.min(upperBound(i), this.max.get());
+    }
+    return this.max.get();
+  } // end percentile
+
+  /**
+   * Forgets every recorded duration.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; ++i)
+      this.counts.set(i, 0);
+    this.count.set(0);
+    this.sum.set(0);
+    this.max.set(0);
+  } // end reset
+
+  static int bucketOf(long nanos) {
+    if (nanos < SUB_BUCKETS)
+      return (int)nanos;
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    if (exponent > MAX_EXPONENT)
+      return BUCKETS - 1;
+    int sub = (int)(nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  } // end bucketOf
+
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BITS);
+    return (1L << exponent) + (sub + 1) * width - 1;
+  } // end upperBound
+} // end LatencyHistogram
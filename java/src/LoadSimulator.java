@@ -0,0 +1,461 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator that drives Amazon from many simulated users at once.
+ *
+ * Orders are replayed from data/orders.csv in file order, starting over at
+ * the end of the file, and are mixed with the read operations of the menus:
+ * viewing nearby stores and a store's products, logging in, and the
+ * manager popularity reports. Users are drawn from the Users table.
+ *
+ * Two load models are supported:
+ * <ul>
+ * <li>closed loop (default): each of the simulated users runs one operation
+ * after the other, pausing for a random think time in between;</li>
+ * <li>open loop: operations arrive at a fixed average rate regardless of
+ * how fast the database answers, and are served by the simulated users.
+ * Latency is measured from the scheduled arrival, so time spent waiting for
+ * a free user counts, as it would for a real customer.</li>
+ * </ul>
+ *
+ * The run is configured with system properties:
+ * <pre>
+ *   amazon.sim.users          simulated users (threads), default 16
+ *   amazon.sim.seconds        length of the run, default 60
+ *   amazon.sim.thinkMillis    mean think time in closed loop, default 0
+ *   amazon.sim.rate           arrivals per second; enables open loop
+ *   amazon.sim.mix            operation weights, default
+ *                             order=40,viewStores=20,viewProducts=20,
+ *                             logIn=10,popularProducts=5,popularCustomers=5
+ *   amazon.sim.reportSeconds  progress interval, default 10
+ * </pre>
+ * The connection pool is sized to the number of users unless
+ * amazon.pool.max is given.
+ */
+public class LoadSimulator {
+
+  /**
+   * The operations the simulator issues.
+   */
+  enum Operation {
+    ORDER("order"),
+    VIEW_STORES("viewStores"),
+    VIEW_PRODUCTS("viewProducts"),
+    LOG_IN("logIn"),
+    POPULAR_PRODUCTS("popularProducts"),
+    POPULAR_CUSTOMERS("popularCustomers");
+
+    final String label;
+
+    Operation(String label) { this.label = label; }
+
+    static Operation of(String label) {
+      for (Operation op : values()) {
+        if (op.label.equalsIgnoreCase(label))
+          return op;
+      }
+      throw new IllegalArgumentException("Unknown operation: " + label);
+    }
+  } // end Operation
+
+  /**
+   * Latency and outcome counts of one operation type.
+   */
+  static class Stats {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder errors = new LongAdder();
+    // answered but refused, e.g. an order for a product out of stock
+    final LongAdder refused = new LongAdder();
+  } // end Stats
+
+  // a user the simulator can log in as
+  private static class User {
+    final int userID;
+    final String name;
+    final String password;
+
+    User(int userID, String name, String password) {
+      this.userID = userID;
+      this.name = name;
+      this.password = password;
+    }
+  } // end User
+
+  private static final String DEFAULT_MIX =
+      "order=40,viewStores=20,viewProducts=20,logIn=10,popularProducts=5,popularCustomers=5";
+  private static final String LOAD_USERS =
+      "SELECT userID, name, password, type FROM Users ORDER BY userID LIMIT ?";
+  private static final String MAX_STORE = "SELECT MAX(storeID) FROM Store";
+  private static final int USER_SAMPLE = 100000;
+
+  // reads every column so the rows are really transferred and decoded
+  private static final RowHandler DISCARD = new RowHandler() {
+    public void handle(ResultSet rs) throws SQLException {
+      int columns = rs.getMetaData().getColumnCount();
+      for (int i = 1; i <= columns; ++i)
+        rs.getString(i);
+    }
+  };
+
+  private final Amazon esql;
+  private final String ordersPath;
+  private final Operation[] mix; // one slot per unit of weight
+  private final Stats[] stats = new Stats[Operation.values().length];
+  private final List<User> users = new ArrayList<User>();
+  private final List<User> managers = new ArrayList<User>();
+  private int maxStoreID;
+  private CsvReader orders;
+
+  /**
+   * @param esql the database under test
+   * @param ordersPath the orders file replayed by the order operation
+   * @param mix the operation weights, e.g. "order=3,logIn=1"
+   */
+  public LoadSimulator(Amazon esql, String ordersPath, String mix) {
+    this.esql = esql;
+    this.ordersPath = ordersPath;
+    this.mix = parseMix(mix);
+    for (int i = 0; i < this.stats.length; ++i)
+      this.stats[i] = new Stats();
+  } // end LoadSimulator
+
+  private static Operation[] parseMix(String mix) {
+    List<Operation> slots = new ArrayList<Operation>();
+    for (String part : mix.split(",")) {
+      String[] kv = part.trim().split("=");
+      if (kv.length != 2)
+        throw new IllegalArgumentException("Invalid mix entry: " + part);
+      Operation op = Operation.of(kv[0].trim());
+      int weight = Integer.parseInt(kv[1].trim());
+      for (int i = 0; i < weight; ++i)
+        slots.add(op);
+    }
+    if (slots.isEmpty())
+      throw new IllegalArgumentException("The operation mix is empty");
+    return slots.toArray(new Operation[slots.size()]);
+  } // end parseMix
+
+  /**
+   * Reads the users and stores the operations pick from and opens the
+   * orders file.
+   *
+   * @throws java.sql.SQLException when the users cannot be read
+   * @throws java.io.IOException when the orders file cannot be opened
+   */
+  public void prepare() throws SQLException, IOException {
+    this.esql.executeQueryAndStream(LOAD_USERS, new RowHandler() {
+      public void handle(ResultSet rs) throws SQLException {
+        User user = new User(rs.getInt(1), rs.getString(2).trim(),
+                             rs.getString(3).trim());
+        users.add(user);
+        if ("manager".equals(rs.getString(4).trim()))
+          managers.add(user);
+      }
+    }, USER_SAMPLE);
+    if (this.users.isEmpty())
+      throw new SQLException("The Users table is empty");
+    List<List<String>> max = this.esql.executeQueryAndReturnResult(MAX_STORE);
+    String value = max.get(0).get(0);
+    this.maxStoreID = value == null ? 0 : Integer.parseInt(value);
+    openOrders();
+  } // end prepare
+
+  private void openOrders() throws IOException {
+    if (this.orders != null)
+      this.orders.close();
+    this.orders =
+        new CsvReader(new BufferedReader(new FileReader(this.ordersPath)));
+    this.orders.next(); // header
+  } // end openOrders
+
+  // the next order of the file; the file is replayed from the top at the end
+  private synchronized String[] nextOrder() throws IOException {
+    String[] row = this.orders.next();
+    if (row == null) {
+      openOrders();
+      row = this.orders.next();
+      if (row == null)
+        throw new IOException("No orders in " + this.ordersPath);
+    }
+    return row;
+  } // end nextOrder
+
+  /**
+   * Runs one operation and records its latency, measured from
+   * {@code startNanos}.
+   */
+  void run(Operation op, long startNanos) {
+    Stats s = this.stats[op.ordinal()];
+    try {
+      if (!execute(op))
+        s.refused.increment();
+    } catch (Exception e) {
+      s.errors.increment();
+    }
+    s.latency.record(System.nanoTime() - startNanos);
+  } // end run
+
+  // returns false when the operation was answered but refused
+  private boolean execute(Operation op) throws Exception {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    switch (op) {
+    case ORDER:
+      String[] row = nextOrder();
+      OrderResult result = this.esql.submitOrder(
+          Integer.parseInt(row[1].trim()), Integer.parseInt(row[2].trim()),
+          row[3].trim(), Integer.parseInt(row[4].trim()));
+      return result.isPlaced();
+    case VIEW_STORES:
+      User user = this.users.get(random.nextInt(this.users.size()));
+      return this.esql.storesNear(user.userID) != null;
+    case VIEW_PRODUCTS:
+      int storeID = 1 + random.nextInt(Math.max(this.maxStoreID, 1));
+      if (!this.esql.storeCache().exists(storeID))
+        return false;
+      this.esql.listProducts(storeID, DISCARD);
+      return true;
+    case LOG_IN:
+      User login = this.users.get(random.nextInt(this.users.size()));
+      return this.esql.findUser(login.name, login.password) != null;
+    case POPULAR_PRODUCTS:
+      this.esql.popularProducts(randomManager(random), DISCARD);
+      return true;
+    case POPULAR_CUSTOMERS:
+      this.esql.popularCustomers(randomManager(random), DISCARD);
+      return true;
+    default:
+      throw new IllegalStateException(op.toString());
+    }
+  } // end execute
+
+  private int randomManager(Random random) {
+    List<User> from = this.managers.isEmpty() ? this.users : this.managers;
+    return from.get(random.nextInt(from.size())).userID;
+  }
+
+  private Operation pick(Random random) {
+    return this.mix[random.nextInt(this.mix.length)];
+  }
+
+  /**
+   * Closed loop: each user runs operations back to back, with an
+   * exponentially distributed think time of mean {@code thinkMillis} after
+   * each one.
+   */
+  public void runClosed(int userCount, final long thinkMillis,
+                        long durationMillis, long reportMillis)
+      throws InterruptedException {
+    final long deadline = System.nanoTime() + durationMillis * 1000000L;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < userCount; ++i) {
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          while (System.nanoTime() < deadline) {
+            LoadSimulator.this.run(pick(random), System.nanoTime());
+            if (thinkMillis > 0) {
+              long pause =
+                  (long)(-thinkMillis * Math.log(1.0 - random.nextDouble()));
+              try {
+                Thread.sleep(pause);
+              } catch (InterruptedException e) {
+                return;
+              }
+            }
+          }
+        }
+      }, "sim-user-" + i);
+      threads.add(t);
+      t.start();
+    }
+    waitAndReport(deadline, reportMillis, null);
+    for (Thread t : threads)
+      t.join();
+  } // end runClosed
+
+  /**
+   * Open loop: operations arrive as a Poisson process of
+   * {@code ratePerSecond} and queue for the next free user.
+   */
+  public void runOpen(int userCount, double ratePerSecond,
+                      long durationMillis, long reportMillis)
+      throws InterruptedException {
+    final ExecutorService workers = Executors.newFixedThreadPool(userCount);
+    final AtomicInteger backlog = new AtomicInteger();
+    final long deadline = System.nanoTime() + durationMillis * 1000000L;
+    Thread arrivals = new Thread(new Runnable() {
+      public void run() {
+        Random random = new Random();
+        double meanGapNanos = 1e9 / ratePerSecond;
+        long next = System.nanoTime();
+        while (next < deadline) {
+          long wait = next - System.nanoTime();
+          if (wait > 0) {
+            try {
+              TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          final long scheduled = next;
+          final Operation op = pick(random);
+          backlog.incrementAndGet();
+          workers.execute(new Runnable() {
+            public void run() {
+              backlog.decrementAndGet();
+              LoadSimulator.this.run(op, scheduled);
+            }
+          });
+          next += (long)(-meanGapNanos * Math.log(1.0 - random.nextDouble()));
+        }
+      }
+    }, "sim-arrivals");
+    arrivals.start();
+    waitAndReport(deadline, reportMillis, backlog);
+    arrivals.join();
+    // operations already scheduled still run and are counted
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.HOURS);
+  } // end runOpen
+
+  private void waitAndReport(long deadline, long reportMillis,
+                             AtomicInteger backlog)
+      throws InterruptedException {
+    long start = System.nanoTime();
+    long lastCount = 0;
+    long lastAt = start;
+    while (true) {
+      long now = System.nanoTime();
+      long left = deadline - now;
+      if (left <= 0)
+        break;
+      TimeUnit.NANOSECONDS.sleep(Math.min(left, reportMillis * 1000000L));
+      now = System.nanoTime();
+      long count = totalCount();
+      String queued =
+          backlog == null ? "" : String.format("  backlog %d", backlog.get());
+      System.out.printf("  %6.0f s  %8.1f ops/sec%s  %s\n",
+                        (now - start) / 1e9,
+                        (count - lastCount) / ((now - lastAt) / 1e9), queued,
+                        this.esql.pool().stats());
+      lastCount = count;
+      lastAt = now;
+    }
+  } // end waitAndReport
+
+  private long totalCount() {
+    long count = 0;
+    for (Stats s : this.stats)
+      count += s.latency.count();
+    return count;
+  }
+
+  /**
+   * Prints the throughput and latency percentiles of each operation type.
+   *
+   * @param elapsedNanos the length of the run
+   */
+  public void report(long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    System.out.printf("%-18s %9s %9s %8s %8s %9s %9s %9s %9s\n", "operation",
+                      "count", "ops/sec", "errors", "refused", "p50 ms",
+                      "p95 ms", "p99 ms", "max ms");
+    long total = 0;
+    for (Operation op : Operation.values()) {
+      Stats s = this.stats[op.ordinal()];
+      LatencyHistogram h = s.latency;
+      if (h.count() == 0)
+        continue;
+      total += h.count();
+      System.out.printf("%-18s %9d %9.1f %8d %8d %9.2f %9.2f %9.2f %9.2f\n",
+                        op.label, h.count(), h.count() / seconds,
+                        s.errors.sum(), s.refused.sum(),
+                        h.percentile(0.50) / 1e6, h.percentile(0.95) / 1e6,
+                        h.percentile(0.99) / 1e6, h.max() / 1e6);
+    }
+    System.out.printf("%-18s %9d %9.1f\n", "total", total, total / seconds);
+  } // end report
+
+  /**
+   * Closes the orders file.
+   */
+  public void close() throws IOException {
+    if (this.orders != null)
+      this.orders.close();
+  }
+
+  /**
+   * Runs a simulation from the command line.
+   *
+   * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [orders.csv]
+   */
+  public static void main(String[] args) {
+    if (args.length < 3 || args.length > 4) {
+      System.err.println("Usage: "
+                         + "java [-classpath <classpath>] " +
+                         LoadSimulator.class.getName() +
+                         " <dbname> <port> <user> [orders.csv]");
+      return;
+    } // end if
+
+    int userCount = Integer.getInteger("amazon.sim.users", 16);
+    long seconds = Long.getLong("amazon.sim.seconds", 60L);
+    long thinkMillis = Long.getLong("amazon.sim.thinkMillis", 0L);
+    String rate = System.getProperty("amazon.sim.rate");
+    String mix = System.getProperty("amazon.sim.mix", DEFAULT_MIX);
+    long reportSeconds = Long.getLong("amazon.sim.reportSeconds", 10L);
+    // one connection per simulated user, so the pool is not the bottleneck
+    if (System.getProperty("amazon.pool.max") == null)
+      System.setProperty("amazon.pool.max", Integer.toString(userCount));
+
+    Amazon esql = null;
+    LoadSimulator sim = null;
+    try {
+      Class.forName("org.postgresql.Driver");
+      esql = new Amazon(args[0], args[1], args[2], "");
+      sim = new LoadSimulator(esql, args.length == 4 ? args[3]
+                                                     : "data/orders.csv",
+                              mix);
+      sim.prepare();
+
+      long start = System.nanoTime();
+      if (rate != null) {
+        System.out.println("Open loop: " + rate + " ops/sec served by " +
+                           userCount + " users for " + seconds + " s");
+        sim.runOpen(userCount, Double.parseDouble(rate), seconds * 1000L,
+                    reportSeconds * 1000L);
+      } else {
+        System.out.println("Closed loop: " + userCount + " users, " +
+                           thinkMillis + " ms mean think time, for " +
+                           seconds + " s");
+        sim.runClosed(userCount, thinkMillis, seconds * 1000L,
+                      reportSeconds * 1000L);
+      }
+      sim.report(System.nanoTime() - start);
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    } finally {
+      try {
+        if (sim != null)
+          sim.close();
+      } catch (IOException e) {
+        System.err.println(e.getMessage());
+      }
+      if (esql != null)
+        esql.cleanup();
+    }
+  } // end main
+} // end LoadSimulator
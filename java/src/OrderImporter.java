@@ -0,0 +1,321 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Bulk import of orders from a CSV file in the data/orders.csv layout
+ * (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime).
+ *
+ * The file is streamed in batches. Each batch is sent to a temporary
+ * staging table the way BulkLoader loads a table, with COPY or with
+ * multi-row INSERTs, and then moved into Orders with one INSERT ... SELECT,
+ * so trg_update_stock_after_order takes the stock off with one aggregated
+ * update per (storeID, productName) per batch.
+ *
+ * Bad rows are rejected without stopping the load: rows that do not parse
+ * or are dated before 1990 or in the future, rows for an unknown customer
+ * or product, and rows that would take a product's stock below zero.
+ * Rejected rows are written, with the reason, to {@code <file>.rejected}.
+ * Order numbers in the file are ignored and new ones are drawn from the
+ * Orders sequence. Orders partitions are created only for the months the
+ * accepted rows fall in.
+ */
+public class OrderImporter {
+
+  /**
+   * Counts and timing of one import.
+   */
+  public static class Report {
+    public int read = 0;
+    public int imported = 0;
+    public int rejected = 0;
+    public long elapsedNanos = 0;
+
+    public double rowsPerSecond() {
+      return this.elapsedNanos == 0 ? 0.0
+                                    : this.imported / (this.elapsedNanos / 1e9);
+    }
+
+    public String toString() {
+      return String.format(
+          "Imported %d of %d orders (%d rejected) in %.2f s, %.0f rows/sec",
+          this.imported, this.read, this.rejected, this.elapsedNanos / 1e9,
+          rowsPerSecond());
+    }
+  } // end Report
+
+  // orders older than this, or later than the current time plus the skew,
+  // are rejected as mistyped
+  private static final Timestamp EARLIEST_ORDER =
+      Timestamp.valueOf("1990-01-01 00:00:00");
+  private static final long MAX_CLOCK_SKEW_MILLIS = 24 * 60 * 60 * 1000L;
+
+  // a parsed line of the input
+  private static class Row {
+    final int lineNo;
+    final String raw;
+    final int customerID;
+    final int storeID;
+    final String productName;
+    final int units;
+    final Timestamp orderTime;
+
+    Row(int lineNo, String raw, String[] fields) {
+      this.lineNo = lineNo;
+      this.raw = raw;
+      if (fields.length != 6)
+        throw new IllegalArgumentException("expected 6 fields, found " +
+                                           fields.length);
+      this.customerID = parseInt(fields[1], "customerID");
+      this.storeID = parseInt(fields[2], "storeID");
+      this.productName = fields[3].trim();
+      if (this.productName.isEmpty() || this.productName.length() > 30)
+        throw new IllegalArgumentException("invalid productName");
+      this.units = parseInt(fields[4], "unitsOrdered");
+      if (this.units < 1)
+        throw new IllegalArgumentException("unitsOrdered must be positive");
+      try {
+        this.orderTime = Timestamp.valueOf(fields[5].trim());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("invalid orderTime");
+      }
+      // a mistyped year would otherwise get an Orders partition of its own
+      if (this.orderTime.before(EARLIEST_ORDER) ||
+          this.orderTime.getTime() >
+              System.currentTimeMillis() + MAX_CLOCK_SKEW_MILLIS)
+        throw new IllegalArgumentException("orderTime out of range");
+    }
+
+    private static int parseInt(String value, String column) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("invalid " + column);
+      }
+    }
+  } // end Row
+
+  private static final String CREATE_STAGE =
+      "CREATE TEMP TABLE IF NOT EXISTS order_import (lineNo integer PRIMARY KEY, customerID integer, storeID integer, productName char(30), unitsOrdered integer, orderTime timestamp, reason text) ON COMMIT DELETE ROWS";
+  private static final String[] STAGE_COLUMNS = {
+      "lineNo", "customerID", "storeID", "productName", "unitsOrdered",
+      "orderTime"};
+  // locks the products of the batch in a fixed order so the stock check
+  // below cannot race with concurrent orders
+  private static final String LOCK_PRODUCTS =
+      "SELECT p.storeID FROM Product p JOIN (SELECT DISTINCT storeID, productName FROM order_import) i ON p.storeID = i.storeID AND p.productName = i.productName ORDER BY p.storeID, p.productName FOR UPDATE OF p";
+  private static final String MARK_MISSING =
+      "UPDATE order_import i SET reason = CASE WHEN NOT EXISTS (SELECT 1 FROM Users u WHERE u.userID = i.customerID) THEN 'customer not found' ELSE 'product not found' END "
+      + "WHERE NOT EXISTS (SELECT 1 FROM Users u WHERE u.userID = i.customerID) "
+      + "OR NOT EXISTS (SELECT 1 FROM Product p WHERE p.storeID = i.storeID AND p.productName = i.productName)";
+  // once the running total of a product passes its stock, that order and
+  // every later one for the product are rejected
+  private static final String MARK_OVERDRAWN =
+      "UPDATE order_import i SET reason = 'insufficient stock' "
+      + "FROM (SELECT s.lineNo, p.numberOfUnits, SUM(s.unitsOrdered) OVER (PARTITION BY s.storeID, s.productName ORDER BY s.lineNo) AS running "
+      + "FROM order_import s JOIN Product p ON p.storeID = s.storeID AND p.productName = s.productName "
+      + "WHERE s.reason IS NULL) r "
+      + "WHERE i.lineNo = r.lineNo AND r.running > r.numberOfUnits";
+  private static final String SELECT_REJECTED =
+      "SELECT lineNo, reason FROM order_import WHERE reason IS NOT NULL";
+  private static final String MOVE_ORDERS =
+      "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) SELECT customerID, storeID, productName, unitsOrdered, orderTime FROM order_import WHERE reason IS NULL ORDER BY lineNo";
+
+  private final Amazon esql;
+  private final int batchSize;
+
+  /**
+   * @param esql the database the orders are imported into
+   * @param batchSize the number of rows staged and committed together
+   */
+  public OrderImporter(Amazon esql, int batchSize) {
+    this.esql = esql;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Imports every order in {@code path}. Progress is printed after each
+   * batch.
+   *
+   * @param path the CSV file, with a header line
+   * @return the counts and timing of the import
+   * @throws java.io.IOException when the file cannot be read
+   */
+  public Report importFile(String path) throws IOException {
+    Report report = new Report();
+    long start = System.nanoTime();
+    try (CsvReader csv =
+             new CsvReader(new BufferedReader(new FileReader(path)));
+         PrintWriter rejects = new PrintWriter(
+             new BufferedWriter(new FileWriter(path + ".rejected")))) {
+      String[] header = csv.next();
+      if (header == null || header.length != 6)
+        throw new IOException("Not an orders file: " + path);
+
+      List<Row> batch = new ArrayList<Row>(this.batchSize);
+      String[] fields;
+      while ((fields = csv.next()) != null) {
+        ++report.read;
+        String raw = String.join(",", fields);
+        try {
+          batch.add(new Row(csv.lineNumber(), raw, fields));
+        } catch (IllegalArgumentException e) {
+          reject(report, rejects, csv.lineNumber(), e.getMessage(), raw);
+        }
+        if (batch.size() == this.batchSize) {
+          flush(batch, report, rejects);
+          progress(report, start);
+        }
+      } // end while
+      if (!batch.isEmpty())
+        flush(batch, report, rejects);
+    }
+    report.elapsedNanos = System.nanoTime() - start;
+    return report;
+  } // end importFile
+
+  /**
+   * Stages one batch, marks the rows that cannot be imported and moves the
+   * rest into Orders, all in one transaction. If the transaction fails the
+   * whole batch is rejected with the error and the load carries on.
+   */
+  private void flush(List<Row> batch, Report report, PrintWriter rejects) {
+    Map<Integer, String> rejected = new HashMap<Integer, String>();
+    int imported = 0;
+    PooledConnection conn = null;
+    try {
+      // creating a partition locks Orders, so it is done and committed
+      // before the batch transaction rather than held until its end
+      createPartitions(batch);
+
+      conn = this.esql.pool().borrow();
+      Connection c = conn.connection();
+      c.setAutoCommit(false);
+      conn.prepare(CREATE_STAGE).executeUpdate();
+
+      List<String[]> staged = new ArrayList<String[]>(batch.size());
+      for (Row row : batch)
+        staged.add(new String[] {Integer.toString(row.lineNo),
+                                 Integer.toString(row.customerID),
+                                 Integer.toString(row.storeID),
+                                 row.productName, Integer.toString(row.units),
+                                 row.orderTime.toString()});
+      BulkLoader.stage(conn, "order_import", STAGE_COLUMNS, staged);
+
+      conn.prepare(LOCK_PRODUCTS).executeQuery().close();
+      conn.prepare(MARK_MISSING).executeUpdate();
+      conn.prepare(MARK_OVERDRAWN).executeUpdate();
+      ResultSet rs = conn.prepare(SELECT_REJECTED).executeQuery();
+      while (rs.next())
+        rejected.put(rs.getInt(1), rs.getString(2));
+      rs.close();
+
+      imported = conn.prepare(MOVE_ORDERS).executeUpdate();
+      c.commit();
+    } catch (SQLException e) {
+      if (conn != null)
+        conn.failed(e);
+      rejected.clear();
+      for (Row row : batch)
+        rejected.put(row.lineNo, "batch failed: " + e.getMessage());
+      imported = 0;
+    } finally {
+      // the pool rolls back anything left uncommitted
+      if (conn != null)
+        this.esql.pool().release(conn);
+    }
+
+    report.imported += imported;
+    for (Row row : batch) {
+      String reason = rejected.get(row.lineNo);
+      if (reason != null)
+        reject(report, rejects, row.lineNo, reason, row.raw);
+    }
+    batch.clear();
+  } // end flush
+
+  /**
+   * Creates the Orders partitions for the months the batch has orders in,
+   * one call per run of consecutive months, and none for the months in
+   * between.
+   */
+  private void createPartitions(List<Row> batch) throws SQLException {
+    TreeSet<LocalDate> months = new TreeSet<LocalDate>();
+    for (Row row : batch)
+      months.add(row.orderTime.toLocalDateTime().toLocalDate()
+                     .withDayOfMonth(1));
+    OrderPartitions partitions = new OrderPartitions(this.esql);
+    LocalDate first = null;
+    LocalDate last = null;
+    for (LocalDate month : months) {
+      if (last != null && !month.equals(last.plusMonths(1))) {
+        partitions.ensureRange(Timestamp.valueOf(first.atStartOfDay()),
+                               Timestamp.valueOf(last.atStartOfDay()));
+        first = null;
+      }
+      if (first == null)
+        first = month;
+      last = month;
+    }
+    if (first != null)
+      partitions.ensureRange(Timestamp.valueOf(first.atStartOfDay()),
+                             Timestamp.valueOf(last.atStartOfDay()));
+  } // end createPartitions
+
+  private static void reject(Report report, PrintWriter rejects, int lineNo,
+                             String reason, String raw) {
+    ++report.rejected;
+    rejects.println(lineNo + "," + reason.replace(',', ';') + "," + raw);
+  } // end reject
+
+  private static void progress(Report report, long start) {
+    report.elapsedNanos = System.nanoTime() - start;
+    System.out.println("  " + report);
+  }
+
+  /**
+   * Imports an orders file from the command line.
+   *
+   * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;orders.csv&gt;
+   *     [batch size]
+   */
+  public static void main(String[] args) {
+    if (args.length < 4 || args.length > 5) {
+      System.err.println("Usage: "
+                         + "java [-classpath <classpath>] " +
+                         OrderImporter.class.getName() +
+                         " <dbname> <port> <user> <orders.csv> [batch size]");
+      return;
+    } // end if
+
+    Amazon esql = null;
+    try {
+      Class.forName("org.postgresql.Driver");
+      esql = new Amazon(args[0], args[1], args[2], "");
+      int batchSize = args.length == 5 ? Integer.parseInt(args[4]) : 10000;
+      Report report = new OrderImporter(esql, batchSize).importFile(args[3]);
+      System.out.println(report);
+      if (report.rejected > 0)
+        System.out.println("Rejected rows written to " + args[3] +
+                           ".rejected");
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    } finally {
+      if (esql != null)
+        esql.cleanup();
+    }
+  } // end main
+} // end OrderImporter
@@ -0,0 +1,331 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Creates and archives the monthly partitions of Orders.
+ *
+ * Orders is range partitioned on orderTime, one partition per calendar
+ * month (see create_tables.sql and order_partitions.sql). An order whose
+ * month has no partition cannot be inserted, so ensureAhead() keeps
+ * {@code amazon.orders.partitionsAhead} months of empty partitions ready;
+ * the server runs it daily and the terminal client once at startup.
+ *
+ * Old months are only ever read, so archive() compacts each partition past
+ * {@code amazon.orders.archiveAfterMonths} once, optionally onto a cheaper
+ * tablespace. VACUUM FULL would lock the partition for the whole rewrite,
+ * and planning any query on Orders locks every partition, so the month is
+ * instead copied in orderTime order into a new table with fillfactor 100,
+ * while the partition stays attached and readable and only writes to that
+ * month wait. The copy gets the partition's indexes, foreign keys and a
+ * CHECK constraint matching the bound, so the attach neither builds nor
+ * validates anything, and replaces the partition in one short transaction.
+ * Orders is never seen without the month, so reports, exports and the
+ * rollup rebuilds keep counting its orders. The copy is then frozen, so it
+ * never needs vacuuming again, and marked with the table comment
+ * 'archived'. A step that waits more than LOCK_TIMEOUT for a lock fails
+ * the run without changing the partition.
+ */
+public class OrderPartitions {
+
+  /**
+   * A partition of Orders and the orderTime range it holds.
+   */
+  public static class Partition {
+    public final String name;
+    public final Timestamp from;
+    public final Timestamp to;
+    public final boolean archived;
+
+    Partition(String name, Timestamp from, Timestamp to, boolean archived) {
+      this.name = name;
+      this.from = from;
+      this.to = to;
+      this.archived = archived;
+    }
+
+    public String toString() {
+      return this.name + " [" + this.from + ", " + this.to + ")" +
+             (this.archived ? " archived" : "");
+    }
+  } // end Partition
+
+  static final String ARCHIVED = "archived";
+
+  private static final String ENSURE =
+      "SELECT create_order_partitions(CAST(? AS timestamp), CAST(? AS timestamp))";
+  private static final String LIST =
+      "SELECT c.relname, pg_get_expr(c.relpartbound, c.oid), COALESCE(obj_description(c.oid, 'pg_class'), '') "
+      + "FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid "
+      + "WHERE i.inhparent = CAST('orders' AS regclass) ORDER BY c.relname";
+  // the partition's indexes, with the constraint each one backs
+  private static final String INDEXES =
+      "SELECT i.relname, pg_get_indexdef(x.indexrelid), COALESCE(c.conname, ''), COALESCE(CAST(c.contype AS text), '') "
+      + "FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid "
+      + "LEFT JOIN pg_constraint c ON c.conindid = x.indexrelid AND c.conrelid = x.indrelid "
+      + "WHERE x.indrelid = CAST(? AS regclass)";
+  private static final String FOREIGN_KEYS =
+      "SELECT conname, pg_get_constraintdef(oid) FROM pg_constraint WHERE conrelid = CAST(? AS regclass) AND contype = 'f'";
+  private static final Pattern INDEX_DEFINITION =
+      Pattern.compile("^(CREATE (?:UNIQUE )?INDEX) \\S+ ON (?:ONLY )?\\S+ ");
+
+  // how long a step waits for a lock before the archive gives up; the next
+  // run retries
+  private static final String LOCK_TIMEOUT = "'10s'";
+
+  // FOR VALUES FROM ('2016-09-01 00:00:00') TO ('2016-10-01 00:00:00')
+  private static final Pattern BOUND =
+      Pattern.compile("FROM \\('([^']*)'\\) TO \\('([^']*)'\\)");
+
+  private final Amazon esql;
+
+  /**
+   * @param esql the database holding Orders
+   */
+  public OrderPartitions(Amazon esql) { this.esql = esql; }
+
+  /**
+   * Creates the missing partitions for orderTimes from {@code from} through
+   * {@code to}.
+   *
+   * @return the number of partitions created
+   * @throws java.sql.SQLException when a partition cannot be created
+   */
+  public int ensureRange(Timestamp from, Timestamp to) throws SQLException {
+    List<List<String>> rs = this.esql.executeQueryAndReturnResult(
+        ENSURE, from.toString(), to.toString());
+    return Integer.parseInt(rs.get(0).get(0));
+  } // end ensureRange
+
+  /**
+   * Creates the missing partitions from the current month through
+   * {@code months} months ahead.
+   *
+   * @return the number of partitions created
+   * @throws java.sql.SQLException when a partition cannot be created
+   */
+  public int ensureAhead(int months) throws SQLException {
+    LocalDate today = LocalDate.now();
+    return ensureRange(Timestamp.valueOf(today.atStartOfDay()),
+                       Timestamp.valueOf(today.plusMonths(months)
+                                              .atStartOfDay()));
+  } // end ensureAhead
+
+  /**
+   * Returns the partitions of Orders, oldest first.
+   *
+   * @throws java.sql.SQLException when the catalog cannot be read
+   */
+  public List<Partition> list() throws SQLException {
+    List<Partition> partitions = new ArrayList<Partition>();
+    for (List<String> row : this.esql.executeQueryAndReturnResult(LIST)) {
+      Matcher m = BOUND.matcher(row.get(1));
+      // a default partition has no range and is never archived
+      if (!m.find())
+        continue;
+      partitions.add(new Partition(row.get(0), Timestamp.valueOf(m.group(1)),
+                                   Timestamp.valueOf(m.group(2)),
+                                   row.get(2).equals(ARCHIVED)));
+    }
+    return partitions;
+  } // end list
+
+  /**
+   * Compacts every partition that ended at least {@code afterMonths} full
+   * months before the current month and is not archived yet.
+   *
+   * @param afterMonths months a partition stays as it is after it ends
+   * @param tablespace where archived partitions are moved, or null to keep
+   *     them in place
+   * @return the partitions archived
+   * @throws java.sql.SQLException when a partition cannot be archived; the
+   *     partitions archived before it stay archived
+   */
+  public List<Partition> archive(int afterMonths, String tablespace)
+      throws SQLException {
+    Timestamp cutoff = Timestamp.valueOf(
+        LocalDate.now().withDayOfMonth(1).minusMonths(afterMonths)
+                 .atStartOfDay());
+    List<Partition> archived = new ArrayList<Partition>();
+    for (Partition p : list()) {
+      if (p.archived || p.to.after(cutoff))
+        continue;
+      archive(p, tablespace);
+      archived.add(p);
+    }
+    return archived;
+  } // end archive
+
+  private void archive(Partition p, String tablespace) throws SQLException {
+    String table = quote(p.name);
+    String copyName = p.name + "_a";
+    String copy = quote(copyName);
+    String check = quote(p.name + "_bound");
+    String in = tablespace == null ? "" : " TABLESPACE " + quote(tablespace);
+    List<List<String>> indexes =
+        this.esql.executeQueryAndReturnResult(INDEXES, p.name);
+    List<List<String>> foreignKeys =
+        this.esql.executeQueryAndReturnResult(FOREIGN_KEYS, p.name);
+
+    PooledConnection conn = this.esql.pool().borrow();
+    try {
+      Connection c = conn.connection();
+      Statement stmt = c.createStatement();
+      try {
+        c.setAutoCommit(true);
+        // left behind by a failed run
+        stmt.execute("DROP TABLE IF EXISTS " + copy);
+
+        // the foreign keys are added to the empty copy in a short
+        // transaction of their own: adding one locks out writes to Users
+        // and Product until the commit
+        c.setAutoCommit(false);
+        stmt.execute("SET LOCAL lock_timeout = " + LOCK_TIMEOUT);
+        stmt.execute("CREATE TABLE " + copy + " (LIKE Orders) " +
+                     "WITH (fillfactor = 100)" + in);
+        for (List<String> fk : foreignKeys)
+          stmt.execute("ALTER TABLE " + copy + " ADD CONSTRAINT " +
+                       quote(fk.get(0)) + " " + fk.get(1) + " NOT VALID");
+        c.commit();
+
+        // the month can still be read through Orders while it is copied;
+        // only writes to it wait
+        stmt.execute("SET LOCAL lock_timeout = " + LOCK_TIMEOUT);
+        stmt.execute("LOCK TABLE " + table + " IN SHARE MODE");
+        stmt.execute("INSERT INTO " + copy + " SELECT * FROM " + table +
+                     " ORDER BY orderTime");
+        for (List<String> index : indexes) {
+          stmt.execute(copyIndex(index.get(1), quote(index.get(0) + "_a"),
+                                 copy, in));
+          // a constraint's index has to back the same constraint, or the
+          // attach builds a new one
+          if (!index.get(2).isEmpty())
+            stmt.execute("ALTER TABLE " + copy + " ADD CONSTRAINT " +
+                         quote(index.get(2) + "_a") + " " +
+                         (index.get(3).equals("p") ? "PRIMARY KEY"
+                                                   : "UNIQUE") +
+                         " USING INDEX " + quote(index.get(0) + "_a"));
+        }
+        // validating only reads the referenced tables
+        for (List<String> fk : foreignKeys)
+          stmt.execute("ALTER TABLE " + copy + " VALIDATE CONSTRAINT " +
+                       quote(fk.get(0)));
+        stmt.execute("ALTER TABLE " + copy + " ADD CONSTRAINT " + check +
+                     " CHECK (orderTime >= '" + p.from +
+                     "' AND orderTime < '" + p.to + "')");
+
+        // the swap: queries on Orders wait for it, but never see the
+        // month missing
+        stmt.execute("ALTER TABLE Orders DETACH PARTITION " + table);
+        stmt.execute("ALTER TABLE Orders ATTACH PARTITION " + copy +
+                     " FOR VALUES FROM ('" + p.from + "') TO ('" + p.to +
+                     "')");
+        stmt.execute("DROP TABLE " + table);
+        stmt.execute("ALTER TABLE " + copy + " RENAME TO " + table);
+        stmt.execute("ALTER TABLE " + table + " DROP CONSTRAINT " + check);
+        for (List<String> index : indexes) {
+          if (index.get(2).isEmpty())
+            stmt.execute("ALTER INDEX " + quote(index.get(0) + "_a") +
+                         " RENAME TO " + quote(index.get(0)));
+          else
+            stmt.execute("ALTER TABLE " + table + " RENAME CONSTRAINT " +
+                         quote(index.get(2) + "_a") + " TO " +
+                         quote(index.get(2)));
+        }
+        stmt.execute("COMMENT ON TABLE " + table + " IS '" + ARCHIVED + "'");
+        c.commit();
+
+        // frozen, so the month never needs vacuuming again
+        c.setAutoCommit(true);
+        stmt.execute("VACUUM (FREEZE, ANALYZE) " + table);
+      } finally {
+        stmt.close();
+      }
+    } catch (SQLException e) {
+      conn.failed(e);
+      throw new SQLException(p.name + ": " + e.getMessage(), e);
+    } finally {
+      // the pool rolls back anything left uncommitted
+      this.esql.pool().release(conn);
+    }
+  } // end archive
+
+  // turns the definition of a partition's index into one on the copy:
+  // "CREATE INDEX name ON table USING ..." becomes
+  // "CREATE INDEX newName ON copy USING ... TABLESPACE ..."
+  private static String copyIndex(String definition, String name,
+                                  String copy, String in) {
+    Matcher m = INDEX_DEFINITION.matcher(definition);
+    if (!m.find())
+      throw new IllegalStateException("Unexpected index: " + definition);
+    String rest = definition.substring(m.end());
+    int where = rest.indexOf(" WHERE ");
+    if (where >= 0)
+      rest = rest.substring(0, where) + in + rest.substring(where);
+    else
+      rest = rest + in;
+    return m.group(1) + " " + name + " ON " + copy + " " + rest;
+  } // end copyIndex
+
+  private static String quote(String identifier) {
+    return "\"" + identifier.replace("\"", "\"\"") + "\"";
+  }
+
+  /**
+   * Creates the partitions for the months ahead and archives the old ones,
+   * as configured by the amazon.orders.partitionsAhead,
+   * amazon.orders.archiveAfterMonths and amazon.orders.archiveTablespace
+   * properties. Archiving is off unless archiveAfterMonths is set.
+   *
+   * @throws java.sql.SQLException when a step fails
+   */
+  public void maintain() throws SQLException {
+    int created = ensureAhead(Integer.getInteger(
+        "amazon.orders.partitionsAhead", 3));
+    if (created > 0)
+      System.out.println("Created " + created + " Orders partitions");
+    Integer afterMonths = Integer.getInteger(
+        "amazon.orders.archiveAfterMonths");
+    if (afterMonths == null)
+      return;
+    for (Partition p : archive(afterMonths,
+                               System.getProperty(
+                                   "amazon.orders.archiveTablespace")))
+      System.out.println("Archived " + p);
+  } // end maintain
+
+  /**
+   * Runs maintain() once, for cron.
+   *
+   * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt;
+   */
+  public static void main(String[] args) {
+    if (args.length != 3) {
+      System.err.println("Usage: "
+                         + "java [-classpath <classpath>] " +
+                         OrderPartitions.class.getName() +
+                         " <dbname> <port> <user>");
+      return;
+    }
+    Amazon esql = null;
+    try {
+      Class.forName("org.postgresql.Driver");
+      esql = new Amazon(args[0], args[1], args[2], "");
+      OrderPartitions partitions = new OrderPartitions(esql);
+      partitions.maintain();
+      for (Partition p : partitions.list())
+        System.out.println("  " + p);
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    } finally {
+      if (esql != null)
+        esql.cleanup();
+    }
+  } // end main
+} // end OrderPartitions
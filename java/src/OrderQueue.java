@@ -0,0 +1,269 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for orders.
+ *
+ * Placing an order on its own costs a commit, and with it a WAL flush, per
+ * order. Orders submitted here wait in a bounded queue instead; a single
+ * writer thread takes up to {@code maxBatch} of them, or whatever arrived
+ * within {@code windowMicros} of the first, and places them all with
+ * place_order in one transaction. Every order of the group is acknowledged
+ * only after that commit returns, so an acknowledged order is as durable as
+ * one placed directly, while the flush is shared by the whole group.
+ *
+ * If the group transaction fails before its commit, for example on a
+ * deadlock with a direct order or an order for an unknown customer, it is
+ * rolled back and its orders are placed again one at a time, so one bad
+ * order fails alone. A failed commit is not retried: the server may have
+ * committed the group anyway, and placing it again could duplicate every
+ * order, so its orders fail with an error saying the outcome is unknown.
+ *
+ * A full queue blocks the submitting thread until the writer catches up,
+ * which holds the callers back instead of buffering without bound.
+ */
+public class OrderQueue implements AutoCloseable {
+
+  // how often a waiting writer checks whether the queue has been closed
+  private static final long POLL_MILLIS = 100;
+
+  // a group commit that failed in commit() itself, when the server may or
+  // may not have committed the group
+  private static class CommitUncertain extends Exception {
+    private static final long serialVersionUID = 1L;
+    final SQLException cause;
+
+    CommitUncertain(SQLException cause) {
+      super(cause);
+      this.cause = cause;
+    }
+  } // end CommitUncertain
+
+  // one submitted order and the caller waiting for it
+  private static class Pending {
+    final int customerID;
+    final int storeID;
+    final String productName;
+    final int units;
+    final CompletableFuture<OrderResult> result =
+        new CompletableFuture<OrderResult>();
+
+    Pending(int customerID, int storeID, String productName, int units) {
+      this.customerID = customerID;
+      this.storeID = storeID;
+      this.productName = productName;
+      this.units = units;
+    }
+  } // end Pending
+
+  private final Amazon esql;
+  private final BlockingQueue<Pending> queue;
+  private final int maxBatch;
+  private final long windowNanos;
+  private final Thread writer;
+  private volatile boolean closed = false;
+
+  /**
+   * Starts the writer thread.
+   *
+   * @param esql the database the orders are placed in
+   * @param capacity orders that may wait before submit blocks
+   * @param maxBatch most orders committed together
+   * @param windowMicros longest wait for more orders after the first one
+   *     of a group
+   */
+  public OrderQueue(Amazon esql, int capacity, int maxBatch,
+                    long windowMicros) {
+    if (capacity < 1 || maxBatch < 1 || windowMicros < 0)
+      throw new IllegalArgumentException(
+          "capacity and maxBatch must be positive, windowMicros not negative");
+    this.esql = esql;
+    this.queue = new ArrayBlockingQueue<Pending>(capacity);
+    this.maxBatch = maxBatch;
+    this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+    this.writer = new Thread(this::drain, "order-queue-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  } // end OrderQueue
+
+  /**
+   * Queues an order. The future completes once the order's group has been
+   * committed, or with the SQLException that kept the order from being
+   * placed.
+   *
+   * @param customerID the user placing the order
+   * @param storeID the store selling the product
+   * @param productName the product ordered
+   * @param units the number of units ordered
+   * @return the order number and the units left, see OrderResult
+   * @throws java.util.concurrent.RejectedExecutionException when the queue
+   *     has been closed
+   * @throws InterruptedException when interrupted while the queue is full
+   */
+  public CompletableFuture<OrderResult> submit(int customerID, int storeID,
+                                               String productName, int units)
+      throws InterruptedException {
+    if (this.closed)
+      throw new RejectedExecutionException("The order queue is closed");
+    Pending p = new Pending(customerID, storeID, productName, units);
+    this.queue.put(p);
+    // the writer may have seen the queue empty and stopped after the check
+    // above; an order it did not take is refused rather than left waiting
+    if (this.closed && this.queue.remove(p))
+      throw new RejectedExecutionException("The order queue is closed");
+    return p.result;
+  } // end submit
+
+  /**
+   * Returns the number of orders waiting for the writer.
+   */
+  public int backlog() { return this.queue.size(); }
+
+  /**
+   * Stops taking orders, places the ones already queued and stops the
+   * writer thread. The writer is not interrupted, since an interrupt
+   * would make it fail to borrow connections for the orders it still has
+   * to place; it notices the close within POLL_MILLIS.
+   */
+  public void close() {
+    this.closed = true;
+    try {
+      this.writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  } // end close
+
+  // the writer loop: gather a group, place it, repeat; after close it
+  // places what is left and stops once the queue is empty
+  private void drain() {
+    List<Pending> group = new ArrayList<Pending>(this.maxBatch);
+    while (true) {
+      try {
+        if (this.closed) {
+          this.queue.drainTo(group, this.maxBatch);
+          if (group.isEmpty())
+            return;
+        } else {
+          Pending first = this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+          if (first == null)
+            continue;
+          group.add(first);
+          long deadline = System.nanoTime() + this.windowNanos;
+          while (group.size() < this.maxBatch) {
+            long wait = deadline - System.nanoTime();
+            // take whatever is already queued without waiting
+            if (this.queue.drainTo(group, this.maxBatch - group.size()) > 0)
+              continue;
+            if (wait <= 0)
+              break;
+            Pending next = this.queue.poll(wait, TimeUnit.NANOSECONDS);
+            if (next == null)
+              break;
+            group.add(next);
+          }
+        }
+      } catch (InterruptedException e) {
+        // nothing interrupts the writer but a dying process; keep going
+        // with the orders already gathered
+      }
+      if (!group.isEmpty()) {
+        place(group);
+        group.clear();
+      }
+    }
+  } // end drain
+
+  private void place(List<Pending> group) {
+    List<OrderResult> results;
+    try {
+      results = placeTogether(group);
+    } catch (CommitUncertain e) {
+      SQLException unknown = new SQLException(
+          "The order may or may not have been placed: " +
+          e.cause.getMessage(), e.cause);
+      for (Pending p : group)
+        p.result.completeExceptionally(unknown);
+      return;
+    } catch (SQLException e) {
+      // one order spoiled the group; give each its own transaction
+      for (Pending p : group)
+        placeAlone(p);
+      return;
+    } catch (RuntimeException e) {
+      for (Pending p : group)
+        p.result.completeExceptionally(e);
+      return;
+    }
+    for (int i = 0; i < group.size(); ++i)
+      group.get(i).result.complete(results.get(i));
+  } // end place
+
+  private List<OrderResult> placeTogether(List<Pending> group)
+      throws SQLException, CommitUncertain {
+    PooledConnection conn = this.esql.pool().borrow();
+    long start = System.nanoTime();
+    int rowCount = -1;
+    try {
+      Connection c = conn.connection();
+      c.setAutoCommit(false);
+      PreparedStatement stmt = conn.prepare(Amazon.PLACE_ORDER);
+      List<OrderResult> results = new ArrayList<OrderResult>(group.size());
+      for (Pending p : group)
+        results.add(execute(stmt, p));
+      try {
+        c.commit();
+      } catch (SQLException e) {
+        conn.failed(e);
+        throw new CommitUncertain(e);
+      }
+      rowCount = group.size();
+      return results;
+    } catch (SQLException e) {
+      conn.failed(e);
+      throw e;
+    } finally {
+      // the pool rolls back anything left uncommitted
+      this.esql.pool().release(conn);
+      this.esql.metrics().record(QueryMetrics.ORDER_GROUP, Amazon.PLACE_ORDER,
+                                 start, rowCount);
+    }
+  } // end placeTogether
+
+  private void placeAlone(Pending p) {
+    try {
+      p.result.complete(this.esql.submitOrderNow(p.customerID, p.storeID,
+                                                 p.productName, p.units));
+    } catch (Exception e) {
+      p.result.completeExceptionally(e);
+    }
+  } // end placeAlone
+
+  private static OrderResult execute(PreparedStatement stmt, Pending p)
+      throws SQLException {
+    stmt.setInt(1, p.customerID);
+    stmt.setInt(2, p.storeID);
+    stmt.setString(3, p.productName);
+    stmt.setInt(4, p.units);
+    ResultSet rs = stmt.executeQuery();
+    try {
+      rs.next();
+      int orderNumber = rs.getInt(1);
+      Integer placed = rs.wasNull() ? null : Integer.valueOf(orderNumber);
+      int unitsLeft = rs.getInt(2);
+      Integer left = rs.wasNull() ? null : Integer.valueOf(unitsLeft);
+      return new OrderResult(placed, left);
+    } finally {
+      rs.close();
+    }
+  } // end execute
+} // end OrderQueue
@@ -0,0 +1,38 @@
+/**
+ * Outcome of placing an order through {@link Amazon#submitOrder}.
+ */
+public class OrderResult {
+
+  /**
+   * The number given to the new order, or null if no order was placed.
+   */
+  public final Integer orderNumber;
+
+  /**
+   * Units of the product left in the store after the order, or null if the
+   * store does not carry the product.
+   */
+  public final Integer unitsLeft;
+
+  public OrderResult(Integer orderNumber, Integer unitsLeft) {
+    this.orderNumber = orderNumber;
+    this.unitsLeft = unitsLeft;
+  }
+
+  /**
+   * Returns true if the order was placed.
+   */
+  public boolean isPlaced() { return this.orderNumber != null; }
+
+  /**
+   * Returns true if the store does not carry the product.
+   */
+  public boolean isProductMissing() { return this.unitsLeft == null; }
+
+  /**
+   * Returns true if the store carries the product but has too few units.
+   */
+  public boolean isInsufficientStock() {
+    return this.orderNumber == null && this.unitsLeft != null;
+  }
+} // end OrderResult
@@ -0,0 +1,318 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Plan regression check for the SQL issued by the application.
+ *
+ * Every SQL statement written as a string literal (or a concatenation of
+ * literals) in the given Java sources is prepared on the server and its
+ * generic plan is EXPLAINed. The check fails when a plan reads one of the
+ * large tables with a sequential scan, unless the statement is one of the
+ * known full-table operations in FULL_SCAN_ALLOWED.
+ *
+ * Run it against a database loaded with a scaled dataset; on the small
+ * sample data the planner rightly prefers sequential scans everywhere.
+ */
+public class PlanCheck {
+
+  // tables that grow with the business and must not be scanned per request
+  private static final Set<String> HOT_TABLES = new HashSet<String>(
+      Arrays.asList("users", "store", "product", "orders",
+                    "productupdates", "productsupplyrequests",
+                    "storeproductsales", "storecustomersales",
+                    "storesaleshourly", "storesalesdaily"));
+
+  // statements that read a whole table on purpose
+  private static final Set<String> FULL_SCAN_ALLOWED =
+      new HashSet<String>(Arrays.asList(
+          // StoreIndex loads and fingerprints the whole Store table
+          "SELECT storeID, latitude, longitude FROM Store",
+          "SELECT COUNT(*), COALESCE(SUM(storeID), 0), COALESCE(SUM(latitude * 1000 + longitude), 0) FROM Store",
+          // ProductSearch loads the distinct product names
+          "SELECT DISTINCT productName FROM Product",
+          // Amazon.exportTable dumps whole tables on the admin's request
+          "SELECT * FROM Users", "SELECT * FROM Store", "SELECT * FROM Product",
+          "SELECT * FROM Warehouse", "SELECT * FROM Orders",
+          "SELECT * FROM ProductSupplyRequests",
+          "SELECT * FROM ProductUpdates"));
+
+  // SQL keywords are written in upper case throughout the sources
+  private static final Pattern STATEMENT_START =
+      Pattern.compile("^\\s*(SELECT|INSERT|UPDATE|DELETE|WITH)\\s");
+  private static final Pattern SEQ_SCAN =
+      Pattern.compile("Seq Scan on (\\w+)");
+
+  /**
+   * A statement found in the sources.
+   */
+  static class Query {
+    final String source;
+    final String sql;
+    final boolean dynamic; // concatenated with non-literal expressions
+
+    Query(String source, String sql, boolean dynamic) {
+      this.source = source;
+      this.sql = sql;
+      this.dynamic = dynamic;
+    }
+  } // end Query
+
+  /**
+   * Extracts the SQL statements written as string literals in a Java source
+   * file. Adjacent literals joined with + are treated as one statement.
+   */
+  static List<Query> extract(String file) throws IOException {
+    String text =
+        new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+    List<Query> queries = new ArrayList<Query>();
+    int i = 0;
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      if (c == '/' && i + 1 < text.length() && text.charAt(i + 1) == '/') {
+        i = skipLine(text, i);
+      } else if (c == '/' && i + 1 < text.length() &&
+                 text.charAt(i + 1) == '*') {
+        int end = text.indexOf("*/", i + 2);
+        i = end < 0 ? text.length() : end + 2;
+      } else if (c == '\'') {
+        // character literal, e.g. '"'
+        i = skipCharLiteral(text, i);
+      } else if (c == '"') {
+        boolean dynamic = previousToken(text, i) == '+';
+        StringBuilder sql = new StringBuilder();
+        while (true) {
+          i = readString(text, i, sql);
+          int next = skipSpaceAndComments(text, i);
+          if (next < text.length() && text.charAt(next) == '+') {
+            int after = skipSpaceAndComments(text, next + 1);
+            if (after < text.length() && text.charAt(after) == '"') {
+              i = after;
+              continue;
+            }
+            dynamic = true;
+          }
+          break;
+        }
+        if (STATEMENT_START.matcher(sql).find())
+          queries.add(new Query(file, sql.toString().trim(), dynamic));
+      } else {
+        ++i;
+      }
+    }
+    return queries;
+  } // end extract
+
+  /**
+   * Rewrites JDBC ? placeholders as $1, $2, ... for PREPARE, leaving quoted
+   * SQL literals alone.
+   */
+  static String numberPlaceholders(String sql, int[] count) {
+    StringBuilder out = new StringBuilder();
+    boolean quoted = false;
+    int n = 0;
+    for (int i = 0; i < sql.length(); ++i) {
+      char c = sql.charAt(i);
+      if (c == '\'')
+        quoted = !quoted;
+      if (c == '?' && !quoted)
+        out.append('$').append(++n);
+      else
+        out.append(c);
+    }
+    count[0] = n;
+    return out.toString();
+  } // end numberPlaceholders
+
+  /**
+   * Explains every statement and returns the number of failures.
+   */
+  static int check(Amazon esql, List<Query> queries) throws SQLException {
+    int failures = 0, skipped = 0, passed = 0;
+    PooledConnection conn = esql.pool().borrow();
+    try {
+      Statement stmt = conn.connection().createStatement();
+      stmt.execute("ANALYZE");
+      // explain the plan used for arbitrary parameter values
+      stmt.execute("SET plan_cache_mode = force_generic_plan");
+      for (Query q : queries) {
+        if (q.dynamic) {
+          System.out.println("SKIP  " + q.sql +
+                             "\n      (built at runtime)");
+          ++skipped;
+          continue;
+        }
+        int[] count = new int[1];
+        String prepared = numberPlaceholders(q.sql, count);
+        List<String> plan;
+        try {
+          stmt.execute("PREPARE plan_check AS " + prepared);
+          String[] nulls = new String[count[0]];
+          Arrays.fill(nulls, "NULL");
+          String args =
+              count[0] == 0 ? "" : "(" + String.join(", ", nulls) + ")";
+          plan = explain(stmt, "EXPLAIN EXECUTE plan_check" + args);
+          stmt.execute("DEALLOCATE plan_check");
+        } catch (SQLException e) {
+          System.out.println("SKIP  " + q.sql + "\n      (" +
+                             e.getMessage().trim() + ")");
+          ++skipped;
+          stmt.execute("DEALLOCATE ALL");
+          continue;
+        }
+
+        Set<String> scanned = new LinkedHashSet<String>();
+        for (String line : plan) {
+          Matcher m = SEQ_SCAN.matcher(line);
+          if (m.find() && isHot(m.group(1)))
+            scanned.add(m.group(1));
+        }
+        if (scanned.isEmpty() || FULL_SCAN_ALLOWED.contains(q.sql)) {
+          System.out.println("OK    " + q.sql);
+          ++passed;
+        } else {
+          System.out.println("FAIL  " + q.sql + "\n      sequential scan on " +
+                             scanned + " in " + q.source);
+          for (String line : plan)
+            System.out.println("        " + line);
+          ++failures;
+        }
+      }
+      stmt.close();
+    } catch (SQLException e) {
+      conn.failed(e);
+      throw e;
+    } finally {
+      esql.pool().release(conn);
+    }
+    System.out.println(passed + " passed, " + failures + " failed, " +
+                       skipped + " skipped");
+    return failures;
+  } // end check
+
+  private static List<String> explain(Statement stmt, String sql)
+      throws SQLException {
+    List<String> plan = new ArrayList<String>();
+    ResultSet rs = stmt.executeQuery(sql);
+    while (rs.next())
+      plan.add(rs.getString(1));
+    rs.close();
+    return plan;
+  } // end explain
+
+  // partitions and child tables count as their parent, e.g. orders_2024_01
+  private static boolean isHot(String table) {
+    String name = table.toLowerCase();
+    for (String hot : HOT_TABLES) {
+      if (name.equals(hot) || name.startsWith(hot + "_"))
+        return true;
+    }
+    return false;
+  } // end isHot
+
+  private static int readString(String text, int i, StringBuilder out) {
+    // i is at the opening quote
+    for (++i; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      if (c == '"')
+        return i + 1;
+      if (c == '\\' && i + 1 < text.length()) {
+        char e = text.charAt(++i);
+        out.append(e == 'n' ? '\n' : e == 't' ? '\t' : e);
+      } else {
+        out.append(c);
+      }
+    }
+    return i;
+  } // end readString
+
+  private static int skipLine(String text, int i) {
+    int end = text.indexOf('\n', i);
+    return end < 0 ? text.length() : end + 1;
+  }
+
+  private static int skipCharLiteral(String text, int i) {
+    int j = i + 1;
+    if (j < text.length() && text.charAt(j) == '\\')
+      ++j;
+    int end = text.indexOf('\'', j + 1);
+    return end < 0 ? text.length() : end + 1;
+  } // end skipCharLiteral
+
+  private static int skipSpaceAndComments(String text, int i) {
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      if (Character.isWhitespace(c)) {
+        ++i;
+      } else if (text.startsWith("//", i)) {
+        i = skipLine(text, i);
+      } else if (text.startsWith("/*", i)) {
+        int end = text.indexOf("*/", i + 2);
+        i = end < 0 ? text.length() : end + 2;
+      } else {
+        break;
+      }
+    }
+    return i;
+  } // end skipSpaceAndComments
+
+  private static char previousToken(String text, int i) {
+    for (--i; i >= 0; --i) {
+      if (!Character.isWhitespace(text.charAt(i)))
+        return text.charAt(i);
+    }
+    return 0;
+  } // end previousToken
+
+  /**
+   * Runs the check from the command line and exits with status 1 if any
+   * statement falls back to a sequential scan.
+   *
+   * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;source.java&gt;...
+   */
+  public static void main(String[] args) {
+    if (args.length < 4) {
+      System.err.println("Usage: "
+                         + "java [-classpath <classpath>] " +
+                         PlanCheck.class.getName() +
+                         " <dbname> <port> <user> <source.java>...");
+      System.exit(2);
+    } // end if
+
+    Amazon esql = null;
+    int failures;
+    try {
+      Class.forName("org.postgresql.Driver");
+      esql = new Amazon(args[0], args[1], args[2], "");
+      List<Query> queries = new ArrayList<Query>();
+      Set<String> seen = new HashSet<String>();
+      for (int i = 3; i < args.length; ++i) {
+        for (Query q : extract(args[i])) {
+          // the same statement is often issued from several menus
+          if (seen.add(q.sql))
+            queries.add(q);
+        }
+      }
+      failures = check(esql, queries);
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+      failures = 1;
+    } finally {
+      if (esql != null)
+        esql.cleanup();
+    }
+    System.exit(failures == 0 ? 0 : 1);
+  } // end main
+} // end PlanCheck
@@ -0,0 +1,86 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A physical connection handed out by {@link ConnectionPool}, together with
+ * the prepared statements cached on it. A borrower uses it from a single
+ * thread and gives it back with {@link ConnectionPool#release}.
+ */
+public class PooledConnection {
+
+  private final Connection connection;
+  private final StatementCache statements;
+  private final long createdAt;
+
+  // last time the connection went back to the pool or was validated
+  long lastUsedAt;
+  private boolean broken = false;
+
+  PooledConnection(Connection connection, int statementCacheSize) {
+    this.connection = connection;
+    this.statements = new StatementCache(connection, statementCacheSize);
+    this.createdAt = System.currentTimeMillis();
+    this.lastUsedAt = this.createdAt;
+  } // end PooledConnection
+
+  /**
+   * Returns the underlying JDBC connection.
+   */
+  public Connection connection() { return this.connection; }
+
+  /**
+   * Returns the cached prepared statement for {@code sql}. See
+   * {@link StatementCache#prepare}.
+   */
+  public PreparedStatement prepare(String sql) throws SQLException {
+    return this.statements.prepare(sql);
+  }
+
+  /**
+   * Returns the cached prepared statement for {@code sql}, prepared on the
+   * server only if {@code serverPrepare} allows it. See
+   * {@link StatementCache#prepare(String, boolean)}.
+   */
+  public PreparedStatement prepare(String sql, boolean serverPrepare)
+      throws SQLException {
+    return this.statements.prepare(sql, serverPrepare);
+  }
+
+  /**
+   * Records a failure seen while using this connection. Connection-level
+   * errors (SQLState class 08) and closed sockets mark the connection as
+   * broken so the pool discards it instead of lending it out again.
+   *
+   * @param e the error raised by the driver
+   */
+  public void failed(SQLException e) {
+    String state = e.getSQLState();
+    if (state != null && state.startsWith("08")) {
+      this.broken = true;
+      return;
+    }
+    // a statement the driver believes is prepared is missing on the
+    // server; prepare everything again on next use
+    if ("26000".equals(state))
+      this.statements.clear();
+    try {
+      this.broken = this.connection.isClosed();
+    } catch (SQLException ignored) {
+      this.broken = true;
+    }
+  } // end failed
+
+  boolean isBroken() { return this.broken; }
+
+  long createdAt() { return this.createdAt; }
+
+  void close() {
+    this.statements.clear();
+    try {
+      this.connection.close();
+    } catch (SQLException e) {
+      // ignored.
+    }
+  } // end close
+} // end PooledConnection
@@ -0,0 +1,280 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-process search over the distinct product names of the Product table.
+ *
+ * Names are kept in a trie keyed by their lower-cased characters, so a
+ * prefix lookup walks one path and lists the subtree below it, and a
+ * lookup with typos walks the trie once while computing the Levenshtein
+ * distance of every prefix, abandoning branches that cannot come within
+ * the allowed distance. Both answer in microseconds for catalogs of tens of
+ * thousands of names, without a database round trip.
+ *
+ * Like StoreIndex, the trie is loaded lazily and reloaded when the set of
+ * products changes. Names only come and go with Product inserts and
+ * deletes (the application never renames a product), so the fingerprint is
+ * the table's insert and delete counters from pg_stat_user_tables, which
+ * cost nothing to read. It is checked at most once every
+ * {@code refreshMillis}, and again on demand before a name is reported
+ * missing; a name the trie still lacks is then looked up in Product, so
+ * an existing product is never refused because the trie is stale.
+ */
+public class ProductSearch {
+
+  /**
+   * A product name found by a fuzzy lookup.
+   */
+  public static class Match {
+    public final String name;
+    public final int distance;
+
+    Match(String name, int distance) {
+      this.name = name;
+      this.distance = distance;
+    }
+
+    public String toString() { return this.name; }
+  } // end Match
+
+  private static final Comparator<Match> BY_DISTANCE =
+      Comparator.comparingInt((Match m) -> m.distance)
+          .thenComparing(m -> m.name);
+
+  private static final String LOAD_QUERY =
+      "SELECT DISTINCT productName FROM Product";
+  private static final String EXISTS_QUERY =
+      "SELECT productName FROM Product WHERE productName = ? LIMIT 1";
+  private static final String FINGERPRINT_QUERY =
+      "SELECT n_tup_ins, n_tup_del FROM pg_stat_user_tables WHERE relname = 'product'";
+
+  // a missing name triggers a fingerprint check at most this often
+  private static final long RECHECK_MILLIS = 1000L;
+
+  private final Amazon esql;
+  private final long refreshMillis;
+
+  // the current trie, replaced wholesale on reload so readers never lock
+  private volatile Node root = null;
+  private volatile int size = 0;
+  private volatile String fingerprint = null;
+  private volatile long checkedAt = 0;
+
+  /**
+   * Creates a search that is filled from the Product table on first use.
+   *
+   * @param esql the database the names are read from
+   * @param refreshMillis how often the Product fingerprint is re-checked
+   */
+  public ProductSearch(Amazon esql, long refreshMillis) {
+    this.esql = esql;
+    this.refreshMillis = refreshMillis;
+  } // end ProductSearch
+
+  /**
+   * Returns the product name that equals {@code input} ignoring case and
+   * surrounding blanks, or null if there is none. A miss re-checks the
+   * Product table first, so products added since the last load are found.
+   * The table statistics behind that check lag behind commits, and never
+   * move with track_counts off, so a name still missing from the trie is
+   * looked up in Product, spelled exactly as given, before it is reported
+   * missing.
+   */
+  public String resolve(String input) throws SQLException {
+    String key = normalize(input);
+    if (key.isEmpty())
+      return null;
+    String name = exact(current(false), key, input.trim());
+    if (name == null)
+      name = exact(current(true), key, input.trim());
+    if (name != null)
+      return name;
+    List<List<String>> rows =
+        esql.executeQueryAndReturnResult(EXISTS_QUERY, input.trim());
+    if (rows.isEmpty())
+      return null;
+    // the trie is out of date; the next lookup reloads it
+    invalidate();
+    return rows.get(0).get(0).trim();
+  } // end resolve
+
+  /**
+   * Returns up to {@code limit} product names starting with {@code prefix},
+   * ignoring case, in alphabetical order.
+   */
+  public List<String> complete(String prefix, int limit) throws SQLException {
+    List<String> names = new ArrayList<String>();
+    Node node = current(false);
+    String key = normalize(prefix);
+    for (int i = 0; i < key.length() && node != null; ++i)
+      node = node.children.get(key.charAt(i));
+    if (node != null)
+      collect(node, names, limit);
+    return names;
+  } // end complete
+
+  /**
+   * Returns up to {@code limit} product names within {@code maxDistance}
+   * insertions, deletions or substitutions of {@code input}, ignoring case,
+   * closest first.
+   */
+  public List<Match> fuzzy(String input, int maxDistance, int limit)
+      throws SQLException {
+    String key = normalize(input);
+    List<Match> matches = new ArrayList<Match>();
+    Node root = current(false);
+    int[] row = new int[key.length() + 1];
+    for (int i = 0; i <= key.length(); ++i)
+      row[i] = i;
+    if (root.names != null && row[key.length()] <= maxDistance)
+      for (String name : root.names)
+        matches.add(new Match(name, row[key.length()]));
+    for (Map.Entry<Character, Node> e : root.children.entrySet())
+      search(e.getValue(), e.getKey(), key, row, maxDistance, matches);
+    Collections.sort(matches, BY_DISTANCE);
+    return matches.size() > limit
+        ? new ArrayList<Match>(matches.subList(0, limit))
+        : matches;
+  } // end fuzzy
+
+  /**
+   * Returns "did you mean" candidates for a name that did not resolve: the
+   * names within a typo or two of it, or failing that the names it is a
+   * prefix of.
+   */
+  public List<String> suggest(String input, int limit) throws SQLException {
+    // short inputs would match too many names with two edits
+    int maxDistance = normalize(input).length() <= 4 ? 1 : 2;
+    List<String> names = new ArrayList<String>();
+    for (Match m : fuzzy(input, maxDistance, limit))
+      names.add(m.name);
+    if (names.isEmpty())
+      names = complete(input, limit);
+    return names;
+  } // end suggest
+
+  /**
+   * Returns the number of distinct product names loaded.
+   */
+  public int size() throws SQLException {
+    current(false);
+    return this.size;
+  }
+
+  /**
+   * Drops the loaded trie so the next lookup reloads it from the database.
+   */
+  public void invalidate() {
+    this.root = null;
+    this.fingerprint = null;
+    this.checkedAt = 0;
+  } // end invalidate
+
+  // extends the Levenshtein row of the parent prefix by character c
+  private static void search(Node node, char c, String key, int[] previous,
+                             int maxDistance, List<Match> matches) {
+    int[] row = new int[previous.length];
+    row[0] = previous[0] + 1;
+    int best = row[0];
+    for (int i = 1; i < row.length; ++i) {
+      int cost = key.charAt(i - 1) == c ? 0 : 1;
+      row[i] = Math.min(Math.min(row[i - 1] + 1, previous[i] + 1),
+                        previous[i - 1] + cost);
+      best = Math.min(best, row[i]);
+    }
+    int distance = row[row.length - 1];
+    if (node.names != null && distance <= maxDistance)
+      for (String name : node.names)
+        matches.add(new Match(name, distance));
+    // no longer name below can come closer than the best of this row
+    if (best > maxDistance)
+      return;
+    for (Map.Entry<Character, Node> e : node.children.entrySet())
+      search(e.getValue(), e.getKey(), key, row, maxDistance, matches);
+  } // end search
+
+  private static void collect(Node node, List<String> names, int limit) {
+    if (names.size() >= limit)
+      return;
+    if (node.names != null)
+      for (String name : node.names)
+        if (names.size() < limit)
+          names.add(name);
+    for (Node child : node.children.values())
+      collect(child, names, limit);
+  } // end collect
+
+  // prefers the name spelled exactly like the input among those that
+  // differ only in case
+  private static String exact(Node node, String key, String input) {
+    for (int i = 0; i < key.length() && node != null; ++i)
+      node = node.children.get(key.charAt(i));
+    if (node == null || node.names == null)
+      return null;
+    return node.names.contains(input) ? input : node.names.get(0);
+  } // end exact
+
+  private static String normalize(String name) {
+    return name == null ? "" : name.trim().toLowerCase();
+  }
+
+  /**
+   * Returns the trie, loading or reloading it when the Product fingerprint
+   * has changed since the last load. {@code force} checks the fingerprint
+   * once RECHECK_MILLIS have passed instead of refreshMillis.
+   */
+  private Node current(boolean force) throws SQLException {
+    Node r = this.root;
+    long now = System.currentTimeMillis();
+    long interval = force ? RECHECK_MILLIS : this.refreshMillis;
+    if (r != null && now - this.checkedAt < interval)
+      return r;
+    synchronized (this) {
+      if (this.root != null && now - this.checkedAt < interval)
+        return this.root;
+      List<List<String>> stats =
+          esql.executeQueryAndReturnResult(FINGERPRINT_QUERY);
+      // without statistics every check reloads
+      String fp = stats.isEmpty() ? null : String.join(",", stats.get(0));
+      if (this.root == null || fp == null || !fp.equals(this.fingerprint)) {
+        load();
+        this.fingerprint = fp;
+      }
+      this.checkedAt = now;
+      return this.root;
+    }
+  } // end current
+
+  private void load() throws SQLException {
+    final Node r = new Node();
+    final int[] count = {0};
+    // streamed, so only the trie itself is held in memory
+    esql.executeQueryAndStream(LOAD_QUERY, rs -> {
+      String name = rs.getString(1).trim();
+      String key = name.toLowerCase();
+      Node node = r;
+      for (int i = 0; i < key.length(); ++i)
+        node = node.children.computeIfAbsent(key.charAt(i), k -> new Node());
+      if (node.names == null)
+        node.names = new ArrayList<String>(1);
+      node.names.add(name);
+      ++count[0];
+    });
+    this.root = r;
+    this.size = count[0];
+  } // end load
+
+  /**
+   * A trie node; names holds the product names spelled by the path to it,
+   * usually one, more when names differ only in case.
+   */
+  private static class Node {
+    final TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+    List<String> names = null;
+  } // end Node
+} // end ProductSearch
@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency, row and error counts of the statements run through the Amazon
+ * JDBC helpers, kept per helper method and per statement shape, plus the
+ * time spent waiting for a pooled connection.
+ *
+ * A statement's shape is its SQL text with literals replaced by ? and
+ * whitespace collapsed, so the dynamically built UPDATEs of the menus
+ * group by the columns they set, not by the values. The shape of each SQL
+ * string is worked out once; after that a call costs a map lookup, two
+ * clock reads and a few atomic increments.
+ *
+ * The metrics are published as the MBean amazon:type=QueryMetrics and can
+ * also be written to a file at a fixed interval with {@link #startDump}.
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+  static final String UPDATE = "executeUpdate";
+  static final String QUERY = "executeQuery";
+  static final String RETURN_RESULT = "executeQueryAndReturnResult";
+  static final String PRINT_RESULT = "executeQueryAndPrintResult";
+  static final String STREAM = "executeQueryAndStream";
+  static final String EXPORT = "exportTable";
+  static final String ORDER_GROUP = "orderQueue";
+  static final String REPLICA_STREAM = "executeReadOnlyQueryAndStream";
+
+  // further shapes are counted together so the map stays bounded
+  private static final int MAX_SHAPES = 500;
+  private static final String OTHER_SHAPES = "(other statements)";
+
+  private static final AtomicInteger instances = new AtomicInteger();
+
+  /**
+   * Counts of one helper or statement shape.
+   */
+  public static class Metric {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder rows = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    void record(long nanos, int rowCount) {
+      this.latency.record(nanos);
+      if (rowCount < 0)
+        this.errors.increment();
+      else
+        this.rows.add(rowCount);
+    }
+
+    void reset() {
+      this.latency.reset();
+      this.rows.reset();
+      this.errors.reset();
+    }
+
+    String summary(String name) {
+      LatencyHistogram h = this.latency;
+      return String.format(
+          "calls=%d errors=%d rows=%d mean=%.3fms p50=%.3fms p95=%.3fms " +
+              "p99=%.3fms max=%.3fms  %s",
+          h.count(), this.errors.sum(), this.rows.sum(), h.mean() / 1e6,
+          h.percentile(0.50) / 1e6, h.percentile(0.95) / 1e6,
+          h.percentile(0.99) / 1e6, h.max() / 1e6, name);
+    } // end summary
+  } // end Metric
+
+  private final ConnectionPool pool;
+  private final Map<String, Metric> operations =
+      new ConcurrentHashMap<String, Metric>();
+  // keyed by statement shape
+  private final Map<String, Metric> shapes =
+      new ConcurrentHashMap<String, Metric>();
+  // keyed by the SQL text as passed in, so the shape is computed only once
+  private final Map<String, Metric> statements =
+      new ConcurrentHashMap<String, Metric>();
+  private ObjectName name;
+  private ScheduledExecutorService dumper;
+  private Path dumpFile;
+
+  /**
+   * @param pool the pool whose wait times are reported
+   */
+  public QueryMetrics(ConnectionPool pool) { this.pool = pool; }
+
+  /**
+   * Records one call of a JDBC helper.
+   *
+   * @param operation the helper, one of the constants of this class
+   * @param sql the statement text
+   * @param startNanos System.nanoTime() when the statement was issued
+   * @param rows the rows returned or affected, or -1 when the call failed
+   */
+  void record(String operation, String sql, long startNanos, int rows) {
+    long nanos = System.nanoTime() - startNanos;
+    Metric op = this.operations.get(operation);
+    if (op == null)
+      op = this.operations.computeIfAbsent(operation, k -> new Metric());
+    op.record(nanos, rows);
+
+    Metric shape = this.statements.get(sql);
+    if (shape == null) {
+      String key = shapeOf(sql);
+      if (this.shapes.size() >= MAX_SHAPES && !this.shapes.containsKey(key))
+        key = OTHER_SHAPES;
+      shape = this.shapes.computeIfAbsent(key, k -> new Metric());
+      // distinct texts are bounded by the shapes they fall into
+      if (this.statements.size() < 4 * MAX_SHAPES)
+        this.statements.put(sql, shape);
+    }
+    shape.record(nanos, rows);
+  } // end record
+
+  /**
+   * Returns the shape of a statement: string and numeric literals become ?
+   * and runs of whitespace a single space.
+   */
+  static String shapeOf(String sql) {
+    StringBuilder out = new StringBuilder(sql.length());
+    int n = sql.length();
+    for (int i = 0; i < n; ++i) {
+      char c = sql.charAt(i);
+      if (c == '\'') {
+        // skip to the closing quote; '' is an escaped quote
+        for (++i; i < n; ++i) {
+          if (sql.charAt(i) == '\'') {
+            if (i + 1 < n && sql.charAt(i + 1) == '\'')
+              ++i;
+            else
+              break;
+          }
+        }
+        out.append('?');
+      } else if (Character.isDigit(c) &&
+                 (out.length() == 0 ||
+                  !Character.isLetterOrDigit(out.charAt(out.length() - 1)) &&
+                      out.charAt(out.length() - 1) != '_')) {
+        while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) ||
+                             sql.charAt(i + 1) == '.'))
+          ++i;
+        out.append('?');
+      } else if (Character.isWhitespace(c)) {
+        if (out.length() > 0 && out.charAt(out.length() - 1) != ' ')
+          out.append(' ');
+      } else {
+        out.append(c);
+      }
+    }
+    return out.toString().trim();
+  } // end shapeOf
+
+  /**
+   * Publishes the metrics on the platform MBean server. A second instance in
+   * the same process is registered with an id suffix.
+   */
+  public synchronized void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      int id = instances.getAndIncrement();
+      this.name = new ObjectName("amazon:type=QueryMetrics" +
+                                 (id == 0 ? "" : ",id=" + id));
+      server.registerMBean(this, this.name);
+    } catch (Exception e) {
+      this.name = null;
+      System.err.println("Query metrics not published over JMX: " +
+                         e.getMessage());
+    }
+  } // end register
+
+  /**
+   * Writes the report to {@code path} every {@code intervalMillis}, replacing
+   * the previous one. The file is written next to the target and renamed,
+   * so readers never see a partial report.
+   */
+  public synchronized void startDump(String path, long intervalMillis) {
+    this.dumpFile = Paths.get(path);
+    this.dumper =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "query-metrics-dump");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    this.dumper.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        writeDump();
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  } // end startDump
+
+  private void writeDump() {
+    try {
+      Path tmp = this.dumpFile.resolveSibling(this.dumpFile.getFileName() +
+                                              ".tmp");
+      Files.write(tmp, dump().getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp, this.dumpFile, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      System.err.println("Unable to write query metrics: " + e.getMessage());
+    }
+  } // end writeDump
+
+  /**
+   * Stops the dump, writing a last report, and unregisters the MBean.
+   */
+  public synchronized void close() {
+    if (this.dumper != null) {
+      this.dumper.shutdownNow();
+      this.dumper = null;
+      writeDump();
+    }
+    if (this.name != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+      } catch (Exception e) {
+        // already gone
+      }
+      this.name = null;
+    }
+  } // end close
+
+  /**
+   * Returns the counts of one helper, or null if it was never called.
+   */
+  public Metric operation(String operation) {
+    return this.operations.get(operation);
+  }
+
+  public long getTotalCalls() {
+    long n = 0;
+    for (Metric m : this.operations.values())
+      n += m.latency.count();
+    return n;
+  } // end getTotalCalls
+
+  public long getTotalErrors() {
+    long n = 0;
+    for (Metric m : this.operations.values())
+      n += m.errors.sum();
+    return n;
+  } // end getTotalErrors
+
+  public long getTotalRows() {
+    long n = 0;
+    for (Metric m : this.operations.values())
+      n += m.rows.sum();
+    return n;
+  } // end getTotalRows
+
+  public int getStatementCount() { return this.shapes.size(); }
+
+  public double getPoolWaitP99Millis() {
+    return this.pool.waitHistogram().percentile(0.99) / 1e6;
+  }
+
+  public double getPoolWaitMaxMillis() {
+    return this.pool.waitHistogram().max() / 1e6;
+  }
+
+  public String[] getOperations() { return summaries(this.operations); }
+
+  public String[] getStatements() { return summaries(this.shapes); }
+
+  private static String[] summaries(Map<String, Metric> metrics) {
+    List<Map.Entry<String, Metric>> entries =
+        new ArrayList<Map.Entry<String, Metric>>(metrics.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Metric>>() {
+      public int compare(Map.Entry<String, Metric> a,
+                         Map.Entry<String, Metric> b) {
+        return Long.compare(b.getValue().latency.percentile(0.99),
+                            a.getValue().latency.percentile(0.99));
+      }
+    });
+    String[] lines = new String[entries.size()];
+    for (int i = 0; i < lines.length; ++i)
+      lines[i] = entries.get(i).getValue().summary(entries.get(i).getKey());
+    return lines;
+  } // end summaries
+
+  public String dump() {
+    StringBuilder out = new StringBuilder();
+    out.append("# query metrics at ").append(new Date()).append('\n');
+    out.append("\n# connection pool\n");
+    LatencyHistogram waits = this.pool.waitHistogram();
+    out.append(String.format(
+        "wait p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms  %s\n",
+        waits.percentile(0.50) / 1e6, waits.percentile(0.95) / 1e6,
+        waits.percentile(0.99) / 1e6, waits.max() / 1e6, this.pool.stats()));
+    out.append("\n# by helper\n");
+    for (String line : getOperations())
+      out.append(line).append('\n');
+    out.append("\n# by statement, slowest p99 first\n");
+    for (String line : getStatements())
+      out.append(line).append('\n');
+    return out.toString();
+  } // end dump
+
+  public void reset() {
+    for (Metric m : this.operations.values())
+      m.reset();
+    for (Metric m : this.shapes.values())
+      m.reset();
+    this.pool.waitHistogram().reset();
+  } // end reset
+} // end QueryMetrics
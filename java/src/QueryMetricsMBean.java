@@ -0,0 +1,37 @@
+/**
+ * JMX view of {@link QueryMetrics}. Times are in milliseconds.
+ */
+public interface QueryMetricsMBean {
+
+  long getTotalCalls();
+
+  long getTotalErrors();
+
+  long getTotalRows();
+
+  int getStatementCount();
+
+  double getPoolWaitP99Millis();
+
+  double getPoolWaitMaxMillis();
+
+  /**
+   * One summary line per JDBC helper.
+   */
+  String[] getOperations();
+
+  /**
+   * One summary line per statement shape, slowest p99 first.
+   */
+  String[] getStatements();
+
+  /**
+   * The full report, as written to the dump file.
+   */
+  String dump();
+
+  /**
+   * Starts counting afresh.
+   */
+  void reset();
+} // end QueryMetricsMBean
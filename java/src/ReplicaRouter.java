@@ -0,0 +1,176 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses between the primary and a read-only replica for queries that
+ * tolerate slightly stale data.
+ *
+ * A read goes to the replica only while all of these hold:
+ * <ul>
+ * <li>the replica's replay lag, measured at most {@code checkMillis} ago,
+ * is below {@code maxLagMillis};
+ * <li>the replica has not failed within the last {@code checkMillis};
+ * <li>the user the read is for has not written through this process within
+ * the last {@code maxLagMillis}, so users see their own orders and updates.
+ * </ul>
+ * Otherwise the read goes to the primary. A replica that is not a standby,
+ * such as a second local instance loaded with the same data, reports no
+ * lag; a standby that has lost its connection to the primary is never
+ * used, since nothing bounds how stale it is.
+ */
+public class ReplicaRouter {
+
+  // milliseconds the replica is behind the primary; 0 when it is not a
+  // standby at all, or streams from the primary and has replayed
+  // everything it received. -1 when it has no streaming WAL receiver: it
+  // is then cut off from the primary, however little it has left to
+  // replay, and arbitrarily stale. Without pg_read_all_stats the receiver's
+  // status reads as NULL, and only its presence is checked
+  static final String LAG_QUERY =
+      "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 "
+      + "WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status IS NULL OR status = 'streaming') THEN -1 "
+      + "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+      + "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, -1) END";
+
+  // expired writers are swept once this many are remembered
+  private static final int MAX_WRITERS = 100000;
+
+  private final ConnectionPool primary;
+  private final ConnectionPool replica;
+  private final long maxLagNanos;
+  private final long checkNanos;
+
+  // when the lag was last measured, and the result
+  private volatile long checkedAt;
+  private volatile boolean usable = false;
+  private volatile long lagMillis = -1;
+
+  // userID to System.nanoTime() of that user's last write
+  private final Map<Integer, Long> writers =
+      new ConcurrentHashMap<Integer, Long>();
+
+  /**
+   * @param primary the pool all writes go to
+   * @param replica the read-only pool, or null to send everything to the
+   *     primary
+   * @param maxLagMillis the staleness a routed read accepts
+   * @param checkMillis how long a lag measurement or a replica failure is
+   *     trusted
+   */
+  public ReplicaRouter(ConnectionPool primary, ConnectionPool replica,
+                       long maxLagMillis, long checkMillis) {
+    this.primary = primary;
+    this.replica = replica;
+    this.maxLagNanos = maxLagMillis * 1000000L;
+    this.checkNanos = checkMillis * 1000000L;
+    this.checkedAt = System.nanoTime() - this.checkNanos;
+  } // end ReplicaRouter
+
+  /**
+   * Returns the pool a read for {@code userID} should use.
+   *
+   * @param userID the user the data is shown to, or -1 for nobody in
+   *     particular
+   */
+  public ConnectionPool readPool(int userID) {
+    if (this.replica == null)
+      return this.primary;
+    long now = System.nanoTime();
+    if (userID >= 0) {
+      Long wrote = this.writers.get(userID);
+      if (wrote != null && now - wrote < this.maxLagNanos)
+        return this.primary;
+    }
+    if (now - this.checkedAt >= this.checkNanos)
+      check(now);
+    return this.usable ? this.replica : this.primary;
+  } // end readPool
+
+  /**
+   * Notes that {@code userID} has just committed a write, so that user's
+   * reads stay on the primary until the replica can have caught up.
+   */
+  public void wrote(int userID) {
+    if (this.replica == null)
+      return;
+    long now = System.nanoTime();
+    if (this.writers.size() >= MAX_WRITERS)
+      forgetOldWriters(now);
+    this.writers.put(userID, now);
+  } // end wrote
+
+  /**
+   * Takes the replica out of rotation until the next check, after a read on
+   * it failed.
+   */
+  public void failed() {
+    this.usable = false;
+    this.checkedAt = System.nanoTime();
+  }
+
+  /**
+   * Returns the primary pool.
+   */
+  public ConnectionPool primary() { return this.primary; }
+
+  /**
+   * Returns the replica pool, or null if there is none.
+   */
+  public ConnectionPool replica() { return this.replica; }
+
+  /**
+   * Returns true if {@code pool} is the replica.
+   */
+  public boolean isReplica(ConnectionPool pool) {
+    return pool != null && pool == this.replica;
+  }
+
+  /**
+   * Returns the replica lag found by the last check in milliseconds, or -1
+   * if the replica could not be reached, is not receiving WAL from the
+   * primary, or there is none.
+   */
+  public long lagMillis() { return this.lagMillis; }
+
+  // measures the lag; one caller measures while the others keep the last
+  // answer
+  private void check(long now) {
+    synchronized (this) {
+      if (now - this.checkedAt < this.checkNanos)
+        return;
+      this.checkedAt = now;
+    }
+    long lag = -1;
+    PooledConnection conn = null;
+    try {
+      conn = this.replica.borrow();
+      ResultSet rs = conn.prepare(LAG_QUERY).executeQuery();
+      try {
+        if (rs.next())
+          lag = (long)rs.getDouble(1);
+      } finally {
+        rs.close();
+      }
+    } catch (SQLException e) {
+      if (conn != null)
+        conn.failed(e);
+      lag = -1;
+    } finally {
+      if (conn != null)
+        this.replica.release(conn);
+    }
+    this.lagMillis = lag;
+    this.usable = lag >= 0 && lag * 1000000L < this.maxLagNanos;
+  } // end check
+
+  private void forgetOldWriters(long now) {
+    Iterator<Long> it = this.writers.values().iterator();
+    while (it.hasNext()) {
+      if (now - it.next() >= this.maxLagNanos)
+        it.remove();
+    }
+  } // end forgetOldWriters
+} // end ReplicaRouter
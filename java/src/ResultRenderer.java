@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the rows of a streamed query to a character stream, either as an
+ * aligned table for the terminal or as CSV or JSON for export.
+ *
+ * A renderer is a RowHandler: pass it to
+ * {@link Amazon#executeQueryAndStream} (or any method taking a handler) and
+ * call finish() once the query returns. Output goes through the given
+ * Writer, which should be buffered; finish() flushes it but leaves closing
+ * it to the caller. Only the table renderer holds rows, and only the first
+ * few it uses to size the columns, so CSV and JSON exports of whole tables
+ * run in constant memory.
+ *
+ * Fixed-width character columns come back from Postgres padded with
+ * blanks; the padding is trimmed from every value written.
+ */
+public abstract class ResultRenderer implements RowHandler {
+
+  // the table renderer never pads a column wider than this
+  static final int MAX_COLUMN_WIDTH = 40;
+
+  protected final Writer out;
+  private String[] columns = null;
+  private int rows = 0;
+
+  protected ResultRenderer(Writer out) { this.out = out; }
+
+  /**
+   * Returns a renderer that prints rows as a table, with each column as
+   * wide as its longest value among the header and the first
+   * {@code sampleRows} rows. Later rows are printed with the same widths;
+   * longer values push the rest of their line to the right.
+   *
+   * @param out where the table is written
+   * @param sampleRows how many rows are held back to size the columns
+   */
+  public static ResultRenderer table(Writer out, int sampleRows) {
+    return new Table(out, sampleRows);
+  }
+
+  /**
+   * Returns a renderer that writes a header line with the column names
+   * and then one comma separated line per row, quoting values as
+   * CsvReader and BulkLoader expect. SQL NULL is written as an empty field.
+   *
+   * @param out where the CSV text is written
+   */
+  public static ResultRenderer csv(Writer out) { return new Csv(out); }
+
+  /**
+   * Returns a renderer that writes a JSON array with one object per row,
+   * keyed by column name. Numeric and boolean columns are written as JSON
+   * numbers and booleans, everything else as strings.
+   *
+   * @param out where the JSON text is written
+   */
+  public static ResultRenderer json(Writer out) { return new JsonRows(out); }
+
+  public final void handle(ResultSet rs) throws SQLException {
+    try {
+      if (this.columns == null) {
+        ResultSetMetaData rsmd = rs.getMetaData();
+        this.columns = new String[rsmd.getColumnCount()];
+        for (int i = 0; i < this.columns.length; ++i)
+          this.columns[i] = rsmd.getColumnName(i + 1);
+        begin(rsmd);
+      }
+      row(rs);
+      ++this.rows;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  } // end handle
+
+  /**
+   * Writes whatever is still held back and flushes the Writer. A result
+   * without rows writes nothing for the table, no lines for CSV and an
+   * empty array for JSON.
+   *
+   * @return the number of rows rendered
+   * @throws java.io.IOException when the output cannot be written
+   */
+  public int finish() throws IOException {
+    end();
+    this.out.flush();
+    return this.rows;
+  } // end finish
+
+  /**
+   * Returns the column names, or null before the first row.
+   */
+  protected String[] columns() { return this.columns; }
+
+  /**
+   * Returns how many rows were rendered before the current one.
+   */
+  protected int rowsSoFar() { return this.rows; }
+
+  /**
+   * Called once, before the first row, with the metadata of the result.
+   */
+  protected void begin(ResultSetMetaData rsmd)
+      throws SQLException, IOException {}
+
+  /**
+   * Writes the current row of {@code rs}.
+   */
+  protected abstract void row(ResultSet rs) throws SQLException, IOException;
+
+  /**
+   * Writes what follows the last row.
+   */
+  protected void end() throws IOException {}
+
+  /**
+   * Reads column {@code i} (1-based) as text, without the blank padding of
+   * fixed-width columns, or null for SQL NULL.
+   */
+  protected static String value(ResultSet rs, int i) throws SQLException {
+    String s = rs.getString(i);
+    if (s == null)
+      return null;
+    int end = s.length();
+    while (end > 0 && s.charAt(end - 1) == ' ')
+      --end;
+    return s.substring(0, end);
+  } // end value
+
+  // holds back the first rows to size the columns, then streams
+  private static class Table extends ResultRenderer {
+    final int sampleRows;
+    List<String[]> held = new ArrayList<String[]>();
+    int[] widths = null;
+
+    Table(Writer out, int sampleRows) {
+      super(out);
+      this.sampleRows = Math.max(0, sampleRows);
+    }
+
+    protected void row(ResultSet rs) throws SQLException, IOException {
+      String[] values = new String[columns().length];
+      for (int i = 0; i < values.length; ++i) {
+        String v = value(rs, i + 1);
+        values[i] = v == null ? "null" : v;
+      }
+      if (this.widths != null) {
+        line(values);
+        return;
+      }
+      this.held.add(values);
+      if (this.held.size() > this.sampleRows)
+        release();
+    } // end row
+
+    protected void end() throws IOException {
+      if (columns() != null && this.widths == null)
+        release();
+    }
+
+    // fixes the widths and prints the header and the held rows
+    void release() throws IOException {
+      String[] header = columns();
+      this.widths = new int[header.length];
+      for (int i = 0; i < header.length; ++i)
+        this.widths[i] = header[i].length();
+      for (String[] values : this.held)
+        for (int i = 0; i < values.length; ++i)
+          this.widths[i] = Math.max(this.widths[i], values[i].length());
+      for (int i = 0; i < this.widths.length; ++i)
+        this.widths[i] = Math.min(this.widths[i], MAX_COLUMN_WIDTH);
+      line(header);
+      String[] rule = new String[header.length];
+      for (int i = 0; i < rule.length; ++i)
+        rule[i] = "-".repeat(this.widths[i]);
+      line(rule);
+      for (String[] values : this.held)
+        line(values);
+      this.held = null;
+    } // end release
+
+    void line(String[] values) throws IOException {
+      for (int i = 0; i < values.length; ++i) {
+        if (i > 0)
+          this.out.write("  ");
+        this.out.write(values[i]);
+        // the last column is not padded, so lines carry no trailing blanks
+        if (i < values.length - 1)
+          for (int n = values[i].length(); n < this.widths[i]; ++n)
+            this.out.write(' ');
+      }
+      this.out.write('\n');
+    } // end line
+  } // end Table
+
+  private static class Csv extends ResultRenderer {
+    Csv(Writer out) { super(out); }
+
+    protected void begin(ResultSetMetaData rsmd) throws IOException {
+      String[] header = columns();
+      for (int i = 0; i < header.length; ++i)
+        field(i, header[i]);
+      this.out.write('\n');
+    }
+
+    protected void row(ResultSet rs) throws SQLException, IOException {
+      for (int i = 0; i < columns().length; ++i)
+        field(i, value(rs, i + 1));
+      this.out.write('\n');
+    }
+
+    void field(int i, String value) throws IOException {
+      if (i > 0)
+        this.out.write(',');
+      if (value == null)
+        return;
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 &&
+          value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+        this.out.write(value);
+        return;
+      }
+      this.out.write('"');
+      this.out.write(value.replace("\"", "\"\""));
+      this.out.write('"');
+    } // end field
+  } // end Csv
+
+  private static class JsonRows extends ResultRenderer {
+    boolean[] numeric;
+    boolean[] bool;
+    final StringBuilder buffer = new StringBuilder();
+
+    JsonRows(Writer out) { super(out); }
+
+    protected void begin(ResultSetMetaData rsmd)
+        throws SQLException, IOException {
+      this.numeric = new boolean[columns().length];
+      this.bool = new boolean[columns().length];
+      for (int i = 0; i < columns().length; ++i) {
+        switch (rsmd.getColumnType(i + 1)) {
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+          this.numeric[i] = true;
+          break;
+        case Types.BIT:
+        case Types.BOOLEAN:
+          this.bool[i] = true;
+          break;
+        default:
+        }
+      }
+      this.out.write('[');
+    } // end begin
+
+    protected void row(ResultSet rs) throws SQLException, IOException {
+      // one row is built in memory, then written and forgotten
+      this.buffer.setLength(0);
+      if (rowsSoFar() > 0)
+        this.buffer.append(',');
+      this.buffer.append("\n{");
+      String[] header = columns();
+      for (int i = 0; i < header.length; ++i) {
+        if (i > 0)
+          this.buffer.append(',');
+        Json.write(header[i], this.buffer);
+        this.buffer.append(':');
+        String v = value(rs, i + 1);
+        if (v == null)
+          this.buffer.append("null");
+        else if (this.numeric[i] && !v.equals("NaN") && !v.contains("Inf"))
+          this.buffer.append(v);
+        else if (this.bool[i])
+          this.buffer.append(rs.getBoolean(i + 1));
+        else
+          Json.write(v, this.buffer);
+      }
+      this.buffer.append('}');
+      this.out.append(this.buffer);
+    } // end row
+
+    protected void end() throws IOException {
+      if (columns() == null)
+        this.out.write('[');
+      this.out.write("\n]\n");
+    }
+  } // end JsonRows
+} // end ResultRenderer
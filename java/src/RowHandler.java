@@ -0,0 +1,19 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a query streamed by
+ * {@link Amazon#executeQueryAndStream}. The handler is called once per row
+ * with the result set positioned on that row; it must not advance or close
+ * the result set.
+ */
+public interface RowHandler {
+
+  /**
+   * Handles the current row of {@code rs}.
+   *
+   * @param rs the result set positioned on the row
+   * @throws java.sql.SQLException when a column cannot be read
+   */
+  void handle(ResultSet rs) throws SQLException;
+} // end RowHandler
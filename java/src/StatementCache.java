@@ -0,0 +1,150 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * LRU cache of prepared statements for a single connection, keyed by SQL
+ * text. Reusing the same PreparedStatement saves building it, and its
+ * parsed placeholders, on every call.
+ *
+ * Queries and DML are also prepared on the server, through the driver's
+ * PGStatement.setUseServerPrepare: the first execution sends PREPARE and
+ * later ones only EXECUTE, so the server reuses the parse and the plan.
+ * The pg73 driver declares the parameter types from the values bound on
+ * that first execution, with nulls and Strings declared as text. A text
+ * parameter compared with one of the char(n) columns of this schema keeps
+ * the planner off their indexes, so statements bound with a null or a
+ * String are cached separately and left to the client, as are commands
+ * the server cannot PREPARE, such as DECLARE, FETCH, LOCK or DDL.
+ *
+ * A cache belongs to exactly one connection and is not thread safe; callers
+ * must not share it between threads without holding the connection.
+ */
+public class StatementCache {
+
+  private static final Pattern FIRST_WORD = Pattern.compile("\\s*(\\w+)");
+  private static final Set<String> SERVER_PREPARED = new HashSet<String>(
+      Arrays.asList("SELECT", "INSERT", "UPDATE", "DELETE", "WITH", "VALUES"));
+  // never part of SQL text, so it cannot clash with a real statement
+  private static final String CLIENT_ONLY = "\0";
+
+  private final Connection connection;
+  private final LinkedHashMap<String, PreparedStatement> statements;
+
+  /**
+   * Creates an empty cache for the given connection.
+   *
+   * @param connection the connection statements are prepared on
+   * @param capacity the maximum number of statements kept open
+   */
+  public StatementCache(Connection connection, final int capacity) {
+    this.connection = connection;
+    // access order makes the eldest entry the least recently used one
+    this.statements =
+        new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(
+              Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= capacity)
+              return false;
+            closeQuietly(eldest.getValue());
+            return true;
+          }
+        };
+  } // end StatementCache
+
+  /**
+   * Returns the cached statement for {@code sql}, preparing it on first use.
+   * The statement stays owned by the cache and must not be closed by the
+   * caller.
+   *
+   * @param sql the SQL text with {@code ?} placeholders
+   * @return the prepared statement
+   * @throws java.sql.SQLException when the statement cannot be prepared
+   */
+  public PreparedStatement prepare(String sql) throws SQLException {
+    return prepare(sql, true);
+  } // end prepare
+
+  /**
+   * Returns the cached statement for {@code sql}, preparing it on first use.
+   * With {@code serverPrepare} false the statement is never prepared on the
+   * server; use that when a parameter is bound to null or to a String.
+   *
+   * @param sql the SQL text with {@code ?} placeholders
+   * @param serverPrepare whether the server may keep the statement's plan
+   * @return the prepared statement
+   * @throws java.sql.SQLException when the statement cannot be prepared
+   */
+  public PreparedStatement prepare(String sql, boolean serverPrepare)
+      throws SQLException {
+    boolean server = serverPrepare && preparable(sql);
+    // the client-side copy of a preparable statement has a key of its own
+    String key = server || !preparable(sql) ? sql : CLIENT_ONLY + sql;
+    PreparedStatement stmt = this.statements.get(key);
+    if (stmt == null) {
+      stmt = this.connection.prepareStatement(sql);
+      if (server)
+        useServerPrepare(stmt);
+      this.statements.put(key, stmt);
+    }
+    return stmt;
+  } // end prepare
+
+  // whether the server can PREPARE the statement
+  static boolean preparable(String sql) {
+    Matcher m = FIRST_WORD.matcher(sql);
+    return m.lookingAt() && SERVER_PREPARED.contains(m.group(1).toUpperCase());
+  } // end preparable
+
+  // calls PGStatement.setUseServerPrepare(true) by reflection, as the
+  // driver is only on the classpath at run time; statements of other
+  // drivers stay on the client
+  private static void useServerPrepare(PreparedStatement stmt) {
+    try {
+      Class<?> pg = Class.forName("org.postgresql.PGStatement", false,
+                                  stmt.getClass().getClassLoader());
+      if (!pg.isInstance(stmt))
+        return;
+      Method m = pg.getMethod("setUseServerPrepare", boolean.class);
+      m.invoke(stmt, true);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // left to the client.
+    }
+  } // end useServerPrepare
+
+  /**
+   * Returns the connection this cache prepares statements on.
+   */
+  public Connection connection() { return this.connection; }
+
+  /**
+   * Returns the number of statements currently cached.
+   */
+  public int size() { return this.statements.size(); }
+
+  /**
+   * Closes and forgets every cached statement.
+   */
+  public void clear() {
+    for (PreparedStatement stmt : this.statements.values())
+      closeQuietly(stmt);
+    this.statements.clear();
+  } // end clear
+
+  private static void closeQuietly(PreparedStatement stmt) {
+    try {
+      stmt.close();
+    } catch (SQLException e) {
+      // ignored.
+    }
+  }
+} // end StatementCache
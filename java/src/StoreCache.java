@@ -0,0 +1,151 @@
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-through cache of Store rows keyed by storeID. It answers the store
+ * existence and ownership checks made before most operations, so they do
+ * not cost a round trip each time.
+ *
+ * The cache holds at most {@code capacity} stores, evicting the least
+ * recently used one. Stores that do not exist are cached too, so repeated
+ * lookups of a bad ID stay local. Every lookup first lets the StoreIndex
+ * re-check its fingerprint of the Store table, which clears this cache
+ * when any Store row has changed, so a new store or a change of manager is
+ * seen within the index's refresh interval. Entries also expire after
+ * {@code ttlMillis}. Code that changes the Store table should call
+ * {@link #invalidate} or {@link #invalidateAll}.
+ */
+public class StoreCache {
+
+  /**
+   * The cached columns of a Store row.
+   */
+  public static class Store {
+    public final int storeID;
+    public final int managerID;
+    public final double latitude;
+    public final double longitude;
+    public final String dateEstablished;
+
+    Store(int storeID, int managerID, double latitude, double longitude,
+          String dateEstablished) {
+      this.storeID = storeID;
+      this.managerID = managerID;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.dateEstablished = dateEstablished;
+    }
+  } // end Store
+
+  private static class Entry {
+    final Store store; // null when the store does not exist
+    final long loadedAt;
+
+    Entry(Store store, long loadedAt) {
+      this.store = store;
+      this.loadedAt = loadedAt;
+    }
+  } // end Entry
+
+  private static final String LOAD_QUERY =
+      "SELECT storeID, managerID, latitude, longitude, dateEstablished FROM Store WHERE storeID = ?";
+
+  private final Amazon esql;
+  private final long ttlMillis;
+  private final LinkedHashMap<Integer, Entry> entries;
+  // bumped by invalidateAll, so a row read before it is not cached after it
+  private long generation = 0;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param esql the database stores are read from on a miss
+   * @param capacity the maximum number of stores kept
+   * @param ttlMillis how long an entry is trusted before it is re-read
+   */
+  public StoreCache(Amazon esql, final int capacity, long ttlMillis) {
+    this.esql = esql;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+        return size() > capacity;
+      }
+    };
+  } // end StoreCache
+
+  /**
+   * Returns the store with the given ID, reading it from the database on a
+   * miss.
+   *
+   * @param storeID the store to look up
+   * @return the store, or null if there is no such store
+   * @throws java.sql.SQLException when the store cannot be read
+   */
+  public Store get(int storeID) throws SQLException {
+    // clears this cache when the Store table has changed
+    esql.storeIndex().checkForChanges();
+    long now = System.currentTimeMillis();
+    long readGeneration;
+    synchronized (this) {
+      Entry e = this.entries.get(storeID);
+      if (e != null && now - e.loadedAt < this.ttlMillis)
+        return e.store;
+      readGeneration = this.generation;
+    }
+
+    // read outside the lock so a slow query does not block other lookups
+    List<List<String>> rows = esql.executeQueryAndReturnResult(LOAD_QUERY,
+                                                               storeID);
+    Store store = null;
+    if (!rows.isEmpty()) {
+      List<String> row = rows.get(0);
+      store = new Store(Integer.parseInt(row.get(0)),
+                        Integer.parseInt(row.get(1)),
+                        Double.parseDouble(row.get(2)),
+                        Double.parseDouble(row.get(3)), row.get(4));
+    }
+    synchronized (this) {
+      if (readGeneration == this.generation)
+        this.entries.put(storeID, new Entry(store, now));
+    }
+    return store;
+  } // end get
+
+  /**
+   * Returns true if the store exists.
+   */
+  public boolean exists(int storeID) throws SQLException {
+    return get(storeID) != null;
+  }
+
+  /**
+   * Returns true if the store exists and is managed by {@code userID}.
+   */
+  public boolean isManagedBy(int storeID, int userID) throws SQLException {
+    Store store = get(storeID);
+    return store != null && store.managerID == userID;
+  } // end isManagedBy
+
+  /**
+   * Forgets one store so the next lookup reads it again.
+   */
+  public synchronized void invalidate(int storeID) {
+    this.entries.remove(storeID);
+  }
+
+  /**
+   * Forgets every cached store.
+   */
+  public synchronized void invalidateAll() {
+    this.entries.clear();
+    ++this.generation;
+  } // end invalidateAll
+
+  /**
+   * Returns the number of cached entries, including missing stores.
+   */
+  public synchronized int size() { return this.entries.size(); }
+} // end StoreCache
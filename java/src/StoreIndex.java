@@ -0,0 +1,271 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-process spatial index over the Store table. Stores are bucketed into a
+ * uniform grid of square cells keyed by (latitude, longitude), so radius and
+ * nearest-neighbour lookups only look at the cells around the query point
+ * instead of every Store row. Cells well below the search radius keep that
+ * neighbourhood close to the circle itself; cells outside the circle are
+ * skipped.
+ *
+ * The index is loaded lazily and reloaded when the Store table changes. A
+ * change is detected by comparing a one-row fingerprint of the table, which
+ * is checked at most once every {@code refreshMillis}. A change also clears
+ * the StoreCache, which runs the same check on its lookups.
+ */
+public class StoreIndex {
+
+  /**
+   * A store location held by the index.
+   */
+  public static class Entry {
+    public final int storeID;
+    public final double latitude;
+    public final double longitude;
+
+    public Entry(int storeID, double latitude, double longitude) {
+      this.storeID = storeID;
+      this.latitude = latitude;
+      this.longitude = longitude;
+    }
+  } // end Entry
+
+  /**
+   * A store together with its distance from a query point.
+   */
+  public static class Hit {
+    public final Entry store;
+    public final double distance;
+
+    Hit(Entry store, double distance) {
+      this.store = store;
+      this.distance = distance;
+    }
+  } // end Hit
+
+  private static final Comparator<Hit> BY_DISTANCE =
+      Comparator.comparingDouble((Hit h) -> h.distance)
+          .thenComparingInt(h -> h.store.storeID);
+
+  private static final String LOAD_QUERY =
+      "SELECT storeID, latitude, longitude FROM Store";
+  // a digest of every column of every row, so a new store, a moved one and
+  // a change of manager all change it
+  private static final String FINGERPRINT_QUERY =
+      "SELECT COUNT(*), md5(string_agg(CAST(s AS text), ',' ORDER BY s.storeID)) FROM Store s";
+
+  private final Amazon esql;
+  private final double cellSize;
+  private final long refreshMillis;
+
+  // the current grid, replaced wholesale on reload so readers never lock
+  private volatile Grid grid = null;
+  private volatile String fingerprint = null;
+  private volatile long checkedAt = 0;
+
+  /**
+   * Creates an index that is filled from the Store table on first use.
+   *
+   * @param esql the database the stores are read from
+   * @param cellSize the side of a grid cell, in the same units as the
+   *     coordinates
+   * @param refreshMillis how often the Store fingerprint is re-checked
+   */
+  public StoreIndex(Amazon esql, double cellSize, long refreshMillis) {
+    this.esql = esql;
+    this.cellSize = cellSize;
+    this.refreshMillis = refreshMillis;
+  } // end StoreIndex
+
+  /**
+   * Returns every store within {@code radius} of the given point, nearest
+   * first.
+   */
+  public List<Hit> withinRadius(double lat, double lon, double radius)
+      throws SQLException {
+    Grid g = current();
+    List<Hit> hits = new ArrayList<Hit>();
+    int reach = (int)Math.ceil(radius / cellSize);
+    int row = cell(lat);
+    int col = cell(lon);
+    for (int r = row - reach; r <= row + reach; ++r) {
+      double dr = gap(lat, r);
+      for (int c = col - reach; c <= col + reach; ++c) {
+        // the corners of the block lie wholly outside the circle
+        double dc = gap(lon, c);
+        if (dr * dr + dc * dc > radius * radius)
+          continue;
+        List<Entry> bucket = g.cells.get(key(r, c));
+        if (bucket == null)
+          continue;
+        for (Entry e : bucket) {
+          double d =
+              esql.calculateDistance(lat, lon, e.latitude, e.longitude);
+          if (d <= radius)
+            hits.add(new Hit(e, d));
+        }
+      }
+    }
+    Collections.sort(hits, BY_DISTANCE);
+    return hits;
+  } // end withinRadius
+
+  /**
+   * Returns the {@code k} stores closest to the given point, nearest first.
+   * Cells are visited in rings of growing size around the query point, and
+   * the search stops once no unvisited cell can hold a closer store.
+   */
+  public List<Hit> nearest(double lat, double lon, int k)
+      throws SQLException {
+    Grid g = current();
+    List<Hit> hits = new ArrayList<Hit>();
+    if (k <= 0 || g.size == 0)
+      return hits;
+    int row = cell(lat);
+    int col = cell(lon);
+    for (int ring = 0; ring <= g.maxRing(row, col); ++ring) {
+      for (int r = row - ring; r <= row + ring; ++r) {
+        for (int c = col - ring; c <= col + ring; ++c) {
+          // only the border of the ring; the inside was visited already
+          if (Math.abs(r - row) != ring && Math.abs(c - col) != ring)
+            continue;
+          List<Entry> bucket = g.cells.get(key(r, c));
+          if (bucket == null)
+            continue;
+          for (Entry e : bucket)
+            hits.add(new Hit(
+                e, esql.calculateDistance(lat, lon, e.latitude, e.longitude)));
+        }
+      }
+      // anything outside this ring is at least ring * cellSize away
+      if (hits.size() >= k) {
+        Collections.sort(hits, BY_DISTANCE);
+        if (hits.get(k - 1).distance <= ring * cellSize)
+          break;
+      }
+    }
+    Collections.sort(hits, BY_DISTANCE);
+    return hits.size() > k ? new ArrayList<Hit>(hits.subList(0, k)) : hits;
+  } // end nearest
+
+  /**
+   * Fills the grid from the given stores instead of the Store table and
+   * stops re-checking the table. Meant for benchmarks and tools that work
+   * on a fixed set of locations.
+   */
+  public synchronized void loadFixed(List<Entry> stores) {
+    Grid g = new Grid();
+    for (Entry e : stores)
+      g.add(cell(e.latitude), cell(e.longitude), e);
+    this.grid = g;
+    this.fingerprint = "fixed";
+    this.checkedAt = Long.MAX_VALUE / 2;
+  } // end loadFixed
+
+  /**
+   * Drops the loaded grid so the next lookup reloads it from the database.
+   */
+  public void invalidate() {
+    this.grid = null;
+    this.fingerprint = null;
+    this.checkedAt = 0;
+  } // end invalidate
+
+  /**
+   * Re-reads the Store fingerprint when it was last read more than
+   * refreshMillis ago. If the table has changed since, the grid is dropped,
+   * to be reloaded on the next lookup, and the StoreCache is cleared.
+   *
+   * @throws java.sql.SQLException when the fingerprint cannot be read
+   */
+  public void checkForChanges() throws SQLException {
+    long now = System.currentTimeMillis();
+    if (now - this.checkedAt < this.refreshMillis)
+      return;
+    synchronized (this) {
+      if (now - this.checkedAt < this.refreshMillis)
+        return;
+      String fp = String.join(
+          ",", esql.executeQueryAndReturnResult(FINGERPRINT_QUERY).get(0));
+      if (!fp.equals(this.fingerprint)) {
+        // the Store table changed, so cached rows may be stale too
+        if (this.fingerprint != null)
+          esql.storeCache().invalidateAll();
+        this.grid = null;
+        this.fingerprint = fp;
+      }
+      this.checkedAt = now;
+    }
+  } // end checkForChanges
+
+  /**
+   * Returns the grid, loading it on first use and again after
+   * checkForChanges() has seen the Store table change.
+   */
+  private Grid current() throws SQLException {
+    checkForChanges();
+    Grid g = this.grid;
+    if (g != null)
+      return g;
+    synchronized (this) {
+      if (this.grid == null)
+        this.grid = load();
+      return this.grid;
+    }
+  } // end current
+
+  private Grid load() throws SQLException {
+    final Grid g = new Grid();
+    // streamed, so only the grid itself is held in memory
+    esql.executeQueryAndStream(LOAD_QUERY, rs -> {
+      Entry e = new Entry(rs.getInt(1), rs.getDouble(2), rs.getDouble(3));
+      g.add(cell(e.latitude), cell(e.longitude), e);
+    });
+    return g;
+  } // end load
+
+  private int cell(double coordinate) {
+    return (int)Math.floor(coordinate / cellSize);
+  }
+
+  // distance from a coordinate to the nearest edge of cell i, 0 inside it
+  private double gap(double coordinate, int i) {
+    return Math.max(0.0, Math.max(i * cellSize - coordinate,
+                                  coordinate - (i + 1) * cellSize));
+  }
+
+  private static long key(int row, int col) {
+    return ((long)row << 32) | (col & 0xffffffffL);
+  }
+
+  /**
+   * Immutable-after-load grid of cells and the bounds of the occupied area.
+   */
+  private static class Grid {
+    final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+    int size = 0;
+    int minRow = Integer.MAX_VALUE, maxRow = Integer.MIN_VALUE;
+    int minCol = Integer.MAX_VALUE, maxCol = Integer.MIN_VALUE;
+
+    void add(int row, int col, Entry e) {
+      cells.computeIfAbsent(key(row, col), k -> new ArrayList<Entry>()).add(e);
+      ++size;
+      minRow = Math.min(minRow, row);
+      maxRow = Math.max(maxRow, row);
+      minCol = Math.min(minCol, col);
+      maxCol = Math.max(maxCol, col);
+    }
+
+    // the ring around (row, col) that covers every occupied cell
+    int maxRing(int row, int col) {
+      return Math.max(Math.max(Math.abs(row - minRow), Math.abs(row - maxRow)),
+                      Math.max(Math.abs(col - minCol), Math.abs(col - maxCol)));
+    }
+  } // end Grid
+} // end StoreIndex
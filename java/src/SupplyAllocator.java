@@ -0,0 +1,441 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Chooses the warehouses that fill product supply requests.
+ *
+ * A batch of requests is allocated together. Every warehouse can ship as
+ * many units per batch as its area; a request is served from the nearest
+ * warehouse (by the distance of Amazon.calculateDistance between the store
+ * and the warehouse) that still has room, and split over the next nearest
+ * ones when that warehouse cannot ship all of it.
+ *
+ * When warehouses run short, the order in which requests are served
+ * matters. Requests are served by regret: the extra distance the request
+ * would travel if its nearest open warehouse were full. A store next to one
+ * warehouse and far from all others is thus served before a store with
+ * several warehouses close by. Regrets are updated lazily as warehouses
+ * fill up, so a batch of R requests over W warehouses costs
+ * O(R W log W + R log R) time.
+ */
+public class SupplyAllocator {
+
+  /**
+   * Units of a product a manager asks for.
+   */
+  public static class Request {
+    public final int managerID;
+    public final int storeID;
+    public final String productName;
+    public final int units;
+
+    public Request(int managerID, int storeID, String productName,
+                   int units) {
+      this.managerID = managerID;
+      this.storeID = storeID;
+      this.productName = productName;
+      this.units = units;
+    }
+  } // end Request
+
+  /**
+   * A warehouse and the units it can still ship in this batch.
+   */
+  public static class Warehouse {
+    public final int warehouseID;
+    public final double latitude;
+    public final double longitude;
+    int capacity;
+
+    public Warehouse(int warehouseID, int capacity, double latitude,
+                     double longitude) {
+      this.warehouseID = warehouseID;
+      this.capacity = capacity;
+      this.latitude = latitude;
+      this.longitude = longitude;
+    }
+
+    public int capacity() { return this.capacity; }
+  } // end Warehouse
+
+  /**
+   * Units of a request shipped from one warehouse.
+   */
+  public static class Allocation {
+    public final Request request;
+    public final int warehouseID;
+    public final int units;
+    public final double distance;
+
+    Allocation(Request request, int warehouseID, int units, double distance) {
+      this.request = request;
+      this.warehouseID = warehouseID;
+      this.units = units;
+      this.distance = distance;
+    }
+  } // end Allocation
+
+  /**
+   * The outcome of allocating a batch.
+   */
+  public static class Plan {
+    public final List<Allocation> allocations = new ArrayList<Allocation>();
+    // requests, or the part of them, no warehouse could take
+    public final List<Request> shortfalls = new ArrayList<Request>();
+    // requests for an unknown store, or for a product the store does not
+    // sell (found by place())
+    public final List<Request> rejected = new ArrayList<Request>();
+
+    public int allocatedUnits() {
+      int n = 0;
+      for (Allocation a : this.allocations)
+        n += a.units;
+      return n;
+    }
+  } // end Plan
+
+  // the allocation state of one request
+  private static class Pending {
+    final Request request;
+    final int[] byDistance; // warehouse indexes, nearest first
+    final double[] distance; // by warehouse index
+    int next = 0; // first entry of byDistance that may have capacity
+    double regret;
+
+    Pending(Request request, int[] byDistance, double[] distance) {
+      this.request = request;
+      this.byDistance = byDistance;
+      this.distance = distance;
+    }
+  } // end Pending
+
+  private static final String LOAD_WAREHOUSES =
+      "SELECT WarehouseID, area, latitude, longitude FROM Warehouse";
+  // raises the stock of many products in one statement and names the
+  // products found; the VALUES rows are (units, storeID, productName)
+  private static final String ADD_STOCK =
+      "UPDATE Product p SET numberOfUnits = p.numberOfUnits + v.units FROM (VALUES %s) AS v(units, storeID, productName) WHERE p.storeID = v.storeID AND p.productName = v.productName RETURNING p.storeID, p.productName";
+  private static final String ADD_STOCK_ROW =
+      "(CAST(? AS integer), CAST(? AS integer), CAST(? AS char(30)))";
+  private static final String INSERT_REQUESTS =
+      "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES %s";
+  private static final String INSERT_REQUESTS_ROW = "(?, ?, ?, ?, ?)";
+  // rows per statement; the pg73 driver sends each statement of a JDBC
+  // batch in a round trip of its own, so rows are sent as multi-row
+  // statements instead
+  private static final int ROWS_PER_STATEMENT = 1000;
+
+  private final Amazon esql;
+
+  public SupplyAllocator(Amazon esql) { this.esql = esql; }
+
+  /**
+   * Reads every warehouse, with its area as the capacity of the batch.
+   *
+   * @throws java.sql.SQLException when the warehouses cannot be read
+   */
+  public List<Warehouse> loadWarehouses() throws SQLException {
+    final List<Warehouse> warehouses = new ArrayList<Warehouse>();
+    this.esql.executeQueryAndStream(LOAD_WAREHOUSES, new RowHandler() {
+      public void handle(ResultSet rs) throws SQLException {
+        warehouses.add(new Warehouse(rs.getInt(1), rs.getInt(2),
+                                     rs.getDouble(3), rs.getDouble(4)));
+      }
+    });
+    return warehouses;
+  } // end loadWarehouses
+
+  /**
+   * Allocates a batch of requests over the warehouses. The capacities of
+   * {@code warehouses} are reduced by the units allocated from them.
+   *
+   * @param requests the requests of the batch
+   * @param warehouses the warehouses to ship from
+   * @return the allocations, and the units that could not be placed
+   * @throws java.sql.SQLException when a store cannot be looked up
+   */
+  public Plan allocate(List<Request> requests, List<Warehouse> warehouses)
+      throws SQLException {
+    Plan plan = new Plan();
+    int w = warehouses.size();
+    PriorityQueue<Pending> queue =
+        new PriorityQueue<Pending>(Math.max(1, requests.size()),
+                                   new Comparator<Pending>() {
+                                     public int compare(Pending a, Pending b) {
+                                       return Double.compare(b.regret,
+                                                             a.regret);
+                                     }
+                                   });
+    for (Request r : requests) {
+      StoreCache.Store store = this.esql.storeCache().get(r.storeID);
+      if (store == null) {
+        plan.rejected.add(r);
+        continue;
+      }
+      if (w == 0) {
+        plan.shortfalls.add(r);
+        continue;
+      }
+      final double[] distance = new double[w];
+      Integer[] order = new Integer[w];
+      for (int i = 0; i < w; ++i) {
+        Warehouse h = warehouses.get(i);
+        distance[i] = this.esql.calculateDistance(
+            store.latitude, store.longitude, h.latitude, h.longitude);
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Double.compare(distance[a], distance[b]);
+        }
+      });
+      int[] byDistance = new int[w];
+      for (int i = 0; i < w; ++i)
+        byDistance[i] = order[i];
+      Pending p = new Pending(r, byDistance, distance);
+      p.regret = regret(p, warehouses);
+      queue.add(p);
+    }
+
+    while (!queue.isEmpty()) {
+      Pending p = queue.poll();
+      // warehouses may have filled up since the regret was computed
+      double current = regret(p, warehouses);
+      if (current < p.regret && !queue.isEmpty() &&
+          current < queue.peek().regret) {
+        p.regret = current;
+        queue.add(p);
+        continue;
+      }
+      serve(p, warehouses, plan);
+    }
+    return plan;
+  } // end allocate
+
+  /**
+   * Returns a plan that ships every request in full from one warehouse,
+   * for when the manager has picked the warehouse. The capacity of the
+   * warehouse is not checked.
+   *
+   * @param requests the requests of the batch
+   * @param warehouseID the warehouse to ship from
+   */
+  public static Plan fromWarehouse(List<Request> requests, int warehouseID) {
+    Plan plan = new Plan();
+    for (Request r : requests)
+      plan.allocations.add(new Allocation(r, warehouseID, r.units, 0.0));
+    return plan;
+  } // end fromWarehouse
+
+  // the extra distance of the second open warehouse over the first
+  private static double regret(Pending p, List<Warehouse> warehouses) {
+    while (p.next < p.byDistance.length &&
+           warehouses.get(p.byDistance[p.next]).capacity <= 0)
+      ++p.next;
+    if (p.next >= p.byDistance.length)
+      return 0.0;
+    double first = p.distance[p.byDistance[p.next]];
+    for (int i = p.next + 1; i < p.byDistance.length; ++i) {
+      if (warehouses.get(p.byDistance[i]).capacity > 0)
+        return p.distance[p.byDistance[i]] - first;
+    }
+    // only one warehouse left: losing it means the request goes unserved
+    return Double.MAX_VALUE;
+  } // end regret
+
+  // takes the request from the nearest warehouses with room, nearest first
+  private static void serve(Pending p, List<Warehouse> warehouses,
+                            Plan plan) {
+    Request r = p.request;
+    int left = r.units;
+    for (int i = p.next; i < p.byDistance.length && left > 0; ++i) {
+      Warehouse h = warehouses.get(p.byDistance[i]);
+      if (h.capacity <= 0)
+        continue;
+      int units = Math.min(left, h.capacity);
+      h.capacity -= units;
+      left -= units;
+      plan.allocations.add(new Allocation(r, h.warehouseID, units,
+                                          p.distance[p.byDistance[i]]));
+    }
+    if (left > 0)
+      plan.shortfalls.add(
+          new Request(r.managerID, r.storeID, r.productName, left));
+  } // end serve
+
+  /**
+   * Writes a plan in one transaction: the stock of every product is raised
+   * by the units allocated to it, and one ProductSupplyRequests row is
+   * recorded per allocation. Requests for a product the store does not sell
+   * are left out and listed in {@code plan.rejected}. Both steps are
+   * multi-row statements of up to ROWS_PER_STATEMENT rows, so a batch of
+   * thousands of requests costs a few round trips.
+   *
+   * @throws java.sql.SQLException when the plan cannot be written; nothing
+   *     is written then
+   */
+  public void place(Plan plan) throws SQLException {
+    // units per product; a product may be asked for more than once
+    Map<String, Request> products = new LinkedHashMap<String, Request>();
+    Map<String, Integer> units = new HashMap<String, Integer>();
+    for (Allocation a : plan.allocations) {
+      String key = key(a.request.storeID, a.request.productName);
+      products.putIfAbsent(key, a.request);
+      units.merge(key, a.units, Integer::sum);
+    }
+
+    PooledConnection conn = this.esql.pool().borrow();
+    try {
+      Connection c = conn.connection();
+      c.setAutoCommit(false);
+      List<String> keys = new ArrayList<String>(products.keySet());
+      Set<String> found = new HashSet<String>();
+      for (int from = 0; from < keys.size(); from += ROWS_PER_STATEMENT) {
+        List<String> chunk = keys.subList(
+            from, Math.min(keys.size(), from + ROWS_PER_STATEMENT));
+        PreparedStatement addStock = c.prepareStatement(
+            String.format(ADD_STOCK, rows(ADD_STOCK_ROW, chunk.size())));
+        try {
+          int p = 0;
+          for (String key : chunk) {
+            Request r = products.get(key);
+            addStock.setInt(++p, units.get(key));
+            addStock.setInt(++p, r.storeID);
+            addStock.setString(++p, r.productName);
+          }
+          ResultSet rs = addStock.executeQuery();
+          while (rs.next())
+            found.add(key(rs.getInt(1), rs.getString(2)));
+          rs.close();
+        } finally {
+          addStock.close();
+        }
+      }
+
+      Set<Request> missing = new LinkedHashSet<Request>();
+      List<Allocation> recorded = new ArrayList<Allocation>();
+      for (Allocation a : plan.allocations) {
+        if (found.contains(key(a.request.storeID, a.request.productName)))
+          recorded.add(a);
+        else
+          missing.add(a.request);
+      }
+      for (int from = 0; from < recorded.size();
+           from += ROWS_PER_STATEMENT) {
+        List<Allocation> chunk = recorded.subList(
+            from, Math.min(recorded.size(), from + ROWS_PER_STATEMENT));
+        PreparedStatement insert = c.prepareStatement(String.format(
+            INSERT_REQUESTS, rows(INSERT_REQUESTS_ROW, chunk.size())));
+        try {
+          int p = 0;
+          for (Allocation a : chunk) {
+            insert.setInt(++p, a.request.managerID);
+            insert.setInt(++p, a.warehouseID);
+            insert.setInt(++p, a.request.storeID);
+            insert.setString(++p, a.request.productName);
+            insert.setInt(++p, a.units);
+          }
+          insert.executeUpdate();
+        } finally {
+          insert.close();
+        }
+      }
+      c.commit();
+      plan.rejected.addAll(missing);
+      // the managers see their new stock in the listings right away
+      for (Allocation a : recorded)
+        this.esql.replicaRouter().wrote(a.request.managerID);
+    } catch (SQLException e) {
+      conn.failed(e);
+      throw e;
+    } finally {
+      // the pool rolls back anything left uncommitted
+      this.esql.pool().release(conn);
+    }
+  } // end place
+
+  // identifies a product; char(30) values come back padded with blanks
+  private static String key(int storeID, String productName) {
+    return storeID + "/" + productName.stripTrailing();
+  }
+
+  // {@code count} copies of a VALUES row, separated by commas
+  private static String rows(String row, int count) {
+    StringBuilder sql = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      if (i > 0)
+        sql.append(", ");
+      sql.append(row);
+    }
+    return sql.toString();
+  } // end rows
+
+  /**
+   * Allocates and places a batch of requests read from a CSV file with the
+   * columns managerID, storeID, productName, unitsRequested.
+   *
+   * @param args &lt;dbname&gt; &lt;port&gt; &lt;user&gt; &lt;requests.csv&gt;
+   */
+  public static void main(String[] args) {
+    if (args.length != 4) {
+      System.err.println("Usage: "
+                         + "java [-classpath <classpath>] " +
+                         SupplyAllocator.class.getName() +
+                         " <dbname> <port> <user> <requests.csv>");
+      return;
+    } // end if
+
+    Amazon esql = null;
+    try {
+      Class.forName("org.postgresql.Driver");
+      esql = new Amazon(args[0], args[1], args[2], "");
+      List<Request> requests = new ArrayList<Request>();
+      try (CsvReader csv =
+               new CsvReader(new BufferedReader(new FileReader(args[3])))) {
+        csv.next(); // header
+        String[] f;
+        while ((f = csv.next()) != null) {
+          if (f.length != 4)
+            throw new IOException(args[3] + " line " + csv.lineNumber() +
+                                  ": expected 4 fields");
+          requests.add(new Request(Integer.parseInt(f[0].trim()),
+                                   Integer.parseInt(f[1].trim()), f[2].trim(),
+                                   Integer.parseInt(f[3].trim())));
+        }
+      }
+
+      SupplyAllocator allocator = new SupplyAllocator(esql);
+      long start = System.nanoTime();
+      Plan plan = allocator.allocate(requests, allocator.loadWarehouses());
+      long allocated = System.nanoTime();
+      allocator.place(plan);
+      System.out.printf(
+          "%d requests: %d units in %d shipments, %d requests short, " +
+              "%d rejected; allocated in %.1f ms, written in %.1f ms\n",
+          requests.size(), plan.allocatedUnits(), plan.allocations.size(),
+          plan.shortfalls.size(), plan.rejected.size(),
+          (allocated - start) / 1e6, (System.nanoTime() - allocated) / 1e6);
+    } catch (Exception e) {
+      System.err.println(e.getMessage());
+    } finally {
+      if (esql != null)
+        esql.cleanup();
+    }
+  } // end main
+} // end SupplyAllocator
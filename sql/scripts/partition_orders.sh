@@ -0,0 +1,9 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+DB=$USER"_project_phase_3_DB"
+# converts the Orders table of an existing database to monthly partitions,
+# then recreates its indexes and triggers
+cs166_psql -p $PGPORT $DB < $DIR/../src/order_partitions.sql
+cs166_psql -p $PGPORT $DB < $DIR/../src/partition_orders.sql || exit 1
+cs166_psql -p $PGPORT $DB < $DIR/../src/create_indexes.sql
+cs166_psql -p $PGPORT $DB < $DIR/../src/triggers.sql
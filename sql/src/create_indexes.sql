@@ -0,0 +1,63 @@
+-- Indexes for the queries issued by java/src/Amazon.java. Primary keys
+-- already cover the lookups by userID, storeID, (storeID, productName) and
+-- the per-store product listing, so only the other access paths are here.
+-- Run java/scripts/plan_check.sh against a scaled dataset after changing
+-- this file or the queries.
+
+-- LogIn and CreateUser / updateUserInfo duplicate checks look users up by
+-- name.
+DROP INDEX IF EXISTS users_name_idx;
+CREATE INDEX users_name_idx ON Users (name);
+
+-- viewAllUsers filtered by type pages by userID within the type.
+DROP INDEX IF EXISTS users_type_userID_idx;
+CREATE INDEX users_type_userID_idx ON Users (type, userID);
+
+-- placeProductSupplyRequests and the manager totals of triggers.sql find
+-- the stores of a manager.
+DROP INDEX IF EXISTS store_managerID_idx;
+CREATE INDEX store_managerID_idx ON Store (managerID, storeID);
+
+-- findProduct / nearestStoresWithStock: the stores carrying a product with
+-- at least the wanted units, read from the index without touching the rows
+-- that lack the stock.
+DROP INDEX IF EXISTS product_productName_numberOfUnits_idx;
+CREATE INDEX product_productName_numberOfUnits_idx
+	ON Product (productName, numberOfUnits);
+
+-- The Orders indexes are created on every monthly partition, including the
+-- ones created later. The partitions do not overlap, so the planner reads
+-- them newest first, each through its own index, and a LIMIT stops in the
+-- newest partitions holding enough orders instead of touching the history.
+
+-- viewRecentOrders for a customer: WHERE customerID = ? ORDER BY orderTime
+-- DESC LIMIT 5 reads the newest five entries of the customer and stops.
+DROP INDEX IF EXISTS orders_customerID_orderTime_idx;
+CREATE INDEX orders_customerID_orderTime_idx
+	ON Orders (customerID, orderTime DESC);
+
+-- viewRecentOrders for a manager: the newest five orders overall.
+DROP INDEX IF EXISTS orders_orderTime_idx;
+CREATE INDEX orders_orderTime_idx ON Orders (orderTime DESC);
+
+-- Backs the foreign key from Orders to Product, so changing or deleting a
+-- product does not scan Orders. The popularity reports read the
+-- StoreProductSales and StoreCustomerSales aggregates instead of Orders.
+DROP INDEX IF EXISTS orders_storeID_productName_idx;
+CREATE INDEX orders_storeID_productName_idx
+	ON Orders (storeID, productName);
+
+-- viewPopularProducts / viewPopularCustomers: WHERE managerID = ?
+-- ORDER BY orderCount DESC LIMIT 5 reads the first five entries.
+DROP INDEX IF EXISTS managerProductSales_managerID_orderCount_idx;
+CREATE INDEX managerProductSales_managerID_orderCount_idx
+	ON ManagerProductSales (managerID, orderCount DESC);
+
+DROP INDEX IF EXISTS managerCustomerSales_managerID_orderCount_idx;
+CREATE INDEX managerCustomerSales_managerID_orderCount_idx
+	ON ManagerCustomerSales (managerID, orderCount DESC);
+
+-- viewRecentUpdates: WHERE managerID = ? ORDER BY updatedOn DESC LIMIT 5.
+DROP INDEX IF EXISTS productUpdates_managerID_updatedOn_idx;
+CREATE INDEX productUpdates_managerID_updatedOn_idx
+	ON ProductUpdates (managerID, updatedOn DESC);
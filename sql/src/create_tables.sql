@@ -5,6 +5,12 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS StoreProductSales CASCADE;
+DROP TABLE IF EXISTS StoreCustomerSales CASCADE;
+DROP TABLE IF EXISTS ManagerProductSales CASCADE;
+DROP TABLE IF EXISTS ManagerCustomerSales CASCADE;
+DROP TABLE IF EXISTS StoreSalesHourly CASCADE;
+DROP TABLE IF EXISTS StoreSalesDaily CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -41,6 +47,13 @@ CREATE TABLE Warehouse ( WarehouseID integer,
                          longitude decimal(9,6)  NOT NULL,
                          PRIMARY KEY(WarehouseID));
 
+-- Partitioned by month of orderTime; the partitions are created by
+-- create_order_partitions in order_partitions.sql. The primary key of a
+-- partitioned table has to include the partition key, so it is
+-- (orderNumber, orderTime); orderNumber alone still comes from the serial.
+-- There is no default partition, so an order outside every partition fails
+-- instead of landing in a catch-all that would stop the planner from
+-- reading the partitions newest first.
 CREATE TABLE Orders ( 
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
@@ -48,10 +61,10 @@ CREATE TABLE Orders (
                      productName char(30) NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
+                     PRIMARY KEY(orderNumber, orderTime),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
                      FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
-);
+) PARTITION BY RANGE (orderTime);
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
@@ -76,3 +89,57 @@ CREATE TABLE ProductUpdates (
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
+
+-- Number of orders per (store, product) and per (store, customer), kept up
+-- to date by the triggers in triggers.sql so the manager reports do not
+-- have to group the whole Orders table.
+CREATE TABLE StoreProductSales ( storeID integer NOT NULL,
+                                 productName char(30) NOT NULL,
+                                 orderCount integer NOT NULL,
+                                 PRIMARY KEY(storeID, productName)
+);
+
+CREATE TABLE StoreCustomerSales ( storeID integer NOT NULL,
+                                  customerID integer NOT NULL,
+                                  orderCount integer NOT NULL,
+                                  PRIMARY KEY(storeID, customerID)
+);
+
+-- The same counts summed over the stores of each manager, so the five most
+-- popular products or customers of a manager are the first five entries
+-- of an index instead of a grouping of every row of the manager's stores.
+CREATE TABLE ManagerProductSales ( managerID integer NOT NULL,
+                                   productName char(30) NOT NULL,
+                                   orderCount integer NOT NULL,
+                                   PRIMARY KEY(managerID, productName)
+);
+
+CREATE TABLE ManagerCustomerSales ( managerID integer NOT NULL,
+                                    customerID integer NOT NULL,
+                                    orderCount integer NOT NULL,
+                                    PRIMARY KEY(managerID, customerID)
+);
+
+-- Units sold, revenue and number of orders per (store, hour, product) and
+-- per (store, day, product), kept up to date by trg_update_sales_rollups so
+-- sales over a period are summed from a few rollup rows instead of grouping
+-- Orders. Revenue is priced at the product's pricePerUnit when the order
+-- was placed. The keys lead with the store and the time bucket, so a
+-- store's sales over a range are one index range scan.
+CREATE TABLE StoreSalesHourly ( storeID integer NOT NULL,
+                                hour timestamp NOT NULL,
+                                productName char(30) NOT NULL,
+                                unitsSold bigint NOT NULL,
+                                revenue numeric(14,2) NOT NULL,
+                                orderCount integer NOT NULL,
+                                PRIMARY KEY(storeID, hour, productName)
+);
+
+CREATE TABLE StoreSalesDaily ( storeID integer NOT NULL,
+                               day date NOT NULL,
+                               productName char(30) NOT NULL,
+                               unitsSold bigint NOT NULL,
+                               revenue numeric(14,2) NOT NULL,
+                               orderCount integer NOT NULL,
+                               PRIMARY KEY(storeID, day, productName)
+);
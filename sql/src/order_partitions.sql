@@ -0,0 +1,37 @@
+-- Monthly partitions of Orders. Run after create_tables.sql (and before
+-- partition_orders.sql when converting an existing database).
+
+-- Creates the monthly partitions of Orders covering p_from through p_to
+-- that do not exist yet, and returns how many were created. A partition
+-- holds one calendar month and is named orders_yYYYYmMM, so the names sort
+-- by time. Existing partitions are left alone, so the function is safe to
+-- call for any range, as often as wanted. NULL bounds create nothing.
+CREATE OR REPLACE FUNCTION create_order_partitions(p_from timestamp,
+                                                   p_to timestamp)
+RETURNS integer AS $$
+DECLARE
+	month timestamp := date_trunc('month', p_from);
+	partition_name text;
+	created integer := 0;
+BEGIN
+	WHILE month <= p_to LOOP
+		partition_name := 'orders_' || to_char(month, '"y"YYYY"m"MM');
+		IF to_regclass(partition_name) IS NULL THEN
+			EXECUTE format('CREATE TABLE %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)',
+			               partition_name, month, month + interval '1 month');
+			created := created + 1;
+		END IF;
+		month := month + interval '1 month';
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- the current month and the next three, so new orders have somewhere to
+-- go; OrderPartitions keeps creating months ahead from then on. Skipped
+-- while Orders is not partitioned yet, before partition_orders.sql has
+-- converted it; that script creates the same months itself.
+SELECT create_order_partitions(CAST(now() AS timestamp),
+                               CAST(now() AS timestamp) + interval '3 months')
+WHERE EXISTS (SELECT 1 FROM pg_partitioned_table
+              WHERE partrelid = CAST('orders' AS regclass));
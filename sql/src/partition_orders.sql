@@ -0,0 +1,56 @@
+-- Converts the Orders table of a database created before Orders was
+-- partitioned into the partitioned table of create_tables.sql, keeping
+-- every order and its orderNumber. Run order_partitions.sql first, and
+-- create_indexes.sql and triggers.sql afterwards to put the indexes and
+-- triggers back; sql/scripts/partition_orders.sh runs all four.
+--
+-- Everything happens in one transaction, so a failure leaves the old table
+-- as it was. New orders wait on the table lock until the copy commits.
+\set ON_ERROR_STOP on
+
+BEGIN;
+LOCK TABLE Orders IN ACCESS EXCLUSIVE MODE;
+
+-- the triggers are not wanted while the orders are copied, and the index
+-- names are needed for the new table
+DROP TRIGGER IF EXISTS trg_update_stock_after_order ON Orders;
+DROP TRIGGER IF EXISTS trg_update_sales_after_order ON Orders;
+DROP TRIGGER IF EXISTS trg_update_sales_rollups ON Orders;
+DROP INDEX IF EXISTS orders_customerID_orderTime_idx;
+DROP INDEX IF EXISTS orders_orderTime_idx;
+DROP INDEX IF EXISTS orders_storeID_productName_idx;
+
+ALTER TABLE Orders RENAME TO Orders_unpartitioned;
+ALTER INDEX orders_pkey RENAME TO orders_unpartitioned_pkey;
+
+CREATE TABLE Orders (
+					 orderNumber integer NOT NULL DEFAULT nextval('orders_ordernumber_seq'),
+					 customerID integer NOT NULL,
+                     storeID integer NOT NULL,
+                     productName char(30) NOT NULL,
+                     unitsOrdered integer NOT NULL,
+                     orderTime timestamp NOT NULL,
+                     PRIMARY KEY(orderNumber, orderTime),
+                     FOREIGN KEY(customerID) REFERENCES Users(userID),
+                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+) PARTITION BY RANGE (orderTime);
+
+-- the sequence now belongs to the new table and is dropped with it
+ALTER SEQUENCE orders_ordernumber_seq OWNED BY Orders.orderNumber;
+
+SELECT create_order_partitions(MIN(orderTime), MAX(orderTime))
+FROM Orders_unpartitioned;
+-- the current month and the next three, so orders can be placed as soon
+-- as the conversion commits
+SELECT create_order_partitions(CAST(now() AS timestamp),
+                               CAST(now() AS timestamp) + interval '3 months');
+
+INSERT INTO Orders(orderNumber, customerID, storeID, productName,
+                   unitsOrdered, orderTime)
+SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime
+FROM Orders_unpartitioned;
+
+DROP TABLE Orders_unpartitioned;
+COMMIT;
+
+ANALYZE Orders;
@@ -1,39 +1,289 @@
 CREATE OR REPLACE LANGUAGE plpgsql;
 
--- Updates Parts.numberOfUnits after a customer places a successful order
+-- Updates Parts.numberOfUnits after customers place successful orders.
+-- The trigger runs once per INSERT statement over the new rows, so a bulk
+-- load applies one aggregated update per (storeID, productName) instead of
+-- one per order. The decrement only happens while enough units remain, so
+-- orders can never drive the stock negative, whichever path inserted them.
 CREATE OR REPLACE FUNCTION update_stock_after_order() RETURNS TRIGGER AS $$
+DECLARE
+	updatedProducts integer;
+	orderedProducts integer;
 BEGIN
-	UPDATE Product
-	SET numberOfUnits = numberOfUnits - NEW.unitsOrdered
-	WHERE storeID = NEW.storeID AND productName = NEW.productName;
-	RETURN NEW;
+	UPDATE Product p
+	SET numberOfUnits = p.numberOfUnits - o.units
+	FROM (SELECT storeID, productName, SUM(unitsOrdered) AS units
+	      FROM new_orders
+	      GROUP BY storeID, productName) o
+	WHERE p.storeID = o.storeID AND p.productName = o.productName
+	  AND p.numberOfUnits >= o.units;
+	GET DIAGNOSTICS updatedProducts = ROW_COUNT;
+
+	SELECT COUNT(*) INTO orderedProducts
+	FROM (SELECT DISTINCT storeID, productName FROM new_orders) o;
+	IF updatedProducts < orderedProducts THEN
+		RAISE EXCEPTION 'Insufficient stock for % of % ordered products',
+			orderedProducts - updatedProducts, orderedProducts
+			USING ERRCODE = 'check_violation';
+	END IF;
+	RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
 
 DROP TRIGGER IF EXISTS trg_update_stock_after_order ON Orders;
 CREATE TRIGGER trg_update_stock_after_order
 AFTER INSERT ON Orders
-FOR EACH ROW
+REFERENCING NEW TABLE AS new_orders
+FOR EACH STATEMENT
 	EXECUTE PROCEDURE update_stock_after_order();
 
 
--- Inserts the update to a product to the ProductUpdate table
-CREATE OR REPLACE FUNCTION log_product_update() RETURNS TRIGGER AS $$
+-- Adds the new orders to the per-(store, product) and per-(store, customer)
+-- order counts, and to the per-manager totals read by viewPopularProducts
+-- and viewPopularCustomers.
+CREATE OR REPLACE FUNCTION update_sales_after_order() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO StoreProductSales AS s (storeID, productName, orderCount)
+	SELECT storeID, productName, COUNT(*)
+	FROM new_orders
+	GROUP BY storeID, productName
+	ON CONFLICT (storeID, productName)
+	DO UPDATE SET orderCount = s.orderCount + EXCLUDED.orderCount;
+
+	INSERT INTO StoreCustomerSales AS s (storeID, customerID, orderCount)
+	SELECT storeID, customerID, COUNT(*)
+	FROM new_orders
+	GROUP BY storeID, customerID
+	ON CONFLICT (storeID, customerID)
+	DO UPDATE SET orderCount = s.orderCount + EXCLUDED.orderCount;
+
+	INSERT INTO ManagerProductSales AS m (managerID, productName, orderCount)
+	SELECT st.managerID, o.productName, COUNT(*)
+	FROM new_orders o JOIN Store st ON st.storeID = o.storeID
+	GROUP BY st.managerID, o.productName
+	ON CONFLICT (managerID, productName)
+	DO UPDATE SET orderCount = m.orderCount + EXCLUDED.orderCount;
+
+	INSERT INTO ManagerCustomerSales AS m (managerID, customerID, orderCount)
+	SELECT st.managerID, o.customerID, COUNT(*)
+	FROM new_orders o JOIN Store st ON st.storeID = o.storeID
+	GROUP BY st.managerID, o.customerID
+	ON CONFLICT (managerID, customerID)
+	DO UPDATE SET orderCount = m.orderCount + EXCLUDED.orderCount;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS trg_update_sales_after_order ON Orders;
+CREATE TRIGGER trg_update_sales_after_order
+AFTER INSERT ON Orders
+REFERENCING NEW TABLE AS new_orders
+FOR EACH STATEMENT
+	EXECUTE PROCEDURE update_sales_after_order();
+
+-- Recomputes the per-manager totals of one manager from the per-store
+-- counts of the stores the manager runs now.
+CREATE OR REPLACE FUNCTION refresh_manager_sales(p_managerID integer)
+RETURNS void AS $$
+BEGIN
+	DELETE FROM ManagerProductSales WHERE managerID = p_managerID;
+	DELETE FROM ManagerCustomerSales WHERE managerID = p_managerID;
+
+	INSERT INTO ManagerProductSales (managerID, productName, orderCount)
+	SELECT st.managerID, s.productName, SUM(s.orderCount)
+	FROM StoreProductSales s JOIN Store st ON st.storeID = s.storeID
+	WHERE st.managerID = p_managerID
+	GROUP BY st.managerID, s.productName;
+
+	INSERT INTO ManagerCustomerSales (managerID, customerID, orderCount)
+	SELECT st.managerID, s.customerID, SUM(s.orderCount)
+	FROM StoreCustomerSales s JOIN Store st ON st.storeID = s.storeID
+	WHERE st.managerID = p_managerID
+	GROUP BY st.managerID, s.customerID;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A store that changes hands, or is removed, moves its counts between the
+-- managers' totals. Stores rarely change, so both totals are recomputed.
+CREATE OR REPLACE FUNCTION update_manager_sales() RETURNS TRIGGER AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM refresh_manager_sales(OLD.managerID);
+	END IF;
+	IF TG_OP = 'UPDATE' AND NEW.managerID <> OLD.managerID THEN
+		PERFORM refresh_manager_sales(NEW.managerID);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS trg_update_manager_sales ON Store;
+CREATE TRIGGER trg_update_manager_sales
+AFTER UPDATE OF managerID OR DELETE ON Store
+FOR EACH ROW
+	EXECUTE PROCEDURE update_manager_sales();
+
+-- Recomputes the order counts from the whole order history, e.g. after
+-- Orders was loaded with COPY while the triggers were not installed.
+CREATE OR REPLACE FUNCTION rebuild_sales_aggregates() RETURNS void AS $$
+BEGIN
+	-- keep new orders out until the counts are consistent again
+	LOCK TABLE Orders IN SHARE MODE;
+	DELETE FROM StoreProductSales;
+	DELETE FROM StoreCustomerSales;
+
+	INSERT INTO StoreProductSales (storeID, productName, orderCount)
+	SELECT storeID, productName, COUNT(*)
+	FROM Orders
+	GROUP BY storeID, productName;
+
+	INSERT INTO StoreCustomerSales (storeID, customerID, orderCount)
+	SELECT storeID, customerID, COUNT(*)
+	FROM Orders
+	GROUP BY storeID, customerID;
+
+	DELETE FROM ManagerProductSales;
+	DELETE FROM ManagerCustomerSales;
+
+	INSERT INTO ManagerProductSales (managerID, productName, orderCount)
+	SELECT st.managerID, s.productName, SUM(s.orderCount)
+	FROM StoreProductSales s JOIN Store st ON st.storeID = s.storeID
+	GROUP BY st.managerID, s.productName;
+
+	INSERT INTO ManagerCustomerSales (managerID, customerID, orderCount)
+	SELECT st.managerID, s.customerID, SUM(s.orderCount)
+	FROM StoreCustomerSales s JOIN Store st ON st.storeID = s.storeID
+	GROUP BY st.managerID, s.customerID;
+END;
+$$ LANGUAGE plpgsql;
+
+-- BulkLoader runs this file after loading the data, with the triggers
+-- dropped, so count the loaded orders now
+SELECT rebuild_sales_aggregates();
+
+
+-- Adds the new orders to the hourly and daily sales rollups. Revenue uses
+-- the current pricePerUnit, which is the price the orders were placed at.
+CREATE OR REPLACE FUNCTION update_sales_rollups() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO StoreSalesHourly AS r
+		(storeID, hour, productName, unitsSold, revenue, orderCount)
+	SELECT o.storeID, date_trunc('hour', o.orderTime), o.productName,
+	       SUM(o.unitsOrdered), SUM(o.unitsOrdered * p.pricePerUnit), COUNT(*)
+	FROM new_orders o
+	JOIN Product p ON p.storeID = o.storeID AND p.productName = o.productName
+	GROUP BY o.storeID, date_trunc('hour', o.orderTime), o.productName
+	ON CONFLICT (storeID, hour, productName)
+	DO UPDATE SET unitsSold = r.unitsSold + EXCLUDED.unitsSold,
+	              revenue = r.revenue + EXCLUDED.revenue,
+	              orderCount = r.orderCount + EXCLUDED.orderCount;
+
+	INSERT INTO StoreSalesDaily AS r
+		(storeID, day, productName, unitsSold, revenue, orderCount)
+	SELECT o.storeID, o.orderTime::date, o.productName,
+	       SUM(o.unitsOrdered), SUM(o.unitsOrdered * p.pricePerUnit), COUNT(*)
+	FROM new_orders o
+	JOIN Product p ON p.storeID = o.storeID AND p.productName = o.productName
+	GROUP BY o.storeID, o.orderTime::date, o.productName
+	ON CONFLICT (storeID, day, productName)
+	DO UPDATE SET unitsSold = r.unitsSold + EXCLUDED.unitsSold,
+	              revenue = r.revenue + EXCLUDED.revenue,
+	              orderCount = r.orderCount + EXCLUDED.orderCount;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS trg_update_sales_rollups ON Orders;
+CREATE TRIGGER trg_update_sales_rollups
+AFTER INSERT ON Orders
+REFERENCING NEW TABLE AS new_orders
+FOR EACH STATEMENT
+	EXECUTE PROCEDURE update_sales_rollups();
+
+-- Recomputes the rollups from the order history, for the days from p_from
+-- on, or for all of it when p_from is NULL. Orders do not record their
+-- price, so rebuilt revenue uses today's pricePerUnit.
+CREATE OR REPLACE FUNCTION rebuild_sales_rollups(p_from date) RETURNS void AS $$
 DECLARE
-	currentManagerID integer;
+	since timestamp := COALESCE(p_from, '-infinity'::date);
 BEGIN
-	SELECT managerID INTO currentManagerID FROM Store WHERE storeID = NEW.storeID;
-	
-	IF FOUND THEN
-		INSERT INTO ProductUpdates(managerID, storeID, productName, updatedOn)
-		VALUES (currentManagerID, NEW.storeID, NEW.productName, NOW());
+	-- keep new orders out until the rollups are consistent again
+	LOCK TABLE Orders IN SHARE MODE;
+	DELETE FROM StoreSalesHourly WHERE hour >= since;
+	DELETE FROM StoreSalesDaily WHERE day >= since;
+
+	INSERT INTO StoreSalesHourly
+		(storeID, hour, productName, unitsSold, revenue, orderCount)
+	SELECT o.storeID, date_trunc('hour', o.orderTime), o.productName,
+	       SUM(o.unitsOrdered), SUM(o.unitsOrdered * p.pricePerUnit), COUNT(*)
+	FROM Orders o
+	JOIN Product p ON p.storeID = o.storeID AND p.productName = o.productName
+	WHERE o.orderTime >= since
+	GROUP BY o.storeID, date_trunc('hour', o.orderTime), o.productName;
+
+	INSERT INTO StoreSalesDaily
+		(storeID, day, productName, unitsSold, revenue, orderCount)
+	SELECT storeID, hour::date, productName,
+	       SUM(unitsSold), SUM(revenue), SUM(orderCount)
+	FROM StoreSalesHourly
+	WHERE hour >= since
+	GROUP BY storeID, hour::date, productName;
+END;
+$$ LANGUAGE plpgsql;
+
+-- build the rollups of freshly loaded orders. This file is also re-applied
+-- to databases whose rollups hold the revenue recorded at order time,
+-- which a rebuild would re-price at today's prices, so existing rollups
+-- are left alone
+SELECT rebuild_sales_rollups(NULL)
+WHERE NOT EXISTS (SELECT 1 FROM StoreSalesDaily);
+
+-- Places an order in a single round trip. The Product row is locked before
+-- the stock check, so concurrent buyers of the same product queue on the
+-- row lock instead of overselling it. order_number is NULL when there is
+-- not enough stock, and both columns are NULL when the store does not
+-- carry the product.
+CREATE OR REPLACE FUNCTION place_order(p_customerID integer,
+                                       p_storeID integer,
+                                       p_productName char(30),
+                                       p_units integer,
+                                       OUT order_number integer,
+                                       OUT units_left integer) AS $$
+BEGIN
+	SELECT numberOfUnits INTO units_left
+	FROM Product
+	WHERE storeID = p_storeID AND productName = p_productName
+	FOR UPDATE;
+	IF NOT FOUND OR units_left < p_units THEN
+		RETURN;
 	END IF;
-	RETURN NEW;
+
+	-- trg_update_stock_after_order takes the units off the locked row
+	INSERT INTO Orders(customerID, storeID, productName, unitsOrdered, orderTime)
+	VALUES (p_customerID, p_storeID, p_productName, p_units, NOW())
+	RETURNING orderNumber INTO order_number;
+	units_left := units_left - p_units;
+END;
+$$ LANGUAGE plpgsql;
+
+
+-- Inserts the updates to products to the ProductUpdate table. The trigger
+-- runs once per UPDATE statement over the changed rows, so a bulk price
+-- change or restock logs all of its products with one insert joined to
+-- Store, instead of a lookup and an insert per row.
+CREATE OR REPLACE FUNCTION log_product_update() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO ProductUpdates(managerID, storeID, productName, updatedOn)
+	SELECT s.managerID, n.storeID, n.productName, NOW()
+	FROM new_products n JOIN Store s ON s.storeID = n.storeID
+	ORDER BY n.storeID, n.productName;
+	RETURN NULL;
 END;
 $$ LANGUAGE plpgsql;
 
 DROP TRIGGER IF EXISTS trg_log_product_update ON Product;
 CREATE TRIGGER trg_log_product_update
 AFTER UPDATE ON Product
-FOR EACH ROW
+REFERENCING NEW TABLE AS new_products
+FOR EACH STATEMENT
 	EXECUTE PROCEDURE log_product_update();